@@ -0,0 +1,55 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 多数のインスタンスを1フレームずつ進めるスループット(BatchEnvironmentと個別のChip8の比較、命令数あたり)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchBenchmark {
+
+    private static final int LANES = 1024;
+    private static final int INSTRUCTIONS = LANES * Chip8.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    @Param({"ALU_HEAVY", "DRAW_HEAVY"})
+    public String rom;
+
+    private BatchEnvironment environment;
+    private Chip8[] instances;
+    private final int[] inputs = new int[LANES];
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        RomLibrary.Rom loaded = RomLibrary.getInstance().add((byte[]) SyntheticRoms.class.getDeclaredField(rom).get(null));
+        environment = new BatchEnvironment(loaded.image(), LANES, Chip8.DEFAULT_INSTRUCTIONS_PER_FRAME, 1);
+        instances = new Chip8[LANES];
+        for (int i = 0; i < LANES; i++) {
+            instances[i] = new Chip8();
+            instances[i].loadROM(loaded);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void batch() {
+        environment.stepAll(inputs, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void separate() {
+        for (Chip8 instance : instances) {
+            instance.runFrame();
+        }
+    }
+}
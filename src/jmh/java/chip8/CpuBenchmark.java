@@ -0,0 +1,37 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 命令の種類ごとの CPU.executeCycle のコスト
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CpuBenchmark {
+
+    @Param({"LOAD", "ALU", "SKIP", "MEMORY", "TIMER", "DRAW", "CALL"})
+    public SyntheticRoms.OpcodeClass opcodeClass;
+
+    private CPU cpu;
+
+    @Setup
+    public void setUp() {
+        Memory memory = new Memory();
+        memory.loadDefaultFontSet();
+        memory.loadROM(opcodeClass.rom);
+        cpu = new CPU(memory, new Display(), new InputHandler());
+    }
+
+    @Benchmark
+    public void executeCycle() {
+        cpu.executeCycle();
+    }
+}
@@ -0,0 +1,48 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Display.drawSprite / clear のコスト
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DisplayBenchmark {
+
+    private Display display;
+    private Memory memory;
+    private int position;
+
+    @Setup
+    public void setUp() {
+        display = new Display();
+        memory = new Memory();
+        memory.loadDefaultFontSet();
+    }
+
+    // 位置をずらしながら5行のスプライトを描画(折り返しを含む)
+    @Benchmark
+    public boolean drawSprite() {
+        position += 7;
+        return display.drawSprite(position & 0x3F, position & 0x1F, 5, (position & 0xF) * 5, memory);
+    }
+
+    // 15行のスプライト
+    @Benchmark
+    public boolean drawTallSprite() {
+        position += 3;
+        return display.drawSprite(position & 0x3F, position & 0x1F, 15, 0, memory);
+    }
+
+    @Benchmark
+    public void clear() {
+        display.clear();
+    }
+}
@@ -0,0 +1,103 @@
+package chip8;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// 多数のインスタンスを保持した状態でのヒープ使用量とフルGCの停止時間(ヒープ上のページとオフヒープの比較)
+// CPUの命令キャッシュや実行エンジンの表も含めるため、Chip8を丸ごと作って数フレーム実行する
+// その後に全ページに書き込み、ヒープ側はすべてのページを自分用にコピーした状態で計測する
+// 1インスタンスあたりのヒープ使用量は補助カウンタとして結果に出す
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FootprintBenchmark {
+
+    // 作成後に実行するフレーム数
+    private static final int FRAMES = 10;
+
+    public enum Layout {
+        HEAP, OFF_HEAP
+    }
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public Layout layout;
+
+    @Param({"INTERPRETER", "RECOMPILER"})
+    public ExecutionEngine.Kind engine;
+
+    @Param({"20000"})
+    public int instances;
+
+    private final List<Chip8> chip8s = new ArrayList<>();
+    private OffHeapArena arena;
+    private long heapBytesPerInstance;
+
+    // 1インスタンスあたりの使用量(結果に出す)
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long heapBytesPerInstance;
+        public long offHeapBytesPerInstance;
+
+        @Setup(Level.Iteration)
+        public void report(FootprintBenchmark benchmark) {
+            heapBytesPerInstance = benchmark.heapBytesPerInstance;
+            offHeapBytesPerInstance = benchmark.layout == Layout.OFF_HEAP ? OffHeapArena.SLOT_SIZE : 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long before = memoryBean.getHeapMemoryUsage().getUsed();
+        MemoryImage image = RomLibrary.getInstance().add(SyntheticRoms.DRAW_HEAVY).image();
+        if (layout == Layout.OFF_HEAP) {
+            arena = new OffHeapArena(instances);
+        }
+        for (int i = 0; i < instances; i++) {
+            Memory memory = layout == Layout.HEAP ? new Memory(image) : arena.allocate(image);
+            Chip8 chip8 = new Chip8(engine, memory);
+            chip8.setSeed(i);
+            for (int frame = 0; frame < FRAMES; frame++) {
+                chip8.runFrame();
+            }
+            for (int address = 0; address < Memory.SIZE; address += Memory.PAGE_SIZE) {
+                memory.setByte(address, (byte) i);
+            }
+            chip8s.add(chip8);
+        }
+        System.gc();
+        heapBytesPerInstance = (memoryBean.getHeapMemoryUsage().getUsed() - before) / instances;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chip8s.clear();
+        if (arena != null) {
+            arena.close();
+        }
+    }
+
+    // 保持しているインスタンスを辿るフルGCの時間
+    @Benchmark
+    public void fullGc(Footprint footprint) {
+        System.gc();
+    }
+}
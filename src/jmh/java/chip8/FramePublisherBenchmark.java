@@ -0,0 +1,148 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// FramePublisherの受け渡しの検証とコスト
+// 公開1スレッドと読み込み3スレッドを並走させ、読んだフレームが1回の公開の内容だけでできているかを確かめる
+// (全要素を公開番号から決まる値にしておき、別の公開の値が混ざっていれば欠けたフレームとして失敗させる)
+// publish(読み込み側あり)とpublishAlone、runFrameWithReaderとrunFrameの差が、表示側を繋いだことによる遅延
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramePublisherBenchmark {
+
+    // runFrameの1フレームの命令数
+    private static final int INSTRUCTIONS = Chip8.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    private FramePublisher publisher;
+    private Display display;
+    private final long[] frame = new long[Display.FRAME_SIZE];
+    private long published;
+    private Chip8 chip8;
+
+    // 読み込みスレッドごとの状態
+    @State(Scope.Thread)
+    public static class Reader {
+
+        final long[] frame = new long[Display.FRAME_SIZE];
+        long sequence;
+    }
+
+    // 読み込みスレッドごとの集計(結果に出す)
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ReadCounters {
+
+        // 新しいフレームを読んだ回数
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        publisher = new FramePublisher();
+        display = new Display();
+        chip8 = new Chip8();
+        chip8.loadROM(RomLibrary.getInstance().add(SyntheticRoms.DRAW_HEAVY));
+    }
+
+    // 公開番号nのフレームのi番目の要素(上位16ビットに位置、下位48ビットに番号)
+    static long word(long n, int i) {
+        return ((long) i << 48) | n;
+    }
+
+    // 1回の公開の内容だけでできているか(解像度も番号の偶奇で交互に変える)
+    static boolean consistent(long[] frame) {
+        long n = frame[0];
+        for (int i = 1; i < Display.MODE_INDEX; i++) {
+            if (frame[i] != word(n, i)) {
+                return false;
+            }
+        }
+        return frame[Display.MODE_INDEX] == (n & 1);
+    }
+
+    private void publishNext() {
+        long n = ++published;
+        for (int i = 0; i < Display.MODE_INDEX; i++) {
+            frame[i] = word(n, i);
+        }
+        frame[Display.MODE_INDEX] = n & 1;
+        display.copyFrameFrom(frame);
+        publisher.publish(display);
+    }
+
+    // 読み込み側と並走させた公開
+    @Benchmark
+    @Group("stress")
+    @GroupThreads(1)
+    public void publish() {
+        publishNext();
+    }
+
+    // 新しいフレームがあれば読んで確かめる(欠けたフレームを見たら例外で失敗させる)
+    @Benchmark
+    @Group("stress")
+    @GroupThreads(3)
+    public long read(Reader reader, ReadCounters counters) {
+        long sequence = publisher.readIfNewer(reader.sequence, reader.frame);
+        if (sequence >= 0) {
+            reader.sequence = sequence;
+            counters.frames++;
+            if (!consistent(reader.frame)) {
+                throw new IllegalStateException("Torn frame after sequence " + sequence + ": " + reader.frame[0]);
+            }
+        }
+        return sequence;
+    }
+
+    // 読み込み側が無い場合の公開
+    @Benchmark
+    public void publishAlone() {
+        publishNext();
+    }
+
+    // 表示側が読み続けている間の1命令あたりの実行時間
+    @Benchmark
+    @Group("emulation")
+    @GroupThreads(1)
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void runFrameWithReader() {
+        chip8.runFrame();
+    }
+
+    @Benchmark
+    @Group("emulation")
+    @GroupThreads(1)
+    public long readFrames(Reader reader) {
+        long sequence = chip8.getFramePublisher().readIfNewer(reader.sequence, reader.frame);
+        if (sequence >= 0) {
+            reader.sequence = sequence;
+        }
+        return sequence;
+    }
+
+    // 読み込み側が無い場合の1命令あたりの実行時間
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void runFrame() {
+        chip8.runFrame();
+    }
+}
@@ -0,0 +1,45 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 同じROMのインスタンスを作るコスト(共有イメージから始める場合とバイト列をコピーする場合)
+// 確保量は -prof gc で確認する
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InstanceBenchmark {
+
+    private RomLibrary.Rom rom;
+
+    @Setup
+    public void setUp() {
+        rom = RomLibrary.getInstance().add(SyntheticRoms.DRAW_HEAVY);
+    }
+
+    @Benchmark
+    public Memory memoryFromImage() {
+        return new Memory(rom.image());
+    }
+
+    @Benchmark
+    public Memory memoryFromBytes() {
+        Memory memory = new Memory();
+        memory.loadROM(SyntheticRoms.DRAW_HEAVY);
+        return memory;
+    }
+
+    @Benchmark
+    public Chip8 chip8FromImage() {
+        Chip8 chip8 = new Chip8();
+        chip8.loadROM(rom);
+        return chip8;
+    }
+}
@@ -0,0 +1,41 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Memory.getByte / setByte のコスト(setByteは書き込み通知先のCPUが居る状態で計測)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemoryBenchmark {
+
+    private Memory memory;
+    private int address;
+
+    @Setup
+    public void setUp() {
+        memory = new Memory();
+        memory.loadDefaultFontSet();
+        memory.loadROM(SyntheticRoms.ALU_HEAVY);
+        new CPU(memory, new Display(), new InputHandler());
+    }
+
+    @Benchmark
+    public byte getByte() {
+        address = (address + 1) & 0xFFF;
+        return memory.getByte(address);
+    }
+
+    @Benchmark
+    public void setByte() {
+        address = (address + 1) & 0xFFF;
+        memory.setByte(address, (byte) address);
+    }
+}
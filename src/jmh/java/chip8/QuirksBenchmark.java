@@ -0,0 +1,47 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 互換性の設定ごとの1命令あたりのコスト
+// 設定はデコード時に命令を置き換えるだけなので、DEFAULTと他の設定で差が出ないことを確認する
+// (置き換わる命令を含むALU・MEMORY・DRAWで比べる)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QuirksBenchmark {
+
+    private static final int BUDGET = 1000;
+
+    @Param({"default", "vip", "schip", "xochip"})
+    public String quirks;
+
+    @Param({"ALU", "MEMORY", "DRAW"})
+    public SyntheticRoms.OpcodeClass opcodeClass;
+
+    private CPU cpu;
+
+    @Setup
+    public void setUp() {
+        Memory memory = new Memory();
+        memory.loadDefaultFontSet();
+        memory.loadROM(opcodeClass.rom);
+        cpu = new CPU(memory, new Display(), new InputHandler());
+        cpu.setQuirks(Quirks.named(quirks));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUDGET)
+    public int run() {
+        return cpu.run(BUDGET);
+    }
+}
@@ -0,0 +1,44 @@
+package chip8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 合成ROM全体のスループット(1秒分 = 60フレームを1回の操作とし、命令数で割った値を出す)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RomBenchmark {
+
+    private static final int FRAMES = FrameScheduler.FRAMES_PER_SECOND;
+    private static final int INSTRUCTIONS = FRAMES * Chip8.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    @Param({"ALU_HEAVY", "DRAW_HEAVY", "CALL_HEAVY"})
+    public String rom;
+
+    @Param({"INTERPRETER", "RECOMPILER"})
+    public ExecutionEngine.Kind engine;
+
+    private Chip8 chip8;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        chip8 = new Chip8(engine);
+        chip8.loadROM((byte[]) SyntheticRoms.class.getDeclaredField(rom).get(null));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public long runOneSecond() {
+        chip8.runFrames(FRAMES);
+        return chip8.framebufferHash();
+    }
+}
@@ -0,0 +1,61 @@
+package chip8;
+
+// ベンチマーク用の合成ROM
+final class SyntheticRoms {
+
+    private SyntheticRoms() {
+    }
+
+    // 演算中心: レジスタ演算のループ
+    static final byte[] ALU_HEAVY = rom(
+            0x6001, 0x6102, 0x6203,      // 200: V0..V2 初期化
+            0x8014, 0x8125, 0x8203,      // 206: ADD / SUB / XOR
+            0x8306, 0x830E, 0x7005,      // 20C: SHR / SHL / ADD imm
+            0x8231, 0x8412, 0x3000,      // 212: OR / AND / SE
+            0x1206, 0x1206);             // 218: ループ
+
+    // 描画中心: フォントを画面全体に描き、一定回数ごとに消去
+    static final byte[] DRAW_HEAVY = rom(
+            0x00E0, 0x6000, 0x6100,      // 200: CLS, x = 0, y = 0
+            0x6200, 0xF229, 0xD015,      // 206: V2 の文字スプライトを描画
+            0x7201, 0x7008, 0x3040,      // 20C: 次の文字・右へ・行末判定
+            0x1208, 0x6000, 0x7106,      // 212: 行末なら次の行へ
+            0x3124, 0x1208, 0x1200);     // 218: 最下段まで来たら最初から
+
+    // 呼び出し中心: 入れ子のサブルーチン呼び出し
+    static final byte[] CALL_HEAVY = rom(
+            0x220A, 0x7001, 0x1200,      // 200: CALL 20A, ループ
+            0x0000, 0x0000,              // 206: 未使用
+            0x2210, 0x7101, 0x00EE,      // 20A: CALL 210, RET
+            0x2216, 0x7201, 0x00EE,      // 210: CALL 216, RET
+            0x7301, 0x00EE);             // 216: RET
+
+    // 命令の種類ごとのループ(命令を並べて最後に先頭へ戻る)
+    enum OpcodeClass {
+        LOAD(0x6012, 0xA300, 0x6134, 0xF01E, 0xF129, 0x8100),
+        ALU(0x7001, 0x8014, 0x8015, 0x8017, 0x8016, 0x801E, 0x8011, 0x8012, 0x8013),
+        SKIP(0x3099, 0x4000, 0x9010, 0xE09E, 0x5010, 0x6000, 0xE1A1, 0x6000),
+        MEMORY(0xA800, 0xF033, 0xF355, 0xF365),
+        TIMER(0xF015, 0xF007, 0xF018),
+        DRAW(0xF029, 0xD015, 0x7003, 0xD125),
+        CALL(0x2206, 0x1200, 0x0000, 0x00EE);
+
+        final byte[] rom;
+
+        OpcodeClass(int... opcodes) {
+            int[] loop = new int[opcodes.length + 1];
+            System.arraycopy(opcodes, 0, loop, 0, opcodes.length);
+            loop[opcodes.length] = 0x1200;
+            this.rom = rom(loop);
+        }
+    }
+
+    static byte[] rom(int... opcodes) {
+        byte[] rom = new byte[opcodes.length * 2];
+        for (int i = 0; i < opcodes.length; i++) {
+            rom[i * 2] = (byte) (opcodes[i] >> 8);
+            rom[i * 2 + 1] = (byte) opcodes[i];
+        }
+        return rom;
+    }
+}
@@ -0,0 +1,714 @@
+package chip8;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 同じROMの多数のインスタンス(レーン)をまとめて進める環境(探索・学習用)
+// レジスタ・pc・タイマー・フレームバッファはレーンを添字とするプリミティブ配列で持つ(構造体の配列ではなく配列の構造体)
+// 1命令ごとに全レーンのオペコードを読み、同じオペコードのレーンをまとめて1回の分岐で実行する
+// (まとめたレーンはorderで飛び飛びの添字になり、ベクトル化には命令ごとのgather/scatterが要るため、
+//  jdk.incubator.vectorは使わずにスカラーのループで実行する。実行時の--add-modulesも不要になる)
+// 命令の動作はCPU(インタプリタ)に合わせている。タイマーはフレームごとに1回更新する
+//   乱数          レーンlaneはChip8.setSeed(seed + lane)と同じ列(SeededRandom)
+//   Fx0A          待ち始めた後に押されたキーが離されたら進む(キーの状態の変化をCPUのキーイベントとみなす)
+//   Ex9E・ExA1     Vxが15を超える場合は押されていないものとする
+//   互換性の設定   デコード時にQuirks.variantで置き換える
+// CPUと異なる点
+//   64x32 のみ    スクロール(00Cn/00FB/00FC)と解像度の切り替え(00FE/00FF)はそのレーンを止める
+//   未知の命令     CPUはログに出して読み飛ばすが、ここではそのレーンを止める
+//   (止めたレーンはpcを進めずにその命令に留まり、haltedOpcodeで分かる。resetで再開する)
+//   待機ループの早送りはしない(結果の状態は同じ)
+public class BatchEnvironment {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchEnvironment.class);
+
+    private static final int REGISTERS = 16;
+    private static final int STACK_DEPTH = 16;
+    private static final int ADDRESS_MASK = Memory.SIZE - 1;
+
+    private final MemoryImage image;
+    private final int lanes;
+    private final int instructionsPerFrame;
+    private final long seed;
+    private final Quirks quirks;
+
+    // 汎用レジスタ・スタック(v[x][lane]、stack[depth][lane])
+    private final int[][] v = new int[REGISTERS][];
+    private final int[][] stack = new int[STACK_DEPTH][];
+    private final int[] index;
+    private final int[] pc;
+    private final int[] sp;
+    private final int[] delayTimer;
+    private final int[] soundTimer;
+    // Fx0Aのキー待ち(waitKeyは待ち中に押されたキー、-1は未入力、waitKeysは前回確かめた時のキーの状態)
+    private final boolean[] waiting;
+    private final int[] waitKey;
+    private final int[] waitKeys;
+    // Cxkkの乱数の状態(SeededRandomと同じSplitMix64)
+    private final long[] random;
+    // SUPER-CHIPのRPLフラグ(rpl[i][lane])
+    private final int[][] rpl = new int[CPU.RPL_FLAGS][];
+    // 対応していない命令で止めたレーンのオペコード(-1は動作中)
+    private final int[] haltedOpcode;
+    // 各レーンのメモリ(lane * Memory.SIZE から)
+    private final byte[] memory;
+    // 各レーンのフレームバッファ(lane * Display.HEIGHT から1行1long)
+    private final long[] rows;
+    // 直近のstepAllで渡されたキーの状態(ビットiがキーi)
+    private final int[] keys;
+
+    // オペコードごとのグループ分けの作業領域
+    private final int[] groupStamp = new int[0x10000];
+    private final int[] groupOf = new int[0x10000];
+    private int epoch;
+    private final int[] laneOpcode;
+    private final int[] laneGroup;
+    private final int[] groupOpcode;
+    private final int[] groupStart;
+    private final int[] groupEnd;
+    private final int[] order;
+    // 0, 1, 2, ... (全レーンが同じ命令の場合の並び)
+    private final int[] identity;
+
+    public BatchEnvironment(MemoryImage image, int lanes, int instructionsPerFrame, long seed) {
+        this(image, lanes, instructionsPerFrame, seed, Quirks.DEFAULT);
+    }
+
+    public BatchEnvironment(MemoryImage image, int lanes, int instructionsPerFrame, long seed, Quirks quirks) {
+        if (lanes <= 0 || instructionsPerFrame <= 0) {
+            throw new IllegalArgumentException("lanes and instructionsPerFrame must be positive");
+        }
+        this.image = image;
+        this.lanes = lanes;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.seed = seed;
+        this.quirks = quirks;
+        for (int x = 0; x < REGISTERS; x++) {
+            v[x] = new int[lanes];
+        }
+        for (int d = 0; d < STACK_DEPTH; d++) {
+            stack[d] = new int[lanes];
+        }
+        index = new int[lanes];
+        pc = new int[lanes];
+        sp = new int[lanes];
+        delayTimer = new int[lanes];
+        soundTimer = new int[lanes];
+        waiting = new boolean[lanes];
+        waitKey = new int[lanes];
+        waitKeys = new int[lanes];
+        random = new long[lanes];
+        for (int i = 0; i < CPU.RPL_FLAGS; i++) {
+            rpl[i] = new int[lanes];
+        }
+        haltedOpcode = new int[lanes];
+        memory = new byte[lanes * Memory.SIZE];
+        rows = new long[lanes * Display.HEIGHT];
+        keys = new int[lanes];
+        laneOpcode = new int[lanes];
+        laneGroup = new int[lanes];
+        groupOpcode = new int[lanes];
+        groupStart = new int[lanes];
+        groupEnd = new int[lanes];
+        order = new int[lanes];
+        identity = new int[lanes];
+        Arrays.setAll(identity, lane -> lane);
+        resetAll();
+    }
+
+    // 全レーンを初期状態に戻す
+    public void resetAll() {
+        for (int lane = 0; lane < lanes; lane++) {
+            reset(lane);
+        }
+    }
+
+    // レーンを初期状態に戻す
+    public void reset(int lane) {
+        for (int x = 0; x < REGISTERS; x++) {
+            v[x][lane] = 0;
+        }
+        for (int d = 0; d < STACK_DEPTH; d++) {
+            stack[d][lane] = 0;
+        }
+        index[lane] = 0;
+        pc[lane] = MemoryImage.ROM_START_ADDRESS;
+        sp[lane] = 0;
+        delayTimer[lane] = 0;
+        soundTimer[lane] = 0;
+        waiting[lane] = false;
+        waitKey[lane] = -1;
+        waitKeys[lane] = 0;
+        random[lane] = seed(lane);
+        for (int i = 0; i < CPU.RPL_FLAGS; i++) {
+            rpl[i][lane] = 0;
+        }
+        haltedOpcode[lane] = -1;
+        image.copyTo(memory, lane * Memory.SIZE);
+        Arrays.fill(rows, lane * Display.HEIGHT, (lane + 1) * Display.HEIGHT, 0L);
+    }
+
+    // 各レーンにキーの状態inputs[lane](ビットiがキーi)を与え、frames分進める
+    public void stepAll(int[] inputs, int frames) {
+        if (inputs.length < lanes) {
+            throw new IllegalArgumentException("inputs must have one entry per lane");
+        }
+        System.arraycopy(inputs, 0, keys, 0, lanes);
+        for (int frame = 0; frame < frames; frame++) {
+            for (int i = 0; i < instructionsPerFrame; i++) {
+                step();
+            }
+            updateTimers();
+        }
+    }
+
+    // 全レーンで1命令ずつ実行する
+    private void step() {
+        // 全レーンが同じ命令ならグループ分けせずに実行する(同じROMを同じ入力で進める場合の大半)
+        int first = fetch(0);
+        boolean uniform = true;
+        for (int lane = 0; lane < lanes; lane++) {
+            int opcode = fetch(lane);
+            laneOpcode[lane] = opcode;
+            uniform &= opcode == first;
+        }
+        if (uniform) {
+            execute(first, identity, 0, lanes);
+            return;
+        }
+        int groups = group();
+        for (int g = 0; g < groups; g++) {
+            execute(groupOpcode[g], order, groupStart[g], groupEnd[g]);
+        }
+    }
+
+    // レーンのpcのオペコード
+    private int fetch(int lane) {
+        int base = lane * Memory.SIZE;
+        int address = pc[lane];
+        return (Byte.toUnsignedInt(memory[base + (address & ADDRESS_MASK)]) << 8)
+                | Byte.toUnsignedInt(memory[base + ((address + 1) & ADDRESS_MASK)]);
+    }
+
+    // Ex9E・ExA1: レーンのキーが押されているか(InputHandler.isKeyPressedと同じく、15を超える値は押されていない)
+    private boolean isKeyPressed(int lane, int key) {
+        return key <= 0xF && (keys[lane] >>> key & 1) != 0;
+    }
+
+    // 同じオペコードのレーンがorderで連続するように並べる(グループ数を返す)
+    private int group() {
+        if (++epoch == 0) {
+            Arrays.fill(groupStamp, 0);
+            epoch = 1;
+        }
+        int groups = 0;
+        for (int lane = 0; lane < lanes; lane++) {
+            int opcode = laneOpcode[lane];
+            int g;
+            if (groupStamp[opcode] != epoch) {
+                groupStamp[opcode] = epoch;
+                g = groups++;
+                groupOf[opcode] = g;
+                groupOpcode[g] = opcode;
+                groupEnd[g] = 0;
+            } else {
+                g = groupOf[opcode];
+            }
+            laneGroup[lane] = g;
+            groupEnd[g]++;
+        }
+        // 件数を区間に変換し、レーン番号を詰める
+        int start = 0;
+        for (int g = 0; g < groups; g++) {
+            int count = groupEnd[g];
+            groupStart[g] = start;
+            groupEnd[g] = start;
+            start += count;
+        }
+        for (int lane = 0; lane < lanes; lane++) {
+            order[groupEnd[laneGroup[lane]]++] = lane;
+        }
+        return groups;
+    }
+
+    // order[from, to)のレーンで同じ命令を実行する
+    private void execute(int opcode, int[] order, int from, int to) {
+        int instruction = quirks.variant(Instruction.decode(opcode));
+        int x = Instruction.x(instruction);
+        int y = Instruction.y(instruction);
+        int kk = Instruction.kk(instruction);
+        int nnn = Instruction.nnn(instruction);
+        int[] vx = v[x];
+        int[] vy = v[y];
+        int[] vf = v[0xF];
+        switch (Instruction.handler(instruction)) {
+            case Instruction.CLS:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    Arrays.fill(rows, lane * Display.HEIGHT, (lane + 1) * Display.HEIGHT, 0L);
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.RET:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    sp[lane]--;
+                    pc[lane] = stack[sp[lane]][lane] + 2;
+                }
+                break;
+            case Instruction.JP:
+                for (int k = from; k < to; k++) {
+                    pc[order[k]] = nnn;
+                }
+                break;
+            case Instruction.CALL:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    stack[sp[lane]][lane] = pc[lane];
+                    sp[lane]++;
+                    pc[lane] = nnn;
+                }
+                break;
+            case Instruction.SE_VX_KK:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] += (vx[lane] == kk) ? 4 : 2;
+                }
+                break;
+            case Instruction.SNE_VX_KK:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] += (vx[lane] != kk) ? 4 : 2;
+                }
+                break;
+            case Instruction.SE_VX_VY:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] += (vx[lane] == vy[lane]) ? 4 : 2;
+                }
+                break;
+            case Instruction.LD_VX_KK:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] = kk;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.ADD_VX_KK:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] = (vx[lane] + kk) & 0xFF;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_VX_VY:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] = vy[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.OR:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] |= vy[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.AND:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] &= vy[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.XOR:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] ^= vy[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.ADD_VX_VY:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int sum = vx[lane] + vy[lane];
+                    vf[lane] = (sum > 0xFF) ? 1 : 0;
+                    vx[lane] = sum & 0xFF;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SUB:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int a = vx[lane];
+                    int b = vy[lane];
+                    vf[lane] = (a > b) ? 1 : 0;
+                    vx[lane] = (a - b) & 0xFF;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SHR:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int a = vx[lane];
+                    vf[lane] = a & 0x1;
+                    vx[lane] = a >> 1;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SUBN:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int a = vx[lane];
+                    int b = vy[lane];
+                    vf[lane] = (b > a) ? 1 : 0;
+                    vx[lane] = (b - a) & 0xFF;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SHL:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int a = vx[lane];
+                    vf[lane] = (a & 0x80) >> 7;
+                    vx[lane] = (a << 1) & 0xFF;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SNE_VX_VY:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] += (vx[lane] != vy[lane]) ? 4 : 2;
+                }
+                break;
+            case Instruction.LD_I:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    index[lane] = nnn;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SHR_VY:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int b = vy[lane];
+                    vf[lane] = b & 0x1;
+                    vx[lane] = b >> 1;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SHL_VY:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int b = vy[lane];
+                    vf[lane] = (b & 0x80) >> 7;
+                    vx[lane] = (b << 1) & 0xFF;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.JP_V0:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] = nnn + v[0][lane];
+                }
+                break;
+            case Instruction.JP_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] = nnn + vx[lane];
+                }
+                break;
+            case Instruction.RND:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    long state = random[lane] + SeededRandom.GAMMA;
+                    random[lane] = state;
+                    vx[lane] = SeededRandom.toByte(SeededRandom.mix(state)) & kk;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.DRW:
+                draw(vx, vy, Instruction.n(instruction), 1, true, vf, order, from, to);
+                break;
+            case Instruction.DRW_CLIP:
+                draw(vx, vy, Instruction.n(instruction), 1, false, vf, order, from, to);
+                break;
+            // レーンは64x32 のみなので、Quirks.largeSpritesでなければ0行の描画
+            case Instruction.DRW_16:
+                draw(vx, vy, quirks.largeSprites() ? 16 : 0, 2, true, vf, order, from, to);
+                break;
+            case Instruction.DRW_16_CLIP:
+                draw(vx, vy, quirks.largeSprites() ? 16 : 0, 2, false, vf, order, from, to);
+                break;
+            case Instruction.SKP:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] += isKeyPressed(lane, vx[lane]) ? 4 : 2;
+                }
+                break;
+            case Instruction.SKNP:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    pc[lane] += !isKeyPressed(lane, vx[lane]) ? 4 : 2;
+                }
+                break;
+            case Instruction.LD_VX_DT:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    vx[lane] = delayTimer[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_VX_K:
+                for (int k = from; k < to; k++) {
+                    waitForKey(order[k], vx);
+                }
+                break;
+            case Instruction.LD_DT_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    delayTimer[lane] = vx[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_ST_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    soundTimer[lane] = vx[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.ADD_I_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    index[lane] += vx[lane];
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_F_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    index[lane] = Memory.SPRITE_START_ADDRESS + vx[lane] * 5;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_HF_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    index[lane] = Memory.LARGE_SPRITE_START_ADDRESS + (vx[lane] & 0xF) * 10;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_B_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int base = lane * Memory.SIZE;
+                    int i = index[lane];
+                    int value = vx[lane];
+                    memory[base + (i & ADDRESS_MASK)] = (byte) (value / 100);
+                    memory[base + ((i + 1) & ADDRESS_MASK)] = (byte) ((value / 10) % 10);
+                    memory[base + ((i + 2) & ADDRESS_MASK)] = (byte) (value % 10);
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_I_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int base = lane * Memory.SIZE;
+                    int i = index[lane];
+                    for (int r = 0; r <= x; r++) {
+                        memory[base + ((i + r) & ADDRESS_MASK)] = (byte) v[r][lane];
+                    }
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_VX_I:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int base = lane * Memory.SIZE;
+                    int i = index[lane];
+                    for (int r = 0; r <= x; r++) {
+                        v[r][lane] = Byte.toUnsignedInt(memory[base + ((i + r) & ADDRESS_MASK)]);
+                    }
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_I_VX_INC:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int base = lane * Memory.SIZE;
+                    int i = index[lane];
+                    for (int r = 0; r <= x; r++) {
+                        memory[base + ((i + r) & ADDRESS_MASK)] = (byte) v[r][lane];
+                    }
+                    index[lane] = i + x + 1;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_VX_I_INC:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    int base = lane * Memory.SIZE;
+                    int i = index[lane];
+                    for (int r = 0; r <= x; r++) {
+                        v[r][lane] = Byte.toUnsignedInt(memory[base + ((i + r) & ADDRESS_MASK)]);
+                    }
+                    index[lane] = i + x + 1;
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_R_VX:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    for (int r = 0; r <= x && r < CPU.RPL_FLAGS; r++) {
+                        rpl[r][lane] = v[r][lane];
+                    }
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.LD_VX_R:
+                for (int k = from; k < to; k++) {
+                    int lane = order[k];
+                    for (int r = 0; r <= x && r < CPU.RPL_FLAGS; r++) {
+                        v[r][lane] = rpl[r][lane];
+                    }
+                    pc[lane] += 2;
+                }
+                break;
+            case Instruction.SYS:
+                for (int k = from; k < to; k++) {
+                    pc[order[k]] += 2;
+                }
+                break;
+            case Instruction.EXIT:
+                // 00FD: 停止(pcを進めない)
+                break;
+            default:
+                // 128x64 の命令と未知の命令
+                halt(opcode, order, from, to);
+                break;
+        }
+    }
+
+    // 対応していない命令のレーンを止める(pcは進めず、以後もこの命令に留まる)
+    private void halt(int opcode, int[] order, int from, int to) {
+        int halted = 0;
+        int first = -1;
+        for (int k = from; k < to; k++) {
+            int lane = order[k];
+            if (haltedOpcode[lane] < 0) {
+                haltedOpcode[lane] = opcode;
+                if (halted++ == 0) {
+                    first = lane;
+                }
+            }
+        }
+        if (halted > 0) {
+            logger.error("Halted {} lane(s) (first: {}) at 0x{}: unsupported opcode 0x{}", halted, first,
+                    Integer.toHexString(pc[first]).toUpperCase(), Integer.toHexString(opcode).toUpperCase());
+        }
+    }
+
+    // Dxyn・Dxy0: スプライト描画(Display.drawSprite・drawLargeSpriteと同じ回転・XOR・ANDによる処理)
+    // bytesPerRowは1行のバイト数(16x16は2)、wrapがfalseなら画面の端で切り取る(描画開始位置は折り返す)
+    private void draw(int[] vx, int[] vy, int height, int bytesPerRow, boolean wrap, int[] vf, int[] order,
+            int from, int to) {
+        for (int k = from; k < to; k++) {
+            int lane = order[k];
+            int base = lane * Memory.SIZE;
+            int rowBase = lane * Display.HEIGHT;
+            int x = vx[lane] & (Display.WIDTH - 1);
+            int top = wrap ? vy[lane] : vy[lane] & (Display.HEIGHT - 1);
+            int count = wrap ? height : Math.min(height, Display.HEIGHT - top);
+            int address = index[lane];
+            long collision = 0;
+            for (int row = 0; row < count; row++) {
+                int y = rowBase + ((top + row) & (Display.HEIGHT - 1));
+                long sprite = 0;
+                for (int b = 0; b < bytesPerRow; b++) {
+                    sprite |= (long) Byte.toUnsignedInt(
+                            memory[base + ((address + row * bytesPerRow + b) & ADDRESS_MASK)]) << (56 - b * 8);
+                }
+                long spriteRow = wrap ? Long.rotateRight(sprite, x) : sprite >>> x;
+                collision |= rows[y] & spriteRow;
+                rows[y] ^= spriteRow;
+            }
+            vf[lane] = collision != 0 ? 1 : 0;
+            pc[lane] += 2;
+        }
+    }
+
+    // Fx0A: 待ち始めた後に押されたキーが離されるまでpcを進めない(最初の実行で待ち始める)
+    // 前回からのキーの状態の変化をCPUのキーイベントとして扱う(待ち始めた時に押されていたキーは対象外)
+    private void waitForKey(int lane, int[] vx) {
+        int current = keys[lane];
+        if (!waiting[lane]) {
+            waiting[lane] = true;
+            waitKey[lane] = -1;
+            waitKeys[lane] = current;
+            return;
+        }
+        int released = waitKeys[lane] & ~current;
+        int pressed = current & ~waitKeys[lane];
+        waitKeys[lane] = current;
+        int key = waitKey[lane];
+        if (key >= 0 && (released >>> key & 1) != 0) {
+            vx[lane] = key;
+            waiting[lane] = false;
+            waitKey[lane] = -1;
+            pc[lane] += 2;
+        } else if (pressed != 0) {
+            waitKey[lane] = Integer.numberOfTrailingZeros(pressed);
+        }
+    }
+
+    private void updateTimers() {
+        for (int lane = 0; lane < lanes; lane++) {
+            if (delayTimer[lane] > 0) {
+                delayTimer[lane]--;
+            }
+            if (soundTimer[lane] > 0) {
+                soundTimer[lane]--;
+            }
+        }
+    }
+
+    // 全レーンのフレームバッファ(コピーせず読み取り専用で参照する)
+    // レーンlaneの行yは lane * Display.HEIGHT + y 番目(最上位ビットがx=0)
+    public LongBuffer observations() {
+        return LongBuffer.wrap(rows).asReadOnlyBuffer();
+    }
+
+    // 1レーン分のフレームバッファ(コピーせず読み取り専用で参照する)
+    public LongBuffer observation(int lane) {
+        return LongBuffer.wrap(rows, lane * Display.HEIGHT, Display.HEIGHT).slice().asReadOnlyBuffer();
+    }
+
+    // レーンのフレームバッファのハッシュ値(Display.hashと同じ値)
+    public long framebufferHash(int lane) {
+        return Display.hash(rows, lane * Display.HEIGHT);
+    }
+
+    // レーンの乱数のシード(Chip8.setSeedに渡すと同じ乱数列になる)
+    public long seed(int lane) {
+        return seed + lane;
+    }
+
+    // 対応していない命令で止めたレーンのオペコード(動作中は-1)
+    public int haltedOpcode(int lane) {
+        return haltedOpcode[lane];
+    }
+
+    // レーンの汎用レジスタの値
+    public int register(int lane, int x) {
+        return v[x][lane];
+    }
+
+    public int lanes() {
+        return lanes;
+    }
+}
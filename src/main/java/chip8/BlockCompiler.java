@@ -0,0 +1,347 @@
+package chip8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+// CHIP-8の基本ブロックをJVMのhidden classに変換する
+// 分岐を含まない命令はレジスタ操作のバイトコードに展開し、それ以外はCPU.execute()の呼び出しにする
+// (生成コードに分岐が無いのでStackMapTableは不要)
+final class BlockCompiler {
+
+    // 生成したクラスが実装するインターフェース
+    interface Block {
+        void run(CPU cpu);
+    }
+
+    private static final String CPU_CLASS = "chip8/CPU";
+    private static final String BLOCK_INTERFACE = "chip8/BlockCompiler$Block";
+
+    // JVM命令
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ICONST_0 = 0x03;
+    private static final int IALOAD = 0x2e;
+    private static final int IASTORE = 0x4f;
+    private static final int DUP = 0x59;
+    private static final int DUP2 = 0x5c;
+    private static final int IADD = 0x60;
+    private static final int IMUL = 0x68;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // 命令列(decodeされた値)をクラスに変換してインスタンスを返す
+    // instructions[i]はアドレス start + i * 2 の命令
+    Block compile(int start, int[] instructions, int length) throws ReflectiveOperationException {
+        return define(generate(start, instructions, length));
+    }
+
+    // generateで生成したクラスファイルを定義してインスタンスを返す(TranslationCacheから読んだものにも使う)
+    Block define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup blockLookup = lookup.defineHiddenClass(bytes, true);
+        try {
+            return (Block) blockLookup
+                    .findConstructor(blockLookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // 基本ブロック内で展開できる命令か
+    static boolean isInlined(int handler) {
+        switch (handler) {
+            case Instruction.SYS:
+            case Instruction.LD_VX_KK:
+            case Instruction.ADD_VX_KK:
+            case Instruction.LD_VX_VY:
+            case Instruction.OR:
+            case Instruction.AND:
+            case Instruction.XOR:
+            case Instruction.LD_I:
+            case Instruction.ADD_I_VX:
+            case Instruction.LD_VX_DT:
+            case Instruction.LD_DT_VX:
+            case Instruction.LD_ST_VX:
+            case Instruction.LD_F_VX:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 命令列のクラスファイルを生成する
+    static byte[] generate(int start, int[] instructions, int length) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef("chip8/Block" + Integer.toHexString(start));
+        int superClass = pool.classRef("java/lang/Object");
+        int blockInterface = pool.classRef(BLOCK_INTERFACE);
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int fieldI = pool.fieldRef(CPU_CLASS, "I", "I");
+        int fieldPc = pool.fieldRef(CPU_CLASS, "pc", "I");
+        int fieldDelay = pool.fieldRef(CPU_CLASS, "delayTimer", "I");
+        int fieldSound = pool.fieldRef(CPU_CLASS, "soundTimer", "I");
+        int execute = pool.methodRef(CPU_CLASS, "execute", "(I)V");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("()V");
+        int runName = pool.utf8("run");
+        int runDesc = pool.utf8("(L" + CPU_CLASS + ";)V");
+        int codeName = pool.utf8("Code");
+
+        // run(CPU)の本体
+        Code code = new Code(pool);
+        boolean pcSet = false;
+        for (int i = 0; i < length; i++) {
+            int instruction = instructions[i];
+            int x = Instruction.x(instruction);
+            int y = Instruction.y(instruction);
+            pcSet = false;
+            switch (Instruction.handler(instruction)) {
+                case Instruction.SYS:
+                    break;
+                // V[x] = kk
+                case Instruction.LD_VX_KK:
+                    code.registers().push(x).push(Instruction.kk(instruction)).op(IASTORE);
+                    break;
+                // V[x] = (V[x] + kk) & 0xFF
+                case Instruction.ADD_VX_KK:
+                    code.registers().push(x).op(DUP2).op(IALOAD).push(Instruction.kk(instruction)).op(IADD)
+                            .push(0xFF).op(IAND).op(IASTORE);
+                    break;
+                // V[x] = V[y]
+                case Instruction.LD_VX_VY:
+                    code.registers().push(x).registers().push(y).op(IALOAD).op(IASTORE);
+                    break;
+                // V[x] op= V[y]
+                case Instruction.OR:
+                case Instruction.AND:
+                case Instruction.XOR:
+                    int op = Instruction.handler(instruction) == Instruction.OR ? IOR
+                            : Instruction.handler(instruction) == Instruction.AND ? IAND : IXOR;
+                    code.registers().push(x).op(DUP2).op(IALOAD).registers().push(y).op(IALOAD).op(op).op(IASTORE);
+                    break;
+                // I = nnn
+                case Instruction.LD_I:
+                    code.op(ALOAD_1).push(Instruction.nnn(instruction)).field(PUTFIELD, fieldI);
+                    break;
+                // I += V[x]
+                case Instruction.ADD_I_VX:
+                    code.op(ALOAD_1).op(DUP).field(GETFIELD, fieldI).registers().push(x).op(IALOAD).op(IADD)
+                            .field(PUTFIELD, fieldI);
+                    break;
+                // V[x] = delayTimer
+                case Instruction.LD_VX_DT:
+                    code.registers().push(x).op(ALOAD_1).field(GETFIELD, fieldDelay).op(IASTORE);
+                    break;
+                // delayTimer = V[x]
+                case Instruction.LD_DT_VX:
+                    code.op(ALOAD_1).registers().push(x).op(IALOAD).field(PUTFIELD, fieldDelay);
+                    break;
+                // soundTimer = V[x]
+                case Instruction.LD_ST_VX:
+                    code.op(ALOAD_1).registers().push(x).op(IALOAD).field(PUTFIELD, fieldSound);
+                    break;
+                // I = SPRITE_START_ADDRESS + V[x] * 5
+                case Instruction.LD_F_VX:
+                    code.op(ALOAD_1).registers().push(x).op(IALOAD).push(5).op(IMUL)
+                            .push(Memory.SPRITE_START_ADDRESS).op(IADD).field(PUTFIELD, fieldI);
+                    break;
+                // それ以外はpcを合わせてインタプリタで実行
+                default:
+                    code.op(ALOAD_1).push(start + i * 2).field(PUTFIELD, fieldPc);
+                    code.op(ALOAD_1).push(instruction).field(INVOKEVIRTUAL, execute);
+                    pcSet = true;
+                    break;
+            }
+        }
+        if (!pcSet) {
+            code.op(ALOAD_1).push(start + length * 2).field(PUTFIELD, fieldPc);
+        }
+        code.op(RETURN);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            // Java 8形式(分岐が無いのでスタックマップ不要)
+            out.writeShort(52);
+            pool.writeTo(out);
+            // public final super
+            out.writeShort(0x0031);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(blockInterface);
+            // フィールド無し
+            out.writeShort(0);
+            out.writeShort(2);
+
+            // public <init>()
+            byte[] initCode = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                    (byte) RETURN};
+            writeMethod(out, 0x0001, initName, initDesc, codeName, 1, 1, initCode);
+            // public run(CPU)
+            writeMethod(out, 0x0001, runName, runDesc, codeName, 8, 2, code.toByteArray());
+
+            // 属性無し
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName,
+            int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        // 例外テーブル・属性無し
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    // メソッド本体のバイトコード
+    private static final class Code {
+        private final ConstantPool pool;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int fieldV;
+
+        Code(ConstantPool pool) {
+            this.pool = pool;
+            this.fieldV = pool.fieldRef(CPU_CLASS, "V", "[I");
+        }
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        // cpu.V を積む
+        Code registers() {
+            return op(ALOAD_1).field(GETFIELD, fieldV);
+        }
+
+        Code field(int opcode, int index) {
+            bytes.write(opcode);
+            bytes.write(index >> 8);
+            bytes.write(index);
+            return this;
+        }
+
+        Code push(int value) {
+            if (value >= 0 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                bytes.write(value >> 8);
+                bytes.write(value);
+            } else {
+                field(LDC_W, pool.integer(value));
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // コンスタントプール
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, o -> o.writeUTF(value));
+        }
+
+        int integer(int value) {
+            return entry("I" + value, 3, o -> o.writeInt(value));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 7, o -> o.writeShort(nameIndex));
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + ":" + descriptor, 12, o -> {
+                o.writeShort(nameIndex);
+                o.writeShort(descriptorIndex);
+            });
+            return entry("M" + tag + owner + "." + name + ":" + descriptor, tag, o -> {
+                o.writeShort(classIndex);
+                o.writeShort(nameAndType);
+            });
+        }
+
+        private interface Body {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        private int entry(String key, int tag, Body body) {
+            Integer existing = entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                out.writeByte(tag);
+                body.write(out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            int index = count++;
+            entries.put(key, index);
+            return index;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            out.flush();
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+    }
+}
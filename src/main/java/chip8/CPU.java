@@ -1,35 +1,73 @@
 package chip8;
 
+import java.util.Arrays;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class CPU {
+public class CPU implements ExecutionEngine {
 
     private static final Logger logger = LoggerFactory.getLogger(CPU.class);
 
+    // RPLフラグの数(SUPER-CHIP 1.1はV0～V7)
+    static final int RPL_FLAGS = 8;
+
     private Memory memory;
     private Display display;
     private InputHandler inputHandler;
 
+    // レジスタ類はRecompilerが生成するクラスから直接操作するためパッケージプライベート
     // 汎用レジスタ
-    private int[] V = new int[16];
+    int[] V = new int[16];
     // インデックスレジスタ
-    private int I;
+    int I;
     // プログラムカウンタ
-    private int pc;
+    int pc;
 
     // スタック・スタックポインタ
-    private int[] stack = new int[16];
-    private int sp;
+    int[] stack = new int[16];
+    int sp;
 
     // タイマー
-    private int delayTimer;
-    private int soundTimer;
+    int delayTimer;
+    int soundTimer;
+
+    // Fx0Aのキー待ち状態(待っている間はFx0Aを繰り返し実行し、スレッドはブロックしない)
+    boolean waitingForKey;
+    // キー待ち中に押されたキー(-1は未入力)
+    int waitPressedKey = -1;
+
+    // SUPER-CHIPのRPLフラグ(Fx75/Fx85)
+    int[] rpl = new int[RPL_FLAGS];
+
+    // 互換性の設定(デコード時に命令を置き換える)
+    private Quirks quirks = Quirks.DEFAULT;
+
+    // Cxkk用の乱数(シードを指定すれば再現できる)
+    final SeededRandom random = new SeededRandom(0);
+
+    // アドレスごとのデコード済み命令キャッシュ(0は未デコード)
+    // Memoryと同じ256バイトのページに分け、ページは最初にデコードした時に確保する
+    // (ROMが使うのは数ページなので、大量のインスタンスでも1つあたり数KBで済む)
+    // 未確保のページは共有のEMPTY_PAGEを指す(読むと常に未デコード、書き込まないこと)
+    private static final int[] EMPTY_PAGE = new int[Memory.PAGE_SIZE];
+    private final int[][] decodeCache = new int[Memory.PAGE_COUNT][];
+
+    // 実行統計(nullの時は計測しない)
+    private Metrics metrics;
+    // プロファイラ(nullの時は記録しない)
+    private Profiler profiler;
+    // ブザーの出力先(nullの時は鳴らさない)
+    private SoundEngine sound;
+    // デバッガ(nullの時は通常の実行ループを使う)
+    private Debugger debugger;
 
     public CPU(Memory memory, Display display, InputHandler inputHandler) {
         this.memory = memory;
         this.display = display;
         this.inputHandler = inputHandler;
+        Arrays.fill(decodeCache, EMPTY_PAGE);
+        memory.addWriteListener(this::invalidate);
         reset();
     }
 
@@ -43,275 +81,641 @@ public class CPU {
         sp = 0;
         delayTimer = 0;
         soundTimer = 0;
+        waitingForKey = false;
+        waitPressedKey = -1;
         for (int i = 0; i < stack.length; i++) {
             stack[i] = 0;
         }
+        Arrays.fill(rpl, 0);
+    }
+
+    // 最大budget命令を実行する
+    @Override
+    public int run(int budget) {
+        if (debugger != null) {
+            return runDebug(budget);
+        }
+        if (metrics != null || profiler != null) {
+            return runCounted(budget);
+        }
+        int i = 0;
+        while (i < budget) {
+            int instruction = decoded();
+            int handler = Instruction.handler(instruction);
+            if (handler == Instruction.JP_IDLE || handler == Instruction.LD_VX_K) {
+                i += idle(instruction, budget - i);
+            } else {
+                execute(instruction);
+                i++;
+            }
+        }
+        return budget;
+    }
+
+    // 命令の種類ごとに数えながら(プロファイラにも記録しながら)実行する
+    private int runCounted(int budget) {
+        int i = 0;
+        while (i < budget) {
+            int instruction = decoded();
+            int handler = Instruction.handler(instruction);
+            if (handler == Instruction.JP_IDLE || handler == Instruction.LD_VX_K) {
+                // idle()の中で数える
+                i += idle(instruction, budget - i);
+            } else {
+                if (metrics != null) {
+                    metrics.instruction(handler);
+                }
+                if (profiler != null) {
+                    profiler.instructions(this, pc, 1);
+                }
+                execute(instruction);
+                i++;
+            }
+        }
+        return budget;
+    }
+
+    // デバッガを通しながら1命令ずつ実行し、実行した命令数を返す(止まった場合は予算より少ない)
+    // 命令ごとに止める位置を判定するため待機ループの早送りはしない
+    private int runDebug(int budget) {
+        Debugger d = debugger;
+        int i = 0;
+        while (i < budget) {
+            int instruction = decoded();
+            if (!d.beforeInstruction(this, instruction)) {
+                break;
+            }
+            int address = pc;
+            if (metrics != null) {
+                metrics.instruction(Instruction.handler(instruction));
+            }
+            if (profiler != null) {
+                profiler.instructions(this, address, 1);
+            }
+            execute(instruction);
+            d.afterInstruction(this, address, instruction);
+            i++;
+        }
+        return i;
+    }
+
+    // pcの命令が待機中ならその命令を実行して早送りし、消費した命令数を返す(待機中でなければ0)
+    // Recompilerがブロックを実行する前に呼ぶ
+    int skipIdle(int remaining) {
+        int instruction = cached(pc);
+        int handler = Instruction.handler(instruction);
+        if (handler == Instruction.JP_IDLE || handler == Instruction.LD_VX_K) {
+            return idle(instruction, remaining);
+        }
+        return 0;
+    }
+
+    // 待機ループの命令を実行し、残りremaining命令のうち消費した命令数を返す
+    // 待機中はタイマーの更新(=予算の終わり)まで状態が変わらないので、変わらない分の周回をまとめて省く
+    // 省いた後の状態は1命令ずつ実行した場合と同じになる
+    private int idle(int instruction, int remaining) {
+        int start = pc;
+        int consumed;
+        if (Instruction.handler(instruction) == Instruction.LD_VX_K) {
+            execute(instruction);
+            // キーの入力が無ければ次の予算まで同じ命令を繰り返すだけ
+            consumed = waitingForKey ? remaining : 1;
+        } else {
+            int address = pc;
+            pc = Instruction.nnn(instruction);
+            // 前回の判定の後にタイマーやキーが変わってループを抜ける場合は、普通に実行する
+            if (remaining == 1 || leavesIdleLoop(address, pc)) {
+                consumed = 1;
+            } else {
+                // ループの命令数(ジャンプ先からこのジャンプまで)
+                int length = (address - pc) / 2 + 1;
+                consumed = 1 + (remaining - 1) / length * length;
+                if (length == 3) {
+                    // 省いた周回のFx07の結果
+                    V[Instruction.x(opcodeAt(pc))] = delayTimer;
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.instruction(Instruction.handler(instruction));
+            metrics.idle(consumed - 1);
+        }
+        if (profiler != null) {
+            // 省いた周回の命令もループの末尾の命令に数える
+            profiler.repeated(this, start, consumed);
+        }
+        return consumed;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    void setSound(SoundEngine sound) {
+        this.sound = sound;
+    }
+
+    void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+    }
+
+    // 互換性の設定を変える(デコード済みの命令は捨てる、Recompilerのブロックは作り直さないので実行開始前に呼ぶこと)
+    public void setQuirks(Quirks quirks) {
+        this.quirks = quirks;
+        Arrays.fill(decodeCache, EMPTY_PAGE);
     }
 
-    // 一サイクルの処理
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    // Dxy0で16x16のスプライトを描くか(128x64 か、Quirks.largeSprites)
+    boolean drawsLargeSprites() {
+        return quirks.largeSprites() || display.isHires();
+    }
+
+    // 一サイクルの処理(タイマーはFrameSchedulerが60Hzで更新する)
     public void executeCycle() {
-        int opcode = fetchOpcode();
-        decodeAndExecute(opcode);
-        updateTimers();
+        execute(decoded());
+    }
+
+    // addressのデコード済み命令(0は未デコード)
+    private int cached(int address) {
+        return decodeCache[address >>> Memory.PAGE_SHIFT][address & (Memory.PAGE_SIZE - 1)];
+    }
+
+    // pcのデコード済み命令
+    private int decoded() {
+        int instruction = cached(pc);
+        if (instruction == 0) {
+            instruction = quirks.variant(Instruction.decode(fetchOpcode()));
+            if (Instruction.handler(instruction) == Instruction.JP
+                    && isIdleLoop(pc, Instruction.nnn(instruction))) {
+                instruction = (Instruction.JP_IDLE << 16) | Instruction.opcode(instruction);
+            } else if (Instruction.handler(instruction) == Instruction.EXIT) {
+                // 00FDは自分自身へのジャンプとして待機ループと同じく早送りする
+                instruction = (Instruction.JP_IDLE << 16) | 0x1000 | pc;
+            }
+            int[] page = decodeCache[pc >>> Memory.PAGE_SHIFT];
+            if (page == EMPTY_PAGE) {
+                page = new int[Memory.PAGE_SIZE];
+                decodeCache[pc >>> Memory.PAGE_SHIFT] = page;
+            }
+            page[pc & (Memory.PAGE_SIZE - 1)] = instruction;
+        }
+        return instruction;
+    }
+
+    // addressのジャンプ命令がtargetへ戻る待機ループか
+    // 副作用が無く、抜ける条件が予算の途中で変わらない次の形だけを対象にする
+    //   1nnn(自分自身へのジャンプ)
+    //   Ex9E/ExA1 → 1nnn(キーの状態を待つ)
+    //   Fx07 → 3xkk/4xkk → 1nnn(ディレイタイマーの値を待つ)
+    private boolean isIdleLoop(int address, int target) {
+        if (target == address) {
+            return true;
+        }
+        if (address - target == 2) {
+            int handler = Instruction.handler(Instruction.decode(opcodeAt(target)));
+            return handler == Instruction.SKP || handler == Instruction.SKNP;
+        }
+        if (address - target == 4) {
+            int read = opcodeAt(target);
+            int test = opcodeAt(target + 2);
+            int handler = Instruction.handler(Instruction.decode(test));
+            return (read & 0xF0FF) == 0xF007
+                    && (handler == Instruction.SE_VX_KK || handler == Instruction.SNE_VX_KK)
+                    && Instruction.x(read) == Instruction.x(test);
+        }
+        return false;
+    }
+
+    // 待機ループを今の状態でもう一周した時に抜けるか
+    private boolean leavesIdleLoop(int address, int target) {
+        if (address == target) {
+            return false;
+        }
+        int test = Instruction.decode(opcodeAt(address - 2));
+        int x = Instruction.x(test);
+        switch (Instruction.handler(test)) {
+            case Instruction.SKP:
+                return inputHandler.isKeyPressed(V[x]);
+            case Instruction.SKNP:
+                return !inputHandler.isKeyPressed(V[x]);
+            case Instruction.SE_VX_KK:
+                return delayTimer == Instruction.kk(test);
+            default:
+                return delayTimer != Instruction.kk(test);
+        }
+    }
+
+    // メモリ書き込み時に、書き込まれたバイトを含む命令のキャッシュを破棄する
+    // 待機ループの判定は後ろのジャンプ命令に記録するため、その分(2命令)後ろまで破棄する
+    private void invalidate(int address, int length) {
+        int from = Math.max(0, address - 1);
+        int to = Math.min(Memory.SIZE, address + length + 4);
+        for (int i = from; i < to; i++) {
+            int[] page = decodeCache[i >>> Memory.PAGE_SHIFT];
+            if (page == EMPTY_PAGE) {
+                // 未確保のページは飛ばす
+                i |= Memory.PAGE_SIZE - 1;
+            } else {
+                page[i & (Memory.PAGE_SIZE - 1)] = 0;
+            }
+        }
     }
 
     // プログラムカウンタの位置から2バイト分読み取り、オペコードに変換
     private int fetchOpcode() {
-        int highByte = Byte.toUnsignedInt(memory.getByte(pc));
-        int lowByte = Byte.toUnsignedInt(memory.getByte(pc + 1));
+        return opcodeAt(pc);
+    }
+
+    int opcodeAt(int address) {
+        int highByte = Byte.toUnsignedInt(memory.getByte(address));
+        int lowByte = Byte.toUnsignedInt(memory.getByte(address + 1));
         // 上位ビットを8ビット分左にシフトして、下位ビットとOR演算する
         return (highByte << 8) | lowByte;
     }
 
-    // オペコードのデコードと実行
-    private void decodeAndExecute(int opcode) {
-        // 第2ニブル
-        int x;
-        // 第3ニブル
-        int y;
-        // 下位8ビット
-        int kk;
-        // アドレス
-        int addr;
-        // 下位4ビット
-        int nibble;
-        // オペコードの上位四ビット
-        switch (opcode & 0xF000) {
-            case 0x0000:
-                // 00E0: CLS - 画面クリア
-                if (opcode == 0x00E0) { 
-                    display.clear();
-                    pc += 2;
-                // 00EE: RET - サブルーチンから戻る
-                } else if (opcode == 0x00EE) { 
-                    sp--;
-                    pc = stack[sp];
-                    pc += 2;
-                // 0nnn: SYS addr (未使用)
-                } else { 
-                    pc += 2;
-                }
+    // デコード済み命令の実行
+    void execute(int instruction) {
+        int x = Instruction.x(instruction);
+        int y = Instruction.y(instruction);
+        switch (Instruction.handler(instruction)) {
+            // 00E0: CLS - 画面クリア
+            case Instruction.CLS:
+                display.clear();
+                pc += 2;
+                break;
+            // 00EE: RET - サブルーチンから戻る
+            case Instruction.RET:
+                sp--;
+                pc = stack[sp];
+                pc += 2;
+                break;
+            // 0nnn: SYS addr (未使用)
+            case Instruction.SYS:
+                pc += 2;
+                break;
+            // 00Cn: SCD nibble - n行下にスクロール
+            case Instruction.SCD:
+                display.scrollDown(Instruction.n(instruction));
+                pc += 2;
+                break;
+            // 00FB: SCR - 4ピクセル右にスクロール
+            case Instruction.SCR:
+                display.scrollRight();
+                pc += 2;
+                break;
+            // 00FC: SCL - 4ピクセル左にスクロール
+            case Instruction.SCL:
+                display.scrollLeft();
+                pc += 2;
+                break;
+            // 00FD: EXIT - 停止(pcを進めない、デコード時に自分自身へのジャンプに置き換える)
+            case Instruction.EXIT:
+                break;
+            // 00FE: LOW - 64x32 に切り替え
+            case Instruction.LOW:
+                display.setHires(false);
+                pc += 2;
+                break;
+            // 00FF: HIGH - 128x64 に切り替え
+            case Instruction.HIGH:
+                display.setHires(true);
+                pc += 2;
                 break;
             // 1nnn: JP addr - アドレスnnnにジャンプ
-            case 0x1000:
-                addr = opcode & 0x0FFF;
-                pc = addr;
+            case Instruction.JP:
+            case Instruction.JP_IDLE:
+                pc = Instruction.nnn(instruction);
                 break;
             // 2nnn: CALL addr - サブルーチンの呼び出し
-            case 0x2000:
-                addr = opcode & 0x0FFF;
+            case Instruction.CALL:
                 stack[sp] = pc;
                 sp++;
-                pc = addr;
+                pc = Instruction.nnn(instruction);
                 break;
             // 3xkk: SE Vx, byte - Vx == kk の場合、次の命令をスキップ
-            case 0x3000:
-                x = (opcode & 0x0F00) >> 8;
-                kk = opcode & 0x00FF;
-                pc += (V[x] == kk) ? 4 : 2;
+            case Instruction.SE_VX_KK:
+                pc += (V[x] == Instruction.kk(instruction)) ? 4 : 2;
                 break;
             // 4xkk: SNE Vx, byte - Vx != kk の場合、次の命令をスキップ
-            case 0x4000:
-                x = (opcode & 0x0F00) >> 8;
-                kk = opcode & 0x00FF;
-                pc += (V[x] != kk) ? 4 : 2;
+            case Instruction.SNE_VX_KK:
+                pc += (V[x] != Instruction.kk(instruction)) ? 4 : 2;
                 break;
             // 5xy0: SE Vx, Vy - Vx == Vy の場合、次の命令をスキップ
-            case 0x5000:
-                x = (opcode & 0x0F00) >> 8;
-                y = (opcode & 0x00F0) >> 4;
+            case Instruction.SE_VX_VY:
                 pc += (V[x] == V[y]) ? 4 : 2;
                 break;
             // 6xkk: LD Vx, byte - Vxに定数kkをセット
-            case 0x6000:
-                x = (opcode & 0x0F00) >> 8;
-                kk = opcode & 0x00FF;
-                V[x] = kk;
+            case Instruction.LD_VX_KK:
+                V[x] = Instruction.kk(instruction);
                 pc += 2;
                 break;
             // 7xkk: ADD Vx, byte - Vxにkkを加算
-            case 0x7000: 
-                x = (opcode & 0x0F00) >> 8;
-                kk = opcode & 0x00FF;
-                V[x] = (V[x] + kk) & 0xFF;
-                pc += 2;
-                break;
-            case 0x8000:
-                x = (opcode & 0x0F00) >> 8;
-                y = (opcode & 0x00F0) >> 4;
-                switch (opcode & 0x000F) {
-                    // 8xy0: LD Vx, Vy
-                    case 0x0: 
-                        V[x] = V[y];
-                        break;
-                    // 8xy1: OR Vx, Vy
-                    case 0x1:
-                        V[x] |= V[y];
-                        break;
-                    // 8xy2: AND Vx, Vy
-                    case 0x2:
-                        V[x] &= V[y];
-                        break;
-                    // 8xy3: XOR Vx, Vy
-                    case 0x3:
-                        V[x] ^= V[y];
-                        break;
-                    // 8xy4: ADD Vx, Vy, VF = carry
-                    case 0x4:
-                        int sum = V[x] + V[y];
-                        V[0xF] = (sum > 0xFF) ? 1 : 0;
-                        V[x] = sum & 0xFF;
-                        break;
-                    // 8xy5: SUB Vx, Vy, VF = NOT borrow
-                    case 0x5:
-                        V[0xF] = (V[x] > V[y]) ? 1 : 0;
-                        V[x] = (V[x] - V[y]) & 0xFF;
-                        break;
-                    // 8xy6: SHR Vx {, Vy}
-                    case 0x6:
-                        V[0xF] = V[x] & 0x1;
-                        V[x] = V[x] >> 1;
-                        break;
-                    // 8xy7: SUBN Vx, Vy, VF = NOT borrow
-                    case 0x7:
-                        V[0xF] = (V[y] > V[x]) ? 1 : 0;
-                        V[x] = (V[y] - V[x]) & 0xFF;
-                        break;
-                    // 8xyE: SHL Vx {, Vy}
-                    case 0xE:
-                        V[0xF] = (V[x] & 0x80) >> 7;
-                        V[x] = (V[x] << 1) & 0xFF;
-                        break;
-                    default:
-                        logger.error("Unknown opcode: 0x%X\n", opcode);
-                        break;
-                }
+            case Instruction.ADD_VX_KK:
+                V[x] = (V[x] + Instruction.kk(instruction)) & 0xFF;
+                pc += 2;
+                break;
+            // 8xy0: LD Vx, Vy
+            case Instruction.LD_VX_VY:
+                V[x] = V[y];
+                pc += 2;
+                break;
+            // 8xy1: OR Vx, Vy
+            case Instruction.OR:
+                V[x] |= V[y];
+                pc += 2;
+                break;
+            // 8xy2: AND Vx, Vy
+            case Instruction.AND:
+                V[x] &= V[y];
+                pc += 2;
+                break;
+            // 8xy3: XOR Vx, Vy
+            case Instruction.XOR:
+                V[x] ^= V[y];
+                pc += 2;
+                break;
+            // 8xy4: ADD Vx, Vy, VF = carry
+            case Instruction.ADD_VX_VY:
+                int sum = V[x] + V[y];
+                V[0xF] = (sum > 0xFF) ? 1 : 0;
+                V[x] = sum & 0xFF;
+                pc += 2;
+                break;
+            // 8xy5: SUB Vx, Vy, VF = NOT borrow
+            case Instruction.SUB:
+                V[0xF] = (V[x] > V[y]) ? 1 : 0;
+                V[x] = (V[x] - V[y]) & 0xFF;
+                pc += 2;
+                break;
+            // 8xy6: SHR Vx {, Vy}
+            case Instruction.SHR:
+                V[0xF] = V[x] & 0x1;
+                V[x] = V[x] >> 1;
+                pc += 2;
+                break;
+            // 8xy7: SUBN Vx, Vy, VF = NOT borrow
+            case Instruction.SUBN:
+                V[0xF] = (V[y] > V[x]) ? 1 : 0;
+                V[x] = (V[y] - V[x]) & 0xFF;
+                pc += 2;
+                break;
+            // 8xyE: SHL Vx {, Vy}
+            case Instruction.SHL:
+                V[0xF] = (V[x] & 0x80) >> 7;
+                V[x] = (V[x] << 1) & 0xFF;
+                pc += 2;
+                break;
+            // 8xy6: SHR Vx, Vy - Vyをシフトした結果をVxに入れる(Quirks.shiftVy)
+            case Instruction.SHR_VY:
+                V[0xF] = V[y] & 0x1;
+                V[x] = V[y] >> 1;
+                pc += 2;
+                break;
+            // 8xyE: SHL Vx, Vy(Quirks.shiftVy)
+            case Instruction.SHL_VY:
+                V[0xF] = (V[y] & 0x80) >> 7;
+                V[x] = (V[y] << 1) & 0xFF;
                 pc += 2;
                 break;
             // 9xy0: SNE Vx, Vy - Vx != Vy の場合、次の命令をスキップ
-            case 0x9000:
-                x = (opcode & 0x0F00) >> 8;
-                y = (opcode & 0x00F0) >> 4;
+            case Instruction.SNE_VX_VY:
                 pc += (V[x] != V[y]) ? 4 : 2;
                 break;
             // Annn: LD I, addr - Iにnnnをセット
-            case 0xA000:
-                I = opcode & 0x0FFF;
+            case Instruction.LD_I:
+                I = Instruction.nnn(instruction);
                 pc += 2;
                 break;
             // Bnnn: JP V0, addr - V0 + nnnにジャンプ
-            case 0xB000:
-                pc = (opcode & 0x0FFF) + V[0];
+            case Instruction.JP_V0:
+                pc = Instruction.nnn(instruction) + V[0];
+                break;
+            // Bnnn: JP Vx, addr - Vx + nnnにジャンプ(Quirks.jumpVx)
+            case Instruction.JP_VX:
+                pc = Instruction.nnn(instruction) + V[x];
                 break;
             // Cxkk: RND Vx, byte - Vxに乱数 AND kkをセット
-            case 0xC000:
-                x = (opcode & 0x0F00) >> 8;
-                kk = opcode & 0x00FF;
-                V[x] = (int)(Math.random() * 256) & kk;
+            case Instruction.RND:
+                V[x] = random.nextByte() & Instruction.kk(instruction);
                 pc += 2;
                 break;
             // Dxyn: DRW Vx, Vy, nibble - スプライト描画
-            case 0xD000:
-                x = (opcode & 0x0F00) >> 8;
-                y = (opcode & 0x00F0) >> 4;
-                nibble = opcode & 0x000F;
-                boolean collision = display.drawSprite(V[x], V[y], nibble, I, memory);
+            case Instruction.DRW:
+                boolean collision = display.drawSprite(V[x], V[y], Instruction.n(instruction), I, memory);
                 V[0xF] = collision ? 1 : 0;
                 pc += 2;
                 break;
-            case 0xE000:
-                x = (opcode & 0x0F00) >> 8;
-                switch (opcode & 0x00FF) {
-                    // Ex9E: SKP Vx - キーが押されていればスキップ
-                    case 0x9E:
-                        pc += (inputHandler.isKeyPressed(V[x])) ? 4 : 2;
-                        break;
-                    // ExA1: SKNP Vx - キーが押されていなければスキップ
-                    case 0xA1:
-                        pc += (!inputHandler.isKeyPressed(V[x])) ? 4 : 2;
-                        break;
-                    default:
-                        System.err.printf("Unknown opcode: 0x%X\n", opcode);
-                        pc += 2;
-                        break;
+            // Dxyn: DRW Vx, Vy, nibble - 画面の端で切り取って描画(Quirks.clipSprites)
+            case Instruction.DRW_CLIP:
+                V[0xF] = display.drawSpriteClipped(V[x], V[y], Instruction.n(instruction), I, memory) ? 1 : 0;
+                pc += 2;
+                break;
+            // Dxy0: DRW Vx, Vy, 0 - 16x16のスプライト描画(64x32 ではQuirks.largeSpritesの時だけ)
+            case Instruction.DRW_16:
+                if (drawsLargeSprites()) {
+                    V[0xF] = display.drawLargeSprite(V[x], V[y], I, memory) ? 1 : 0;
+                } else {
+                    V[0xF] = display.drawSprite(V[x], V[y], 0, I, memory) ? 1 : 0;
+                }
+                pc += 2;
+                break;
+            // Dxy0: DRW Vx, Vy, 0 - 画面の端で切り取って描画(Quirks.clipSprites)
+            case Instruction.DRW_16_CLIP:
+                if (drawsLargeSprites()) {
+                    V[0xF] = display.drawLargeSpriteClipped(V[x], V[y], I, memory) ? 1 : 0;
+                } else {
+                    V[0xF] = display.drawSpriteClipped(V[x], V[y], 0, I, memory) ? 1 : 0;
+                }
+                pc += 2;
+                break;
+            // Ex9E: SKP Vx - キーが押されていればスキップ
+            case Instruction.SKP:
+                pc += (inputHandler.isKeyPressed(V[x])) ? 4 : 2;
+                break;
+            // ExA1: SKNP Vx - キーが押されていなければスキップ
+            case Instruction.SKNP:
+                pc += (!inputHandler.isKeyPressed(V[x])) ? 4 : 2;
+                break;
+            // Fx07: LD Vx, DT
+            case Instruction.LD_VX_DT:
+                V[x] = delayTimer;
+                pc += 2;
+                break;
+            // Fx0A: LD Vx, K - キー入力待ち(キーが押されて離されるまでpcを進めない)
+            case Instruction.LD_VX_K:
+                if (pollKeyWait()) {
+                    V[x] = waitPressedKey;
+                    waitingForKey = false;
+                    waitPressedKey = -1;
+                    pc += 2;
+                }
+                break;
+            // Fx15: LD DT, Vx
+            case Instruction.LD_DT_VX:
+                delayTimer = V[x];
+                pc += 2;
+                break;
+            // Fx18: LD ST, Vx
+            case Instruction.LD_ST_VX:
+                soundTimer = V[x];
+                pc += 2;
+                break;
+            // Fx1E: ADD I, Vx
+            case Instruction.ADD_I_VX:
+                I += V[x];
+                pc += 2;
+                break;
+            // Fx29: LD F, Vx - フォントスプライトのアドレスをIにセット
+            case Instruction.LD_F_VX:
+                I = Memory.SPRITE_START_ADDRESS + (V[x] * 5);
+                pc += 2;
+                break;
+            // Fx30: LD HF, Vx - 大きいフォントのアドレスをIにセット
+            case Instruction.LD_HF_VX:
+                I = Memory.LARGE_SPRITE_START_ADDRESS + (V[x] & 0xF) * 10;
+                pc += 2;
+                break;
+            // Fx33: LD B, Vx - BCD変換してメモリに格納
+            case Instruction.LD_B_VX:
+                memory.setByte(I, (byte)(V[x] / 100));
+                memory.setByte(I + 1, (byte)((V[x] / 10) % 10));
+                memory.setByte(I + 2, (byte)(V[x] % 10));
+                pc += 2;
+                break;
+            // Fx55: LD [I], V0～Vx
+            case Instruction.LD_I_VX:
+                for (int i = 0; i <= x; i++) {
+                    memory.setByte(I + i, (byte) V[i]);
+                }
+                pc += 2;
+                break;
+            // Fx65: LD V0～Vx, [I]
+            case Instruction.LD_VX_I:
+                for (int i = 0; i <= x; i++) {
+                    V[i] = Byte.toUnsignedInt(memory.getByte(I + i));
                 }
+                pc += 2;
                 break;
-            case 0xF000:
-                x = (opcode & 0x0F00) >> 8;
-                switch (opcode & 0x00FF) {
-                    // Fx07: LD Vx, DT
-                    case 0x07:
-                        V[x] = delayTimer;
-                        pc += 2;
-                        break;
-                    // Fx0A: LD Vx, K - キー入力待ち
-                    case 0x0A:
-                        V[x] = inputHandler.waitForKeyPress();
-                        pc += 2;
-                        break;
-                    // Fx15: LD DT, Vx
-                    case 0x15:
-                        delayTimer = V[x];
-                        pc += 2;
-                        break;
-                    // Fx18: LD ST, Vx
-                    case 0x18:
-                        soundTimer = V[x];
-                        pc += 2;
-                        break;
-                    // Fx1E: ADD I, Vx
-                    case 0x1E:
-                        I += V[x];
-                        pc += 2;
-                        break;
-                    // Fx29: LD F, Vx - フォントスプライトのアドレスをIにセット
-                    case 0x29:
-                        I = Memory.SPRITE_START_ADDRESS + (V[x] * 5);
-                        pc += 2;
-                        break;
-                    // Fx33: LD B, Vx - BCD変換してメモリに格納
-                    case 0x33:
-                        memory.setByte(I, (byte)(V[x] / 100));
-                        memory.setByte(I + 1, (byte)((V[x] / 10) % 10));
-                        memory.setByte(I + 2, (byte)(V[x] % 10));
-                        pc += 2;
-                        break;
-                    // Fx55: LD [I], V0～Vx
-                    case 0x55:
-                        for (int i = 0; i <= x; i++) {
-                            memory.setByte(I + i, (byte) V[i]);
-                        }
-                        pc += 2;
-                        break;
-                    // Fx65: LD V0～Vx, [I]
-                    case 0x65:
-                        for (int i = 0; i <= x; i++) {
-                            V[i] = Byte.toUnsignedInt(memory.getByte(I + i));
-                        }
-                        pc += 2;
-                        break;
-                    default:
-                        System.err.printf("Unknown opcode: 0x%X\n", opcode);
-                        pc += 2;
-                        break;
+            // Fx55: LD [I], V0～Vx - 格納後にIを進める(Quirks.incrementI)
+            case Instruction.LD_I_VX_INC:
+                for (int i = 0; i <= x; i++) {
+                    memory.setByte(I + i, (byte) V[i]);
                 }
+                I += x + 1;
+                pc += 2;
+                break;
+            // Fx65: LD V0～Vx, [I] - 読み込み後にIを進める(Quirks.incrementI)
+            case Instruction.LD_VX_I_INC:
+                for (int i = 0; i <= x; i++) {
+                    V[i] = Byte.toUnsignedInt(memory.getByte(I + i));
+                }
+                I += x + 1;
+                pc += 2;
+                break;
+            // Fx75: LD R, Vx - V0～VxをRPLフラグに保存
+            case Instruction.LD_R_VX:
+                System.arraycopy(V, 0, rpl, 0, Math.min(x + 1, RPL_FLAGS));
+                pc += 2;
+                break;
+            // Fx85: LD Vx, R - RPLフラグからV0～Vxに読み込み
+            case Instruction.LD_VX_R:
+                System.arraycopy(rpl, 0, V, 0, Math.min(x + 1, RPL_FLAGS));
+                pc += 2;
                 break;
             default:
-                System.err.printf("Unknown opcode: 0x%X\n", opcode);
+                logger.error("Unknown opcode: 0x{}", Integer.toHexString(Instruction.opcode(instruction)).toUpperCase());
+                if (metrics != null) {
+                    metrics.unknownOpcode();
+                }
                 pc += 2;
                 break;
         }
     }
 
-    private void updateTimers() {
+    // キー待ちの入力を確認し、押されたキーが離されたらtrueを返す
+    private boolean pollKeyWait() {
+        if (!waitingForKey) {
+            // 待ち始める前のイベントは対象外
+            inputHandler.clearEvents();
+            waitingForKey = true;
+            if (metrics != null) {
+                metrics.keyWait();
+            }
+            return false;
+        }
+        long event;
+        while ((event = inputHandler.pollEvent()) != KeyEventQueue.EMPTY) {
+            int key = InputHandler.eventKey(event);
+            if (InputHandler.eventPressed(event)) {
+                waitPressedKey = key;
+            } else if (key == waitPressedKey) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Fx0Aでキー入力を待っているか
+    public boolean isWaitingForKey() {
+        return waitingForKey;
+    }
+
+    // 60Hzのタイマー更新
+    @Override
+    public void updateTimers() {
         if (delayTimer > 0) {
             delayTimer--;
         }
-        if (soundTimer > 0) {
+        // このティックの間はサウンドタイマーが0でなければ鳴らす
+        boolean gate = soundTimer > 0;
+        if (gate) {
             soundTimer--;
-            if (soundTimer == 0) {
-                // TODO: 未実装
-            }
         }
+        if (sound != null) {
+            sound.tick(gate);
+        }
+    }
+
+    // 他のCPUのレジスタ状態をコピー
+    void copyStateFrom(CPU other) {
+        System.arraycopy(other.V, 0, V, 0, V.length);
+        I = other.I;
+        pc = other.pc;
+        System.arraycopy(other.stack, 0, stack, 0, stack.length);
+        sp = other.sp;
+        delayTimer = other.delayTimer;
+        soundTimer = other.soundTimer;
+        waitingForKey = other.waitingForKey;
+        waitPressedKey = other.waitPressedKey;
+        System.arraycopy(other.rpl, 0, rpl, 0, RPL_FLAGS);
+        random.setState(other.random.getState());
+    }
+
+    // 乱数のシードを設定する
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    // レジスタ状態の比較
+    boolean stateEquals(CPU other) {
+        return Arrays.equals(V, other.V) && I == other.I && pc == other.pc
+                && Arrays.equals(stack, other.stack) && sp == other.sp
+                && delayTimer == other.delayTimer && soundTimer == other.soundTimer
+                && waitingForKey == other.waitingForKey && waitPressedKey == other.waitPressedKey
+                && Arrays.equals(rpl, other.rpl) && random.getState() == other.random.getState();
+    }
+
+    // レジスタ状態の文字列表現(ログ用)
+    public String describeState() {
+        return String.format("pc=%03X I=%03X sp=%d DT=%d ST=%d V=%s stack=%s",
+                pc, I, sp, delayTimer, soundTimer, Arrays.toString(V), Arrays.toString(stack));
     }
 }
@@ -1,5 +1,9 @@
 package chip8;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,36 +15,422 @@ public class Chip8 {
     private Memory memory;
     private Display display;
     private InputHandler inputHandler;
+    private ExecutionEngine engine;
+    // 実行に使うエンジン(デバッガが有効な間はインタプリタ)
+    private ExecutionEngine active;
+    private final ExecutionEngine.Kind engineKind;
+    // 描画側へのフレーム受け渡し
+    private final FramePublisher framePublisher = new FramePublisher();
+    // セーブステート復元用の作業領域
+    private final long[] rowScratch = new long[Display.FRAME_SIZE];
+
+    // 1フレーム(1/60秒)あたりの命令数
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 10;
+    private int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+    private FrameScheduler scheduler;
+    // 実行統計(nullの時は計測しない)
+    private Metrics metrics;
+    // 有効にするプロファイラ(実行中に切り替えられるよう、フレームの開始時にprofilerへ反映する)
+    private volatile Profiler requestedProfiler;
+    private Profiler profiler;
+    // ブザー(nullの時は鳴らさない)
+    private SoundEngine sound;
+    // 有効にするデバッガ(プロファイラと同じくフレームの開始時にdebuggerへ反映する)
+    private volatile Debugger requestedDebugger;
+    private Debugger debugger;
+    // 事前変換したブロックのキャッシュ(nullの時は使わない、RecompilerとLockstepEngineのみ)
+    private TranslationCache translationCache;
+    // ROMの読み込み後、最初の実行時にキャッシュからブロックを登録する
+    private boolean translationPending;
+
+    // 実行したフレーム数(入力ログのフレーム番号)
+    private long frame;
+    // 読み込んだROMのハッシュ(不明の場合はnull)
+    private String romHash;
+    // Cxkkの乱数のシード
+    private long seed;
+    // 記録中・再生中の入力ログ
+    private InputLog recording;
+    private InputLog.Player replay;
 
     public Chip8() {
-        memory = new Memory();
+        this(ExecutionEngine.Kind.INTERPRETER);
+    }
+
+    public Chip8(ExecutionEngine.Kind engineKind) {
+        // フォントセットは共有イメージに含まれる
+        this(engineKind, new Memory());
+    }
+
+    // メモリの実装を指定して作る(OffHeapMemoryなど)
+    public Chip8(ExecutionEngine.Kind engineKind, Memory memory) {
+        this.memory = memory;
+        this.engineKind = engineKind;
         display = new Display();
         inputHandler = new InputHandler();
         cpu = new CPU(memory, display, inputHandler);
-        initialize();
-    }
-
-    // 初期化
-    private void initialize() {
-        // フォントセットのロード
-        memory.loadDefaultFontSet();
+        engine = switch (engineKind) {
+            case INTERPRETER -> cpu;
+            case RECOMPILER -> new Recompiler(cpu, memory);
+            case LOCKSTEP -> new LockstepEngine(cpu, memory, display, inputHandler);
+        };
+        active = engine;
+        setSeed(System.nanoTime());
     }
 
     // ROMの読み込み
     public void loadROM(String path) {
-        memory.loadROM(path);
+        try {
+            loadROM(RomLibrary.getInstance().load(Paths.get(path)));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Failed to load ROM", e);
+        }
+    }
+
+    // ROMの読み込み(RomLibraryの共有イメージから始める)
+    public void loadROM(RomLibrary.Rom rom) {
+        memory.loadImage(rom.image());
+        romHash = rom.hash();
+        translationPending = translationCache != null;
+    }
+
+    // ROMの読み込み(バイト列から)
+    public void loadROM(byte[] romData) {
+        memory.loadROM(romData);
+        romHash = null;
+        translationPending = false;
+    }
+
+    // Cxkkの乱数のシードを設定する(同じシード・同じ入力なら同じ結果になる)
+    public void setSeed(long seed) {
+        this.seed = seed;
+        cpu.setSeed(seed);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // 入力の記録を始める(最初のフレームの実行前に呼ぶこと)
+    // 以降のキー操作はフレームの先頭で反映され、フレーム番号とともに記録される
+    public void startRecording() {
+        if (frame != 0) {
+            throw new IllegalStateException("Recording must start before the first frame");
+        }
+        recording = new InputLog(romHash, seed, instructionsPerFrame, cpu.getQuirks());
+        inputHandler.setLatched(true);
+    }
+
+    // 入力の記録を終えて入力ログを返す(エミュレーションの停止後に呼ぶこと)
+    public InputLog stopRecording() {
+        InputLog log = recording;
+        if (log == null) {
+            throw new IllegalStateException("Not recording");
+        }
+        recording = null;
+        inputHandler.setLatched(false);
+        log.finish(frame, display.hash());
+        return log;
+    }
+
+    // 入力ログの再生を準備する(最初のフレームの実行前に呼び、runFrames(log.getFrames())で実行する)
+    // シードと1フレームあたりの命令数は記録時の値に合わせる
+    // (実行エンジンは記録時と違ってもよい、どのエンジンもフレームの境界ではインタプリタと同じ状態になる)
+    public void startReplay(InputLog log) {
+        if (frame != 0) {
+            throw new IllegalStateException("Replay must start before the first frame");
+        }
+        if (log.getRomHash() != null && romHash != null && !log.getRomHash().equals(romHash)) {
+            throw new IllegalArgumentException("Input log was recorded with a different ROM: " + log.getRomHash());
+        }
+        setSeed(log.getSeed());
+        setInstructionsPerFrame(log.getInstructionsPerFrame());
+        setQuirks(log.getQuirks());
+        replay = log.player();
+    }
+
+    // 描画のあったフレームをファイルに記録する(エミュレーションの停止後にcloseすること)
+    public FrameRecorder recordFrames(Path path) throws IOException {
+        FrameRecorder recorder = new FrameRecorder(path);
+        display.addFrameListener(recorder);
+        return recorder;
     }
 
-    // 処理のスタート
+    // 処理のスタート(実時間)
     public void start() {
-        while(true) {
-            cpu.executeCycle();
-            try {
-                Thread.sleep(2);
-            } catch (InterruptedException e) {
-                logger.error("Main loop sleep interrupted", e);
+        start(FrameScheduler.realTime());
+    }
+
+    // 指定したスケジューラで処理をスタート
+    public void start(FrameScheduler scheduler) {
+        this.scheduler = scheduler;
+        logger.info("Starting: mode={}, instructionsPerFrame={}", scheduler.getMode(), instructionsPerFrame);
+        scheduler.run(this::runFrame);
+    }
+
+    // 処理の停止
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+    }
+
+    // 1フレーム分の命令を実行し、タイマーを1回更新して、実行した命令数を返す(デバッガで止まった場合は少ない)
+    // 描画があったフレームは描画側へ公開し、Displayのフレーム完了の通知先にも渡す
+    public int runFrame() {
+        long start = metrics != null ? System.nanoTime() : 0;
+        long number = frame++;
+        if (translationPending) {
+            applyTranslationCache();
+        }
+        if (requestedProfiler != profiler) {
+            applyProfiler();
+        }
+        if (requestedDebugger != debugger) {
+            applyDebugger();
+        }
+        if (replay != null) {
+            replay.apply(number, inputHandler);
+        } else if (recording != null) {
+            inputHandler.latch(number, recording);
+        }
+        int executed = active.run(instructionsPerFrame);
+        // デバッガで止めている間はタイマーも止める
+        if (debugger == null || !debugger.isStopped()) {
+            active.updateTimers();
+        }
+        if (display.consumeDrawFlag()) {
+            framePublisher.publish(display);
+            display.frameCompleted(number);
+        }
+        if (metrics != null) {
+            metrics.frame(System.nanoTime() - start);
+        }
+        return executed;
+    }
+
+    // 指定フレーム数をスリープなしで実行し、実行した命令数を返す(ヘッドレス用)
+    // デバッガで止まった場合はそのフレームで終わる
+    public long runFrames(long frames) {
+        long executed = 0;
+        for (long i = 0; i < frames; i++) {
+            executed += runFrame();
+            if (debugger != null && debugger.isStopped()) {
+                break;
+            }
+        }
+        return executed;
+    }
+
+    // 指定サイクル数をスリープなしで実行(ヘッドレス用)
+    // タイマーはinstructionsPerFrame命令ごとに更新する
+    // (フレームとして数えないため、入力ログの記録・再生にはrunFrame/runFramesを使う)
+    // デバッガで止まった場合はそこで終わり、実行した命令数を返す
+    public long runCycles(long cycles) {
+        if (translationPending) {
+            applyTranslationCache();
+        }
+        if (requestedProfiler != profiler) {
+            applyProfiler();
+        }
+        if (requestedDebugger != debugger) {
+            applyDebugger();
+        }
+        long remaining = cycles;
+        while (remaining > 0) {
+            int budget = (int) Math.min(remaining, instructionsPerFrame);
+            remaining -= active.run(budget);
+            if (debugger != null && debugger.isStopped()) {
+                break;
+            }
+            if (budget == instructionsPerFrame) {
+                active.updateTimers();
             }
         }
+        return cycles - remaining;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        if (instructionsPerFrame <= 0) {
+            throw new IllegalArgumentException("instructionsPerFrame must be positive: " + instructionsPerFrame);
+        }
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    // 実行統計を有効にし、MetricsRegistryに登録する(実行開始前に呼ぶこと)
+    public Metrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new Metrics();
+            cpu.setMetrics(metrics);
+            display.setMetrics(metrics);
+            if (engine instanceof Recompiler recompiler) {
+                recompiler.setMetrics(metrics);
+            } else if (engine instanceof LockstepEngine lockstep) {
+                lockstep.setMetrics(metrics);
+            }
+            MetricsRegistry.getInstance().add(metrics);
+        }
+        return metrics;
+    }
+
+    // 実行統計を無効にする(それまでの値はMetricsRegistryの合計に残る)
+    public void disableMetrics() {
+        if (metrics != null) {
+            cpu.setMetrics(null);
+            display.setMetrics(null);
+            if (engine instanceof Recompiler recompiler) {
+                recompiler.setMetrics(null);
+            } else if (engine instanceof LockstepEngine lockstep) {
+                lockstep.setMetrics(null);
+            }
+            MetricsRegistry.getInstance().remove(metrics);
+            metrics = null;
+        }
+    }
+
+    // 互換性の設定を変える(実行開始前に呼ぶこと)
+    public void setQuirks(Quirks quirks) {
+        if (engine instanceof LockstepEngine lockstep) {
+            lockstep.setQuirks(quirks);
+        } else {
+            cpu.setQuirks(quirks);
+        }
+    }
+
+    // 事前変換したブロックのキャッシュを使う(nullで使わない、実行開始前に呼ぶこと)
+    // ROMのハッシュが分かる読み込み方(パス・RomLibrary)の場合だけ、最初の実行時にそのROMのブロックを登録する
+    // キャッシュに無ければ解析してコンパイルし、キャッシュに書く
+    public void setTranslationCache(TranslationCache translationCache) {
+        this.translationCache = translationCache;
+        translationPending = translationCache != null && romHash != null;
+    }
+
+    private void applyTranslationCache() {
+        translationPending = false;
+        Recompiler recompiler = engine instanceof Recompiler r ? r
+                : engine instanceof LockstepEngine lockstep ? lockstep.getRecompiler() : null;
+        if (recompiler != null) {
+            translationCache.preload(recompiler, memory, romHash, cpu.getQuirks());
+        }
+    }
+
+    public Quirks getQuirks() {
+        return cpu.getQuirks();
+    }
+
+    // サウンドタイマーのブザーをsinkに出力する(実行開始前に呼ぶこと)
+    public SoundEngine enableSound(SoundSink sink) {
+        if (sound != null) {
+            throw new IllegalStateException("Sound is already enabled");
+        }
+        sound = new SoundEngine(sink);
+        cpu.setSound(sound);
+        return sound;
+    }
+
+    // ブザーを止めて出力先を閉じる(エミュレーションの停止後に呼ぶこと)
+    public void disableSound() throws IOException {
+        if (sound != null) {
+            cpu.setSound(null);
+            SoundEngine closing = sound;
+            sound = null;
+            closing.close();
+        }
+    }
+
+    // プロファイラを有効にする(nullで無効)
+    // 実行中に呼んでもよく、次のフレームの開始時に反映される
+    public void setProfiler(Profiler profiler) {
+        requestedProfiler = profiler;
+    }
+
+    private void applyProfiler() {
+        profiler = requestedProfiler;
+        cpu.setProfiler(profiler);
+        if (engine instanceof Recompiler recompiler) {
+            recompiler.setProfiler(profiler);
+        } else if (engine instanceof LockstepEngine lockstep) {
+            lockstep.setProfiler(profiler);
+        }
+    }
+
+    // デバッガを有効にする(nullで無効)
+    // 実行中に呼んでもよく、次のフレームの開始時に反映される
+    public void setDebugger(Debugger debugger) {
+        requestedDebugger = debugger;
+    }
+
+    public Debugger getDebugger() {
+        return requestedDebugger;
+    }
+
+    private void applyDebugger() {
+        debugger = requestedDebugger;
+        cpu.setDebugger(debugger);
+        active = debugger != null ? cpu : engine;
+        if (debugger == null && engine instanceof LockstepEngine lockstep) {
+            // デバッグ中はインタプリタ側だけが進んでいるので比較用の状態を揃え直す
+            lockstep.resync();
+        }
+    }
+
+    // 実行統計(無効の場合はnull)
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // 動作中のスケジューラ(ジッターの参照用)
+    public FrameScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // 実行したフレーム数
+    public long getFrameCount() {
+        return frame;
+    }
+
+    // 現在のフレームバッファのハッシュ値
+    public long framebufferHash() {
+        return display.hash();
+    }
+
+    // 現在の状態をセーブステートとして取得
+    public byte[] snapshot() {
+        byte[] state = new byte[SaveState.SIZE];
+        snapshot(state);
+        return state;
+    }
+
+    // 現在の状態をdstに書き込む(dstはSaveState.SIZEバイト以上、メモリ確保なし)
+    // エミュレーションスレッドから呼ぶこと
+    public void snapshot(byte[] dst) {
+        SaveState.write(cpu, memory, display, dst);
+    }
+
+    // セーブステートから状態を復元する(エミュレーションスレッドから呼ぶこと)
+    public void restore(byte[] state) {
+        SaveState.read(state, cpu, memory, display, rowScratch);
+        display.consumeDrawFlag();
+        framePublisher.publish(display);
+    }
+
+    // Fx0Aでキー入力を待っているか(待っている間は命令を進めない)
+    public boolean isWaitingForKey() {
+        return cpu.isWaitingForKey();
+    }
+
+    // 実行エンジンの種類
+    public ExecutionEngine.Kind getEngineKind() {
+        return engineKind;
+    }
+
+    // 実行エンジンの取得
+    public ExecutionEngine getEngine() {
+        return engine;
     }
 
     // ディスプレイの取得
@@ -48,6 +438,11 @@ public class Chip8 {
         return display;
     }
 
+    // フレーム受け渡しの取得(描画側はこちらから最新フレームを読む)
+    public FramePublisher getFramePublisher() {
+        return framePublisher;
+    }
+
     // インプットハンドラーの取得
     public InputHandler getInputHandler() {
         return inputHandler;
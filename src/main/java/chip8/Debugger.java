@@ -0,0 +1,281 @@
+package chip8;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// デバッガ(pcのブレークポイント・メモリの監視・レジスタの条件・命令の記録)
+// 有効な間はCPUがデバッグ用の実行ループ(待機ループの早送りなし)に切り替わり、命令ごとにここを呼ぶ
+// 無効な時はCPUが参照を持たず、通常の実行ループには何も足さない
+// (コンパイル済みのブロックには割り込めないので、Chip8は有効な間インタプリタで実行する)
+//
+// 停止すると実行ループを抜け、resume/stepが呼ばれるまで命令を実行しない
+// 停止の判定・通知はエミュレーションスレッドで行う
+public class Debugger {
+
+    public enum Reason {
+        // pcのブレークポイント
+        BREAKPOINT,
+        // 監視範囲の読み出し・書き込み
+        WATCH_READ,
+        WATCH_WRITE,
+        // レジスタの条件
+        CONDITION,
+        // stepで指定した命令数を実行した
+        STEP,
+        // pauseが呼ばれた
+        PAUSE
+    }
+
+    // 停止した理由と位置(addressは監視範囲に触れたアドレス、それ以外は-1)
+    public record Stop(Reason reason, int pc, int opcode, int address, String detail) {
+
+        @Override
+        public String toString() {
+            return String.format("%s at %03X (%04X %s)%s%s", reason, pc, opcode,
+                    Instruction.name(Instruction.handler(Instruction.decode(opcode))),
+                    address >= 0 ? String.format(" address %03X", address) : "",
+                    detail != null ? " " + detail : "");
+        }
+    }
+
+    // 停止の通知先(エミュレーションスレッドから呼ばれる)
+    public interface StopListener {
+        void onStop(Stop stop, CPU cpu);
+    }
+
+    // レジスタの条件("V3 == 0x10", "I >= 0x300" など、0xの無い値は10進数)
+    // レジスタは V0～VF, I, PC, SP, DT, ST
+    public record Condition(String register, String operator, int value) {
+
+        private static final Pattern PATTERN = Pattern.compile(
+                "\\s*(V[0-9A-F]|I|PC|SP|DT|ST)\\s*(==|!=|<=|>=|<|>)\\s*(0X[0-9A-F]+|\\d+)\\s*");
+
+        public static Condition parse(String text) {
+            Matcher m = PATTERN.matcher(text.toUpperCase());
+            if (!m.matches()) {
+                throw new IllegalArgumentException("Invalid condition: " + text);
+            }
+            String value = m.group(3);
+            return new Condition(m.group(1), m.group(2),
+                    value.startsWith("0X") ? Integer.parseInt(value.substring(2), 16) : Integer.parseInt(value));
+        }
+
+        boolean test(CPU cpu) {
+            int actual = switch (register) {
+                case "I" -> cpu.I;
+                case "PC" -> cpu.pc;
+                case "SP" -> cpu.sp;
+                case "DT" -> cpu.delayTimer;
+                case "ST" -> cpu.soundTimer;
+                default -> cpu.V[Character.digit(register.charAt(1), 16)];
+            };
+            return switch (operator) {
+                case "==" -> actual == value;
+                case "!=" -> actual != value;
+                case "<" -> actual < value;
+                case "<=" -> actual <= value;
+                case ">" -> actual > value;
+                default -> actual >= value;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return register + " " + operator + " 0x" + Integer.toHexString(value).toUpperCase();
+        }
+    }
+
+    private static final byte WATCH_READ = 1;
+    private static final byte WATCH_WRITE = 2;
+    // 無条件のブレークポイント
+    private static final Condition ALWAYS = new Condition("PC", ">=", 0);
+
+    // アドレスごとのブレークポイント(条件付きの場合はその条件、無ければnull)
+    private final Condition[] breakpoints = new Condition[Memory.SIZE];
+    // アドレスごとの監視の種類
+    private final byte[] watches = new byte[Memory.SIZE];
+    private Condition[] conditions = new Condition[0];
+    private TraceBuffer trace;
+    private StopListener listener;
+
+    private volatile boolean stopped;
+    private volatile boolean pauseRequested;
+    // 再開した直後の命令ではブレークポイントを無視する(同じ位置で止まり続けないように)
+    private boolean resuming;
+    // 停止までの残り命令数(-1は指定なし)
+    private int stepsRemaining = -1;
+    private Stop lastStop;
+
+    public void addBreakpoint(int address) {
+        breakpoints[address] = ALWAYS;
+    }
+
+    // conditionを満たす時だけ止まるブレークポイント
+    public void addBreakpoint(int address, Condition condition) {
+        breakpoints[address] = condition;
+    }
+
+    public void removeBreakpoint(int address) {
+        breakpoints[address] = null;
+    }
+
+    // from～to(両端を含む)の読み出し・書き込みを監視する
+    public void addWatchpoint(int from, int to, boolean read, boolean write) {
+        byte kind = (byte) ((read ? WATCH_READ : 0) | (write ? WATCH_WRITE : 0));
+        for (int address = from; address <= to; address++) {
+            watches[address] |= kind;
+        }
+    }
+
+    public void removeWatchpoint(int from, int to) {
+        Arrays.fill(watches, from, to + 1, (byte) 0);
+    }
+
+    // どの命令の前でもconditionを満たしたら止まる
+    public void addCondition(Condition condition) {
+        conditions = Arrays.copyOf(conditions, conditions.length + 1);
+        conditions[conditions.length - 1] = condition;
+    }
+
+    // 命令を記録する(nullで記録しない)
+    public void setTrace(TraceBuffer trace) {
+        this.trace = trace;
+    }
+
+    public TraceBuffer getTrace() {
+        return trace;
+    }
+
+    public void setStopListener(StopListener listener) {
+        this.listener = listener;
+    }
+
+    // 次の命令の前で止める(どのスレッドからでも呼べる)
+    public void pause() {
+        pauseRequested = true;
+    }
+
+    // 実行を再開する(どのスレッドからでも呼べる)
+    public void resume() {
+        stepsRemaining = -1;
+        resuming = true;
+        stopped = false;
+    }
+
+    // count命令だけ実行して止まる(どのスレッドからでも呼べる)
+    public void step(int count) {
+        stepsRemaining = count;
+        resuming = true;
+        stopped = false;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    // 最後に止まった理由(止まったことが無ければnull)
+    public Stop getLastStop() {
+        return lastStop;
+    }
+
+    // 命令を実行してよいかを判定する(止める場合はfalse)
+    boolean beforeInstruction(CPU cpu, int instruction) {
+        if (stopped) {
+            return false;
+        }
+        int pc = cpu.pc;
+        if (pauseRequested) {
+            pauseRequested = false;
+            return stop(cpu, new Stop(Reason.PAUSE, pc, Instruction.opcode(instruction), -1, null));
+        }
+        if (resuming) {
+            resuming = false;
+        } else {
+            Stop stop = check(cpu, pc, instruction);
+            if (stop != null) {
+                return stop(cpu, stop);
+            }
+        }
+        if (stepsRemaining == 0) {
+            stepsRemaining = -1;
+            return stop(cpu, new Stop(Reason.STEP, pc, Instruction.opcode(instruction), -1, null));
+        }
+        if (stepsRemaining > 0) {
+            stepsRemaining--;
+        }
+        if (trace != null) {
+            trace.before(cpu);
+        }
+        return true;
+    }
+
+    // 命令の実行後に呼ぶ
+    void afterInstruction(CPU cpu, int pc, int instruction) {
+        if (trace != null) {
+            trace.after(cpu, pc, Instruction.opcode(instruction));
+        }
+    }
+
+    private Stop check(CPU cpu, int pc, int instruction) {
+        int opcode = Instruction.opcode(instruction);
+        Condition breakpoint = breakpoints[pc];
+        if (breakpoint != null && breakpoint.test(cpu)) {
+            return new Stop(Reason.BREAKPOINT, pc, opcode, -1, breakpoint == ALWAYS ? null : breakpoint.toString());
+        }
+        for (Condition condition : conditions) {
+            if (condition.test(cpu)) {
+                return new Stop(Reason.CONDITION, pc, opcode, -1, condition.toString());
+            }
+        }
+        // 命令がこれから触れるメモリの範囲(実行前に止めるのでデコード結果から求める)
+        int x = Instruction.x(instruction);
+        switch (Instruction.handler(instruction)) {
+            case Instruction.DRW:
+            case Instruction.DRW_CLIP:
+                return watched(WATCH_READ, cpu.I, Instruction.n(instruction), pc, opcode);
+            case Instruction.DRW_16:
+            case Instruction.DRW_16_CLIP:
+                return watched(WATCH_READ, cpu.I, cpu.drawsLargeSprites() ? 32 : 0, pc, opcode);
+            case Instruction.LD_VX_I:
+            case Instruction.LD_VX_I_INC:
+                return watched(WATCH_READ, cpu.I, x + 1, pc, opcode);
+            case Instruction.LD_I_VX:
+            case Instruction.LD_I_VX_INC:
+                return watched(WATCH_WRITE, cpu.I, x + 1, pc, opcode);
+            case Instruction.LD_B_VX:
+                return watched(WATCH_WRITE, cpu.I, 3, pc, opcode);
+            default:
+                return null;
+        }
+    }
+
+    private Stop watched(byte kind, int from, int length, int pc, int opcode) {
+        int end = Math.min(Memory.SIZE, from + length);
+        for (int address = from; address < end; address++) {
+            if ((watches[address] & kind) != 0) {
+                return new Stop(kind == WATCH_READ ? Reason.WATCH_READ : Reason.WATCH_WRITE, pc, opcode, address, null);
+            }
+        }
+        return null;
+    }
+
+    private boolean stop(CPU cpu, Stop stop) {
+        lastStop = stop;
+        stopped = true;
+        if (listener != null) {
+            listener.onStop(stop, cpu);
+        }
+        return false;
+    }
+
+    // アドレスを読む("2A4"、"0x2A4" のどちらも16進数)
+    public static int parseAddress(String text) {
+        String t = text.trim().toUpperCase();
+        int address = Integer.parseInt(t.startsWith("0X") ? t.substring(2) : t, 16);
+        if (address < 0 || address >= Memory.SIZE) {
+            throw new IllegalArgumentException("Address out of range: " + text);
+        }
+        return address;
+    }
+}
@@ -1,40 +1,372 @@
 package chip8;
 
+import java.util.Arrays;
+
 public class Display {
 
-    // 64x32 のピクセル配列
-    public boolean[][] pixels = new boolean[64][32];
-    // 描画フラグ
-    public boolean drawFlag = false;
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+    // SUPER-CHIPの高解像度モード
+    public static final int HIRES_WIDTH = 128;
+    public static final int HIRES_HEIGHT = 64;
+    // フレーム全体を表す配列の長さ(高解像度の1行2long x 64行 + 末尾に解像度)
+    public static final int FRAME_SIZE = HIRES_HEIGHT * 2 + 1;
+    // フレームの配列で解像度(0は64x32、1は128x64)を入れる位置
+    public static final int MODE_INDEX = FRAME_SIZE - 1;
+
+    // フレームバッファ(最上位ビットがx=0)
+    // 64x32 では先頭32要素を1行1longで使い、128x64 では行yを rows[2y](x=0～63)と rows[2y+1](x=64～127)で表す
+    // 両方の大きさを最初に確保しておき、解像度の切り替えではメモリを確保しない
+    private final long[] rows = new long[HIRES_HEIGHT * 2];
+    private boolean hires;
+    // 描画フラグ(エミュレーションスレッドからのみ参照する)
+    private boolean drawFlag = false;
+    // 実行統計(nullの時は計測しない)
+    private Metrics metrics;
+    private FrameListener[] frameListeners = new FrameListener[0];
+
+    // 描画のあったフレームの完了の通知先(エミュレーションスレッドから呼ぶので待たないこと)
+    public interface FrameListener {
+        void onFrame(long frame, Display display);
+    }
 
     // 画面クリア
     public void clear() {
-        for (int x = 0; x < 64; x++) {
-            for (int y = 0; y < 32; y++) {
-                pixels[x][y] = false;
-            }
-        }
+        Arrays.fill(rows, 0L);
         drawFlag = true;
     }
 
+    // 解像度の切り替え(00FE/00FF、画面はクリアする)
+    public void setHires(boolean hires) {
+        if (this.hires != hires) {
+            this.hires = hires;
+            clear();
+        }
+    }
+
+    public boolean isHires() {
+        return hires;
+    }
+
+    // 現在の解像度の幅・高さ
+    public int getWidth() {
+        return hires ? HIRES_WIDTH : WIDTH;
+    }
+
+    public int getHeight() {
+        return hires ? HIRES_HEIGHT : HEIGHT;
+    }
+
     // スプライト描画
+    // スプライトの1行は行全体への回転とXOR、衝突判定はANDで求める(横方向は回転で折り返す)
     public boolean drawSprite(int vx, int vy, int height, int spriteAddress, Memory memory) {
-        boolean collision = false;
+        if (hires) {
+            return drawHires(vx, vy, height, 1, spriteAddress, memory, true);
+        }
+        int x = vx & (WIDTH - 1);
+        long collision = 0;
         for (int row = 0; row < height; row++) {
-            byte spriteByte = memory.getByte(spriteAddress + row);
-            for (int col = 0; col < 8; col++) {
-                int x = (vx + col) % 64;
-                int y = (vy + row) % 32;
-                boolean spritePixel = ((spriteByte >> (7 - col)) & 0x01) == 1;
-                boolean oldPixel = pixels[x][y];
-                boolean newPixel = oldPixel ^ spritePixel;
-                pixels[x][y] = newPixel;
-                if (oldPixel && !newPixel) {
-                    collision = true;
-                }
+            int y = (vy + row) & (HEIGHT - 1);
+            long spriteRow = Long.rotateRight((long) Byte.toUnsignedInt(memory.getByte(spriteAddress + row)) << 56, x);
+            collision |= rows[y] & spriteRow;
+            rows[y] ^= spriteRow;
+        }
+        drawFlag = true;
+        if (metrics != null) {
+            metrics.spriteDrawn(collision != 0);
+        }
+        return collision != 0;
+    }
+
+    // スプライト描画(画面の端で切り取る)
+    // 描画開始位置は折り返し、はみ出した部分は描かない
+    public boolean drawSpriteClipped(int vx, int vy, int height, int spriteAddress, Memory memory) {
+        if (hires) {
+            return drawHires(vx, vy, height, 1, spriteAddress, memory, false);
+        }
+        int x = vx & (WIDTH - 1);
+        int top = vy & (HEIGHT - 1);
+        int bottom = Math.min(HEIGHT, top + height);
+        long collision = 0;
+        for (int y = top; y < bottom; y++) {
+            long spriteRow = ((long) Byte.toUnsignedInt(memory.getByte(spriteAddress + y - top)) << 56) >>> x;
+            collision |= rows[y] & spriteRow;
+            rows[y] ^= spriteRow;
+        }
+        drawFlag = true;
+        if (metrics != null) {
+            metrics.spriteDrawn(collision != 0);
+        }
+        return collision != 0;
+    }
+
+    // 16x16のスプライト描画(Dxy0、1行2バイト)
+    public boolean drawLargeSprite(int vx, int vy, int spriteAddress, Memory memory) {
+        if (hires) {
+            return drawHires(vx, vy, 16, 2, spriteAddress, memory, true);
+        }
+        int x = vx & (WIDTH - 1);
+        long collision = 0;
+        for (int row = 0; row < 16; row++) {
+            int y = (vy + row) & (HEIGHT - 1);
+            long spriteRow = Long.rotateRight((long) largeSpriteRow(spriteAddress, row, memory) << 48, x);
+            collision |= rows[y] & spriteRow;
+            rows[y] ^= spriteRow;
+        }
+        return drawn(collision);
+    }
+
+    // 16x16のスプライト描画(画面の端で切り取る)
+    public boolean drawLargeSpriteClipped(int vx, int vy, int spriteAddress, Memory memory) {
+        if (hires) {
+            return drawHires(vx, vy, 16, 2, spriteAddress, memory, false);
+        }
+        int x = vx & (WIDTH - 1);
+        int top = vy & (HEIGHT - 1);
+        int bottom = Math.min(HEIGHT, top + 16);
+        long collision = 0;
+        for (int y = top; y < bottom; y++) {
+            long spriteRow = ((long) largeSpriteRow(spriteAddress, y - top, memory) << 48) >>> x;
+            collision |= rows[y] & spriteRow;
+            rows[y] ^= spriteRow;
+        }
+        return drawn(collision);
+    }
+
+    private static int largeSpriteRow(int spriteAddress, int row, Memory memory) {
+        return (Byte.toUnsignedInt(memory.getByte(spriteAddress + row * 2)) << 8)
+                | Byte.toUnsignedInt(memory.getByte(spriteAddress + row * 2 + 1));
+    }
+
+    // 128x64 でのスプライト描画(1行bytesPerRowバイト)
+    // スプライトの1行を128ビットの行に合わせて左右2つのlongに分け、それぞれXORする
+    private boolean drawHires(int vx, int vy, int height, int bytesPerRow, int spriteAddress, Memory memory,
+            boolean wrap) {
+        int x = vx & (HIRES_WIDTH - 1);
+        int top = vy & (HIRES_HEIGHT - 1);
+        int count = wrap ? height : Math.min(height, HIRES_HEIGHT - top);
+        long collision = 0;
+        for (int row = 0; row < count; row++) {
+            long sprite = 0;
+            for (int b = 0; b < bytesPerRow; b++) {
+                sprite |= (long) Byte.toUnsignedInt(memory.getByte(spriteAddress + row * bytesPerRow + b))
+                        << (56 - b * 8);
+            }
+            int i = ((top + row) & (HIRES_HEIGHT - 1)) * 2;
+            long left = x < 64 ? sprite >>> x : (wrap && x > 64 ? sprite << (128 - x) : 0);
+            long right = x < 64 ? (x == 0 ? 0 : sprite << (64 - x)) : sprite >>> (x - 64);
+            collision |= (rows[i] & left) | (rows[i + 1] & right);
+            rows[i] ^= left;
+            rows[i + 1] ^= right;
+        }
+        return drawn(collision);
+    }
+
+    private boolean drawn(long collision) {
+        drawFlag = true;
+        if (metrics != null) {
+            metrics.spriteDrawn(collision != 0);
+        }
+        return collision != 0;
+    }
+
+    // n行下にスクロール(00Cn、行の配列をまとめて移動し、空いた行は消す)
+    public void scrollDown(int n) {
+        int words = hires ? 2 : 1;
+        int length = getHeight() * words;
+        int shift = Math.min(n * words, length);
+        System.arraycopy(rows, 0, rows, shift, length - shift);
+        Arrays.fill(rows, 0, shift, 0L);
+        drawFlag = true;
+    }
+
+    // 4ピクセル右にスクロール(00FB、行ごとのシフト)
+    public void scrollRight() {
+        if (hires) {
+            for (int i = 0; i < HIRES_HEIGHT * 2; i += 2) {
+                rows[i + 1] = (rows[i + 1] >>> 4) | (rows[i] << 60);
+                rows[i] >>>= 4;
+            }
+        } else {
+            for (int y = 0; y < HEIGHT; y++) {
+                rows[y] >>>= 4;
+            }
+        }
+        drawFlag = true;
+    }
+
+    // 4ピクセル左にスクロール(00FC、行ごとのシフト)
+    public void scrollLeft() {
+        if (hires) {
+            for (int i = 0; i < HIRES_HEIGHT * 2; i += 2) {
+                rows[i] = (rows[i] << 4) | (rows[i + 1] >>> 60);
+                rows[i + 1] <<= 4;
+            }
+        } else {
+            for (int y = 0; y < HEIGHT; y++) {
+                rows[y] <<= 4;
             }
         }
         drawFlag = true;
-        return collision;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // フレーム完了の通知先の追加
+    public void addFrameListener(FrameListener listener) {
+        FrameListener[] listeners = Arrays.copyOf(frameListeners, frameListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        frameListeners = listeners;
+    }
+
+    // フレーム完了の通知先の削除
+    public void removeFrameListener(FrameListener listener) {
+        FrameListener[] listeners = frameListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                FrameListener[] removed = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                frameListeners = removed;
+                return;
+            }
+        }
+    }
+
+    // frame番目のフレームが描画ありで完了したことを通知する
+    void frameCompleted(long frame) {
+        for (FrameListener listener : frameListeners) {
+            listener.onFrame(frame, this);
+        }
+    }
+
+    // 前回の確認以降に描画があったかを返し、フラグを下ろす
+    public boolean consumeDrawFlag() {
+        boolean drawn = drawFlag;
+        drawFlag = false;
+        return drawn;
+    }
+
+    // ピクセルの状態(座標は現在の解像度)
+    public boolean isPixelOn(int x, int y) {
+        if (hires) {
+            return ((rows[y * 2 + (x >> 6)] >>> (63 - (x & 63))) & 1) != 0;
+        }
+        return ((rows[y] >>> (WIDTH - 1 - x)) & 1) != 0;
+    }
+
+    // 64x32 での1行分のピクセル(最上位ビットがx=0、128x64 では縮小した行)
+    public long getRow(int y) {
+        return hires ? lowResRow(rows, y) : rows[y];
+    }
+
+    // フレームバッファのi番目のlong(セーブステート用、iはMODE_INDEX未満)
+    long getFrameWord(int i) {
+        return rows[i];
+    }
+
+    // フレームバッファのi番目のlongを書き込む(セーブステートの復元用、解像度は先にsetHiresで合わせる)
+    void setFrameWord(int i, long word) {
+        rows[i] = word;
+        drawFlag = true;
+    }
+
+    // 64x32 のフレームをコピー(dstはHEIGHT要素以上)
+    // 128x64 では2x2ピクセルのORで縮小する(64x32 しか扱わない記録・配信用)
+    public void copyTo(long[] dst) {
+        if (hires) {
+            for (int y = 0; y < HEIGHT; y++) {
+                dst[y] = lowResRow(rows, y);
+            }
+        } else {
+            System.arraycopy(rows, 0, dst, 0, HEIGHT);
+        }
+    }
+
+    // 64x32 のフレームを書き込む(srcはHEIGHT要素以上、解像度は64x32になる)
+    public void copyFrom(long[] src) {
+        hires = false;
+        System.arraycopy(src, 0, rows, 0, HEIGHT);
+        Arrays.fill(rows, HEIGHT, rows.length, 0L);
+        drawFlag = true;
+    }
+
+    // 解像度を含むフレーム全体をコピー(dstはFRAME_SIZE要素以上)
+    public void copyFrameTo(long[] dst) {
+        System.arraycopy(rows, 0, dst, 0, rows.length);
+        dst[MODE_INDEX] = hires ? 1 : 0;
+    }
+
+    // copyFrameToで取り出したフレームを書き込む
+    public void copyFrameFrom(long[] src) {
+        System.arraycopy(src, 0, rows, 0, rows.length);
+        hires = src[MODE_INDEX] != 0;
+        drawFlag = true;
+    }
+
+    // copyFrameToで取り出したフレームが128x64か
+    public static boolean isHires(long[] frame) {
+        return frame[MODE_INDEX] != 0;
+    }
+
+    // copyFrameToで取り出したフレームの64x32 の行(128x64 では縮小した行)
+    public static long lowResRow(long[] frame, boolean hires, int y) {
+        return hires ? lowResRow(frame, y) : frame[y];
+    }
+
+    // 128x64 の2行を2x2ピクセルのORで1行に縮小する
+    // 隣り合うビットのORを取ってから偶数番目のビットを詰める(Long.compressはBMI2のPEXTになる)
+    private static long lowResRow(long[] frame, int y) {
+        long left = frame[y * 4] | frame[y * 4 + 2];
+        long right = frame[y * 4 + 1] | frame[y * 4 + 3];
+        long l = Long.compress(left | (left << 1), 0xAAAAAAAAAAAAAAAAL);
+        long r = Long.compress(right | (right << 1), 0xAAAAAAAAAAAAAAAAL);
+        return (l << 32) | r;
+    }
+
+    // フレームとの比較(64x32 のフレーム)
+    public boolean contentEquals(long[] frame) {
+        return !hires && Arrays.equals(rows, 0, HEIGHT, frame, 0, HEIGHT);
+    }
+
+    // フレームバッファのハッシュ値(FNV-1a、行優先で1ピクセル1ビット)
+    // 64x32 では従来と同じ値、128x64 では全行から求める
+    public long hash() {
+        return hash(rows, 0, hires ? MODE_INDEX : HEIGHT);
+    }
+
+    // copyFrameToで取り出したフレームのハッシュ値(hash()と同じ値)
+    static long hash(long[] frame) {
+        return hash(frame, 0, isHires(frame) ? MODE_INDEX : HEIGHT);
+    }
+
+    // rowsのoffset以降HEIGHT行分のハッシュ値(64x32 のhash()と同じ値)
+    static long hash(long[] rows, int offset) {
+        return hash(rows, offset, HEIGHT);
+    }
+
+    private static long hash(long[] rows, int offset, int count) {
+        long hash = 0xcbf29ce484222325L;
+        for (int y = 0; y < count; y++) {
+            long row = rows[offset + y];
+            for (int i = 0; i < 8; i++) {
+                hash ^= (row >>> (56 - i * 8)) & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    // 他のディスプレイの内容をコピー
+    public void copyFrom(Display other) {
+        System.arraycopy(other.rows, 0, rows, 0, rows.length);
+        hires = other.hires;
+        drawFlag = true;
+    }
+
+    // 表示内容の比較
+    public boolean contentEquals(Display other) {
+        return hires == other.hires && Arrays.equals(rows, other.rows);
     }
 }
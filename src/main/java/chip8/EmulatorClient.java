@@ -0,0 +1,189 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// EmulatorServerのセッションに接続して画面を受け取り、キー入力を送るクライアント
+// 受信したフレームはFramePublisherに公開するので、Screen・TerminalRendererでそのまま表示できる
+public class EmulatorClient implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmulatorClient.class);
+
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+    private final ByteBuffer out = ByteBuffer.allocate(ServerProtocol.MAX_STRING * 2 + 8);
+    private final long[] rows = new long[Display.FRAME_SIZE];
+    private final FramePublisher framePublisher = new FramePublisher();
+    // 最後に受け取ったフレームの番号
+    private volatile long frame = -1;
+
+    public EmulatorClient(SocketAddress address) throws IOException {
+        channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+        channel.connect(address);
+        in.flip();
+    }
+
+    // セッションに接続する(セッションが無ければサーバーがromで作る)
+    public void attach(String session, String rom) throws IOException {
+        synchronized (out) {
+            out.clear();
+            ServerProtocol.putAttach(out, session, rom);
+            flush();
+        }
+    }
+
+    // キー操作を送る(どのスレッドからでも呼べる)
+    public void sendKey(int key, boolean pressed) throws IOException {
+        synchronized (out) {
+            out.clear();
+            ServerProtocol.putKey(out, key, pressed);
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    // 次のフレームを受信して公開し、フレーム番号を返す(切断されたらEOFException)
+    public long receive() throws IOException {
+        while (true) {
+            if (in.hasRemaining()) {
+                int start = in.position();
+                byte type = in.get();
+                if (type == ServerProtocol.FRAME) {
+                    long number = ServerProtocol.getFrame(in, rows);
+                    if (number >= 0) {
+                        framePublisher.publish(rows);
+                        frame = number;
+                        return number;
+                    }
+                } else if (type == ServerProtocol.ERROR) {
+                    String message = ServerProtocol.getString(in);
+                    if (message != null) {
+                        throw new IOException("Server error: " + message);
+                    }
+                } else {
+                    throw new IOException("Unknown message type: " + type);
+                }
+                in.position(start);
+            }
+            in.compact();
+            int read = channel.read(in);
+            in.flip();
+            if (read < 0) {
+                throw new EOFException("Disconnected");
+            }
+        }
+    }
+
+    // 切断されるまで受信を続ける
+    public void receiveLoop() {
+        try {
+            while (true) {
+                receive();
+            }
+        } catch (IOException e) {
+            logger.info("Connection closed: {}", e.getMessage());
+        }
+    }
+
+    public FramePublisher getFramePublisher() {
+        return framePublisher;
+    }
+
+    // 最後に受け取ったフレームの番号(未受信は-1)
+    public long getFrame() {
+        return frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: EmulatorClient <PORT|unix:PATH> <session> [rom] [--terminal] [--terminal-fps N]");
+            System.exit(1);
+        }
+        // オプション: --terminal(ウインドウを開かずに端末に表示する、キー操作は送らない)
+        //             --terminal-fps N(端末の表示の最大更新回数/秒)
+        String rom = "";
+        boolean terminal = false;
+        int terminalFps = TerminalRenderer.DEFAULT_MAX_FPS;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--terminal" -> terminal = true;
+                case "--terminal-fps" -> terminalFps = Integer.parseInt(args[++i]);
+                default -> {
+                    if (i != 2 || args[i].startsWith("--")) {
+                        System.out.println("Unknown option: " + args[i]);
+                        System.exit(1);
+                    }
+                    rom = args[i];
+                }
+            }
+        }
+        EmulatorClient client = new EmulatorClient(EmulatorServer.parseAddress(args[0]));
+        client.attach(args[1], rom);
+
+        if (terminal) {
+            // 実行中のセッションの監視(サーバーからは変化した行だけが届き、端末には変化した文字だけを送る)
+            TerminalRenderer renderer = new TerminalRenderer(client.getFramePublisher(),
+                    new FileOutputStream(FileDescriptor.out), terminalFps);
+            renderer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(renderer::close));
+            client.receiveLoop();
+            System.exit(0);
+        }
+
+        // キー操作はサーバーに送る
+        InputHandler remoteInput = new InputHandler() {
+            @Override
+            public void keyPressed(int key) {
+                send(key, true);
+            }
+
+            @Override
+            public void keyReleased(int key) {
+                send(key, false);
+            }
+
+            private void send(int key, boolean pressed) {
+                try {
+                    client.sendKey(key, pressed);
+                } catch (IOException e) {
+                    logger.error("Failed to send key", e);
+                }
+            }
+        };
+        SwingUtilities.invokeLater(() -> {
+            JFrame frame = new JFrame("CHIP-8 Client: " + args[1]);
+            frame.add(new Screen(client.getFramePublisher(), 10, remoteInput));
+            frame.pack();
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setVisible(true);
+        });
+        client.receiveLoop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,510 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 複数のエミュレーターのセッションを1つのJVMで動かし、ソケットで接続したクライアントに画面の差分を送るサーバー
+// セッションはクライアントがATTACHした時に作り、最後のクライアントが切断したら破棄する
+// 全セッションを1つのFrameSchedulerで60Hzで刻み、各フレームは固定数のワーカースレッドで分担して実行する
+// 通信は1つのI/Oスレッドがセレクターで行う(エミュレーションとは各セッションのFramePublisherで受け渡す)
+// 送信が追いつかないクライアントには前のフレームを送り終えるまで次のフレームを送らない
+// (差分は前回送ったフレームが基準なので、飛ばしたフレームの変化も次の送信に含まれる)
+// ROMの実行中に例外が出たセッションはそこで止め、クライアントにERRORを送って破棄する(他のセッションは続ける)
+public class EmulatorServer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmulatorServer.class);
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    // 負荷試験などで一度に大量に接続された時のための受け付け待ちの数
+    private static final int ACCEPT_BACKLOG = 1024;
+    // ERRORで送る例外の説明の最大文字数
+    private static final int MAX_FAILURE_LENGTH = 200;
+
+    // 1つのエミュレーターのセッション
+    private static final class Session {
+
+        final String name;
+        final Chip8 chip8;
+        // 接続中のクライアント(I/Oスレッド専用)
+        final List<Connection> clients = new ArrayList<>();
+        // 実行中に出た例外の説明(nullの間は動作中、ワーカーが書いてI/Oスレッドが破棄する)
+        volatile String failure;
+
+        Session(String name, Chip8 chip8) {
+            this.name = name;
+            this.chip8 = chip8;
+        }
+    }
+
+    // 1つのクライアント接続(I/Oスレッド専用)
+    private static final class Connection {
+
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ByteBuffer out = ByteBuffer.allocateDirect(ServerProtocol.MAX_FRAME_MESSAGE + ServerProtocol.MAX_STRING);
+        // クライアントに送った画面
+        final long[] sentRows = new long[Display.FRAME_SIZE];
+        final long[] scratch = new long[Display.FRAME_SIZE];
+        // 送ったFramePublisherのシーケンス番号
+        long sequence;
+        Session session;
+        // ERRORを送り終えたら切断する
+        boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            out.flip();
+        }
+    }
+
+    // ワーカーに割り当てる実行単位(セッションの一覧が変わるたびに作り直す)
+    private record Schedule(Session[] sessions, List<Callable<Void>> tasks) {
+    }
+
+    private final SocketAddress address;
+    private final Path romDir;
+    private final int workers;
+    private final ExecutionEngine.Kind engineKind;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workerPool;
+    private final FrameScheduler scheduler = FrameScheduler.realTime();
+    private Thread ioThread;
+    private Thread tickThread;
+    private volatile boolean running;
+
+    // セッション(I/Oスレッド専用)と、ティックスレッドが参照する一覧
+    private final Map<String, Session> sessions = new HashMap<>();
+    private volatile Schedule schedule = new Schedule(new Session[0], List.of());
+    // フレームを実行し終えたことをI/Oスレッドに伝える
+    private final AtomicBoolean framesReady = new AtomicBoolean();
+
+    // 1ティックの処理時間(ティックスレッドのみが書く)
+    private final Histogram tickTimes = new Histogram();
+    private volatile long ticks;
+    private volatile long skippedFrames;
+
+    // address: InetSocketAddressかUnixDomainSocketAddress
+    // romDir: クライアントが指定できるROMのディレクトリ
+    public EmulatorServer(SocketAddress address, Path romDir, int workers, ExecutionEngine.Kind engineKind) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.address = address;
+        this.romDir = romDir.toAbsolutePath().normalize();
+        this.workers = workers;
+        this.engineKind = engineKind;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            serverChannel = ServerSocketChannel.open();
+        }
+        serverChannel.bind(address, ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workerPool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "emulator-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        ioThread = new Thread(this::ioLoop, "emulator-server-io");
+        tickThread = new Thread(() -> scheduler.run(this::tick), "emulator-server-tick");
+        ioThread.start();
+        tickThread.start();
+        logger.info("Emulator server listening on {} (workers={}, engine={})", getLocalAddress(), workers, engineKind);
+    }
+
+    // 待ち受けているアドレス(ポート0を指定した場合は割り当てられたポート)
+    public SocketAddress getLocalAddress() throws IOException {
+        return serverChannel.getLocalAddress();
+    }
+
+    // 全セッションを1フレーム進める(ティックスレッド)
+    private void tick() {
+        long start = System.nanoTime();
+        Schedule current = schedule;
+        if (current.tasks.size() == 1) {
+            runSessions(current.sessions, 0, 1);
+        } else if (!current.tasks.isEmpty()) {
+            try {
+                workerPool.invokeAll(current.tasks);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        tickTimes.record(System.nanoTime() - start);
+        ticks = ticks + 1;
+        if (current.sessions.length > 0) {
+            framesReady.set(true);
+            selector.wakeup();
+        }
+    }
+
+    // sessionsのうちpart番目(全parts個)を実行する
+    // 例外(空のスタックへのRET・スタックの溢れ・メモリ外の実行など)はそのセッションだけを止める
+    private static void runSessions(Session[] sessions, int part, int parts) {
+        for (int i = part; i < sessions.length; i += parts) {
+            Session session = sessions[i];
+            if (session.failure != null) {
+                continue;
+            }
+            try {
+                session.chip8.runFrame();
+            } catch (RuntimeException e) {
+                logger.warn("Session {} failed", session.name, e);
+                String failure = e.toString();
+                session.failure = failure.length() > MAX_FAILURE_LENGTH
+                        ? failure.substring(0, MAX_FAILURE_LENGTH) : failure;
+            }
+        }
+    }
+
+    // セッションの一覧が変わった時に実行単位を作り直す(I/Oスレッド)
+    private void updateSchedule() {
+        Session[] list = sessions.values().toArray(new Session[0]);
+        int parts = Math.min(workers, list.length);
+        List<Callable<Void>> tasks = new ArrayList<>(parts);
+        for (int part = 0; part < parts; part++) {
+            int index = part;
+            tasks.add(() -> {
+                runSessions(list, index, parts);
+                return null;
+            });
+        }
+        schedule = new Schedule(list, tasks);
+    }
+
+    private void ioLoop() {
+        while (running) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException | IllegalArgumentException e) {
+                        logger.debug("Client disconnected: {}", e.toString());
+                        disconnect(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (framesReady.getAndSet(false)) {
+                    sendFrames();
+                }
+            } catch (IOException e) {
+                logger.error("Emulator server I/O failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        if (connection.channel.read(in) < 0) {
+            disconnect(connection);
+            return;
+        }
+        in.flip();
+        while (in.hasRemaining() && !connection.closing) {
+            int start = in.position();
+            byte type = in.get();
+            if (type == ServerProtocol.KEY) {
+                if (!in.hasRemaining()) {
+                    in.position(start);
+                    break;
+                }
+                int value = in.get();
+                if (connection.session != null) {
+                    InputHandler input = connection.session.chip8.getInputHandler();
+                    if ((value & 0x10) != 0) {
+                        input.keyPressed(value & 0xF);
+                    } else {
+                        input.keyReleased(value & 0xF);
+                    }
+                }
+            } else if (type == ServerProtocol.ATTACH) {
+                if (!in.hasRemaining()) {
+                    in.position(start);
+                    break;
+                }
+                // バージョン1のクライアントはここが文字列の長さの上位バイト(通常0)になる
+                int version = in.get();
+                if (version != ServerProtocol.VERSION) {
+                    sendError(connection, "Unsupported protocol version: " + version);
+                    break;
+                }
+                String name = ServerProtocol.getString(in);
+                String rom = name != null ? ServerProtocol.getString(in) : null;
+                if (rom == null) {
+                    in.position(start);
+                    break;
+                }
+                attach(connection, name, rom);
+            } else {
+                throw new IllegalArgumentException("Unknown message type: " + type);
+            }
+        }
+        in.compact();
+    }
+
+    // セッションに接続する(無ければROMを読み込んで作る)
+    private void attach(Connection connection, String name, String rom) throws IOException {
+        if (connection.session != null) {
+            sendError(connection, "Already attached");
+            return;
+        }
+        Session session = sessions.get(name);
+        if (session == null) {
+            Path romPath = romDir.resolve(rom).normalize();
+            if (rom.isEmpty() || !romPath.startsWith(romDir) || !Files.isRegularFile(romPath)) {
+                sendError(connection, "Unknown ROM: " + rom);
+                return;
+            }
+            Chip8 chip8 = new Chip8(engineKind);
+            chip8.loadROM(RomLibrary.getInstance().load(romPath));
+            session = new Session(name, chip8);
+            sessions.put(name, session);
+            updateSchedule();
+            logger.debug("Session {} started ({})", name, rom);
+        }
+        session.clients.add(connection);
+        connection.session = session;
+    }
+
+    // 送信中のフレームの後ろにERRORを続けて送り、送り終えたら切断する
+    private void sendError(Connection connection, String message) throws IOException {
+        ByteBuffer out = connection.out;
+        out.compact();
+        ServerProtocol.putError(out, message);
+        out.flip();
+        connection.closing = true;
+        write(connection);
+    }
+
+    // 各クライアントに最新のフレームの差分を送る(送信中のクライアントは飛ばす)
+    private void sendFrames() {
+        // 送信中の切断でsessionsが変わることがあるので一覧の写しを使う
+        for (Session session : schedule.sessions) {
+            if (session.failure != null) {
+                endFailedSession(session);
+                continue;
+            }
+            for (int i = session.clients.size() - 1; i >= 0; i--) {
+                Connection connection = session.clients.get(i);
+                if (connection.out.hasRemaining()) {
+                    skippedFrames = skippedFrames + 1;
+                    continue;
+                }
+                try {
+                    sendFrame(connection);
+                } catch (IOException e) {
+                    disconnect(connection);
+                }
+            }
+        }
+    }
+
+    // 例外で止まったセッションを一覧から外し、接続中のクライアントにERRORを送る
+    private void endFailedSession(Session session) {
+        sessions.remove(session.name, session);
+        updateSchedule();
+        for (Connection connection : new ArrayList<>(session.clients)) {
+            try {
+                sendError(connection, "Session failed: " + session.failure);
+            } catch (IOException e) {
+                disconnect(connection);
+            }
+        }
+        logger.debug("Session {} ended after a failure", session.name);
+    }
+
+    private void sendFrame(Connection connection) throws IOException {
+        FramePublisher publisher = connection.session.chip8.getFramePublisher();
+        long sequence = publisher.readIfNewer(connection.sequence, connection.scratch);
+        if (sequence < 0) {
+            return;
+        }
+        connection.sequence = sequence;
+        ByteBuffer out = connection.out;
+        out.clear();
+        boolean changed = ServerProtocol.putFrame(out, connection.session.chip8.getFrameCount(),
+                connection.scratch, connection.sentRows);
+        out.flip();
+        if (changed) {
+            write(connection);
+        }
+    }
+
+    // 送信バッファを書き出す(書き切れなければOP_WRITEを待つ)
+    private void write(Connection connection) throws IOException {
+        connection.channel.write(connection.out);
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (connection.out.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (connection.closing) {
+            disconnect(connection);
+        } else if (connection.session != null) {
+            // 送れなかった間に進んだ分をすぐに送る
+            sendFrame(connection);
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // 閉じる時のエラーは無視する
+        }
+        Session session = connection.session;
+        if (session == null) {
+            return;
+        }
+        connection.session = null;
+        session.clients.remove(connection);
+        // 失敗したセッションは一覧から外し済み(同じ名前の新しいセッションは残す)
+        if (session.clients.isEmpty() && sessions.remove(session.name, session)) {
+            updateSchedule();
+            logger.debug("Session {} ended", session.name);
+        }
+    }
+
+    // 動作中のセッション数
+    public int getSessionCount() {
+        return schedule.sessions.length;
+    }
+
+    // 実行したティック数
+    public long getTicks() {
+        return ticks;
+    }
+
+    // 送信中のために飛ばしたフレームの合計
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    // 1ティックの処理時間のヒストグラムをtotalsに加える(Histogram.percentileで集計する)
+    public void addTickTimesTo(long[] totals) {
+        tickTimes.addTo(totals);
+    }
+
+    // ティックのスケジューラ(ジッターの参照用)
+    public FrameScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        scheduler.stop();
+        selector.wakeup();
+        try {
+            tickThread.join();
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workerPool.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+        }
+    }
+
+    // 待ち受けアドレスの解釈("unix:パス" はUnixドメインソケット、それ以外はlocalhostのポート番号)
+    public static SocketAddress parseAddress(String value) {
+        if (value.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(value.substring("unix:".length()));
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(value));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length == 0) {
+            System.out.println("Usage: EmulatorServer <rom-dir> [--listen PORT|unix:PATH] [--workers N] [--engine KIND]");
+            System.exit(1);
+        }
+        Path romDir = Paths.get(args[0]);
+        SocketAddress address = parseAddress("8064");
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutionEngine.Kind engineKind = ExecutionEngine.Kind.INTERPRETER;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--listen" -> address = parseAddress(args[++i]);
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--engine" -> engineKind = ExecutionEngine.Kind.valueOf(args[++i].toUpperCase());
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+        EmulatorServer server = new EmulatorServer(address, romDir, workers, engineKind);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                logger.error("Failed to stop emulator server", e);
+            }
+        }));
+    }
+}
@@ -0,0 +1,20 @@
+package chip8;
+
+// 命令の実行方式
+public interface ExecutionEngine {
+
+    enum Kind {
+        // インタプリタ(CPU)
+        INTERPRETER,
+        // 基本ブロックをJVMバイトコードに変換して実行
+        RECOMPILER,
+        // リコンパイラとインタプリタを並走させて状態を比較
+        LOCKSTEP
+    }
+
+    // 最大budget命令を実行し、実際に実行した命令数を返す
+    int run(int budget);
+
+    // 60Hzのタイマー更新
+    void updateTimers();
+}
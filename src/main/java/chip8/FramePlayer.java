@@ -0,0 +1,129 @@
+package chip8;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// FrameRecorderで記録したファイルの再生
+// 記録したフレーム番号に従って60Hzで進め、変化のあったフレームをFramePublisherに公開する
+public class FramePlayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(FramePlayer.class);
+
+    private final FrameReader reader;
+    private final FramePublisher framePublisher = new FramePublisher();
+    private final long[] rows = new long[Display.FRAME_SIZE];
+    // 再生中のフレーム番号
+    private long frame;
+    private FrameScheduler scheduler;
+
+    public FramePlayer(FrameReader reader) {
+        this.reader = reader;
+    }
+
+    // frame番目のフレームに移動して公開する
+    public void seek(long frame) throws IOException {
+        reader.seek(frame, rows);
+        this.frame = frame;
+        framePublisher.publish(rows);
+    }
+
+    // 1フレーム進め、記録のあるフレームなら公開する(最後まで再生したらfalse)
+    public boolean step() throws IOException {
+        frame++;
+        long next = reader.peek();
+        if (next < 0) {
+            return false;
+        }
+        if (next <= frame) {
+            reader.next(rows);
+            framePublisher.publish(rows);
+        }
+        return true;
+    }
+
+    // 最後まで再生する(スケジューラを止めるか最後まで再生すると戻る)
+    public void play(FrameScheduler scheduler) {
+        this.scheduler = scheduler;
+        scheduler.run(() -> {
+            try {
+                if (!step()) {
+                    scheduler.stop();
+                }
+            } catch (IOException e) {
+                logger.error("Failed to read frame recording", e);
+                scheduler.stop();
+            }
+        });
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+    }
+
+    // 再生中のフレーム番号
+    public long getFrame() {
+        return frame;
+    }
+
+    // 表示中のフレームのハッシュ値(Chip8.framebufferHashと同じ値)
+    public long framebufferHash() {
+        return Display.hash(rows);
+    }
+
+    public FramePublisher getFramePublisher() {
+        return framePublisher;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: FramePlayer <recording> [--from N] [--speed N] [--hash N]");
+            System.exit(1);
+        }
+        Path path = Paths.get(args[0]);
+        long from = -1;
+        long hashFrame = -1;
+        FrameScheduler scheduler = FrameScheduler.realTime();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from" -> from = Long.parseLong(args[++i]);
+                case "--speed" -> scheduler = FrameScheduler.scaled(Double.parseDouble(args[++i]));
+                // 画面を出さずに指定フレームのハッシュ値を表示する(監査用)
+                case "--hash" -> hashFrame = Long.parseLong(args[++i]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        FrameReader reader = new FrameReader(path);
+        FramePlayer player = new FramePlayer(reader);
+        if (hashFrame >= 0) {
+            player.seek(hashFrame);
+            System.out.printf("frame %d hash=%016x%n", hashFrame, player.framebufferHash());
+            reader.close();
+            return;
+        }
+        player.seek(from >= 0 ? from : reader.getFirstFrame());
+
+        SwingUtilities.invokeLater(() -> {
+            JFrame frame = new JFrame("CHIP-8 Player: " + path.getFileName());
+            frame.add(new Screen(player.getFramePublisher(), 10, new InputHandler()));
+            frame.pack();
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setVisible(true);
+        });
+        player.play(scheduler);
+        reader.close();
+        logger.info("Playback finished at frame {}", player.getFrame());
+    }
+}
@@ -0,0 +1,100 @@
+package chip8;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// エミュレーションスレッドから描画側へ完成したフレームを受け渡す
+// 3面のバッファをシーケンスロックで保護し、書き込み側は待たず、読み込み側は最新のフレームを取得する
+// 読み込み中に上書きされた場合はバージョンの不一致で検出して読み直すため、欠けたフレームは見えない
+// フレームは解像度を含めて(Display.copyFrameToの形で)持ち、64x32 しか扱わない読み込み側には縮小して渡す
+public class FramePublisher {
+
+    private static final int SLOTS = 3;
+
+    private final long[][] slots = new long[SLOTS][Display.FRAME_SIZE];
+    // 各スロットのバージョン(奇数は書き込み中)
+    private final AtomicLongArray versions = new AtomicLongArray(SLOTS);
+    // 各スロットの公開時刻
+    private final long[] publishedNanos = new long[SLOTS];
+    // 最新フレームのスロット番号
+    private volatile int latest;
+    // 公開したフレーム数(0は未公開)
+    private volatile long sequence;
+
+    // フレームを公開する(エミュレーションスレッドのみが呼ぶ)
+    public void publish(Display display) {
+        int slot = beginWrite();
+        display.copyFrameTo(slots[slot]);
+        endWrite(slot);
+    }
+
+    // 配列のフレームを公開する(記録の再生・受信用、公開する側のスレッドのみが呼ぶ)
+    // rowsがDisplay.FRAME_SIZE要素以上ならDisplay.copyFrameToの形のフレーム全体、それより短ければ64x32 の行として扱う
+    public void publish(long[] rows) {
+        int slot = beginWrite();
+        if (rows.length >= Display.FRAME_SIZE) {
+            System.arraycopy(rows, 0, slots[slot], 0, Display.FRAME_SIZE);
+        } else {
+            System.arraycopy(rows, 0, slots[slot], 0, Display.HEIGHT);
+            slots[slot][Display.MODE_INDEX] = 0;
+        }
+        endWrite(slot);
+    }
+
+    private int beginWrite() {
+        int slot = (latest + 1) % SLOTS;
+        versions.set(slot, versions.get(slot) + 1);
+        // 以降のデータ書き込みがバージョン更新より前に見えないようにする
+        VarHandle.storeStoreFence();
+        return slot;
+    }
+
+    private void endWrite(int slot) {
+        publishedNanos[slot] = System.nanoTime();
+        versions.set(slot, versions.get(slot) + 1);
+        latest = slot;
+        sequence = sequence + 1;
+    }
+
+    // lastSequenceより新しいフレームがあればdstにコピーしてその番号を返す(無ければ-1)
+    // dstがDisplay.FRAME_SIZE要素以上なら解像度を含めたフレーム全体、それより短ければ64x32 の行をコピーする
+    public long readIfNewer(long lastSequence, long[] dst) {
+        boolean full = dst.length >= Display.FRAME_SIZE;
+        while (true) {
+            long current = sequence;
+            if (current == lastSequence) {
+                return -1;
+            }
+            int slot = latest;
+            long version = versions.get(slot);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long[] frame = slots[slot];
+            if (full) {
+                System.arraycopy(frame, 0, dst, 0, Display.FRAME_SIZE);
+            } else {
+                boolean hires = Display.isHires(frame);
+                for (int y = 0; y < Display.HEIGHT; y++) {
+                    dst[y] = Display.lowResRow(frame, hires, y);
+                }
+            }
+            // データの読み込みがバージョンの再確認より後に行われないようにする
+            VarHandle.loadLoadFence();
+            if (versions.get(slot) == version) {
+                return current;
+            }
+        }
+    }
+
+    // 最新フレームの公開時刻(System.nanoTime)
+    public long getLatestPublishedNanos() {
+        return publishedNanos[latest];
+    }
+
+    // 公開したフレーム数
+    public long getSequence() {
+        return sequence;
+    }
+}
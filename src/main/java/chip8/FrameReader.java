@@ -0,0 +1,308 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// FrameRecorderで記録したファイルの読み込み
+// 順に読むほか、キーフレームの索引を使って任意のフレームに移動できる
+// (索引の無いファイルは開く時に先頭から読んで作り直し、途中で切れたレコードは無視する)
+public class FrameReader implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(FrameRecorder.BUFFER_SIZE);
+    // 次にchannelから読む位置
+    private long filePosition;
+    // レコードの終わり(索引の位置か、最後の完全なレコードの終わり)
+    private long end;
+
+    private long[] indexFrames;
+    private long[] indexPositions;
+    private int keyframes;
+
+    // 先読みしたレコードの見出し
+    private boolean pending;
+    private long pendingFrame;
+    private int pendingLength;
+    private boolean pendingKeyframe;
+    // 最後に読んだレコードのフレーム番号(-1は未読)
+    private long frame = -1;
+
+    // レコードのlongの数とバイト数(バージョン1は64x32 の行だけ)
+    private final int frameWords;
+    private final int frameBytes;
+    private final byte[] rowBytes;
+    private final byte[] encoded;
+
+    public FrameReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FrameRecorder.HEADER_SIZE);
+            readFully(header, 0);
+            header.flip();
+            if (header.remaining() < FrameRecorder.HEADER_SIZE || header.get(0) != 'C' || header.get(1) != '8'
+                    || header.get(2) != 'F') {
+                throw new IOException("Not a frame recording: " + path);
+            }
+            int version = header.get(3);
+            if (version != 1 && version != FrameRecorder.VERSION) {
+                throw new IOException("Unsupported frame recording version: " + version);
+            }
+            frameBytes = version == 1 ? FrameRecorder.FRAME_BYTES_V1 : FrameRecorder.FRAME_BYTES;
+            frameWords = frameBytes / 8;
+            rowBytes = new byte[frameBytes];
+            encoded = new byte[XorRle.maxEncodedLength(frameBytes)];
+            if (!readIndex(size)) {
+                rebuildIndex(size);
+            }
+            seekRecord(FrameRecorder.HEADER_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // 末尾の索引を読む(無ければfalse)
+    private boolean readIndex(long size) throws IOException {
+        if (size < FrameRecorder.HEADER_SIZE + FrameRecorder.TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(FrameRecorder.TRAILER_SIZE);
+        readFully(trailer, size - FrameRecorder.TRAILER_SIZE);
+        trailer.flip();
+        long indexPosition = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.get() != 'C' || trailer.get() != '8' || trailer.get() != 'F' || trailer.get() != 'I'
+                || count < 0 || indexPosition < FrameRecorder.HEADER_SIZE
+                || indexPosition + 16L * count != size - FrameRecorder.TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer index = ByteBuffer.allocate(16 * count);
+        readFully(index, indexPosition);
+        index.flip();
+        indexFrames = new long[count];
+        indexPositions = new long[count];
+        for (int i = 0; i < count; i++) {
+            indexFrames[i] = index.getLong();
+            indexPositions[i] = index.getLong();
+        }
+        keyframes = count;
+        end = indexPosition;
+        return true;
+    }
+
+    // 先頭から見出しだけを読んで索引を作り直す
+    private void rebuildIndex(long size) throws IOException {
+        indexFrames = new long[64];
+        indexPositions = new long[64];
+        keyframes = 0;
+        end = size;
+        seekRecord(FrameRecorder.HEADER_SIZE);
+        long recordPosition = FrameRecorder.HEADER_SIZE;
+        while (readHeader()) {
+            if (buffer.remaining() < pendingLength && !fill(pendingLength)) {
+                break;
+            }
+            if (pendingKeyframe) {
+                if (keyframes == indexFrames.length) {
+                    indexFrames = Arrays.copyOf(indexFrames, keyframes * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, keyframes * 2);
+                }
+                indexFrames[keyframes] = pendingFrame;
+                indexPositions[keyframes] = recordPosition;
+                keyframes++;
+            }
+            buffer.position(buffer.position() + pendingLength);
+            frame = pendingFrame;
+            pending = false;
+            recordPosition = filePosition - buffer.remaining();
+        }
+        // 途中で切れたレコードは読まない
+        end = recordPosition;
+    }
+
+    // 次のレコードのフレーム番号(終わりなら-1)
+    public long peek() throws IOException {
+        return readHeader() ? pendingFrame : -1;
+    }
+
+    // 次のレコードを読んでrowsに書き、そのフレーム番号を返す(終わりなら-1)
+    // rowsはDisplay.FRAME_SIZE要素で、Display.copyFrameToの形になる(バージョン1の記録は64x32 のまま)
+    public long next(long[] rows) throws IOException {
+        if (!readHeader()) {
+            return -1;
+        }
+        if (buffer.remaining() < pendingLength && !fill(pendingLength)) {
+            throw new IOException("Truncated frame record");
+        }
+        buffer.get(encoded, 0, pendingLength);
+        if (!pendingKeyframe) {
+            toBytes(rows, rowBytes);
+        }
+        XorRle.decode(encoded, 0, pendingLength, pendingKeyframe ? null : rowBytes, rowBytes, frameBytes);
+        int p = 0;
+        for (int y = 0; y < frameWords; y++) {
+            long row = 0;
+            for (int i = 0; i < 8; i++) {
+                row = (row << 8) | Byte.toUnsignedInt(rowBytes[p++]);
+            }
+            rows[y] = row;
+        }
+        // バージョン1の記録は64x32 なので、残りの行と解像度を0にする
+        Arrays.fill(rows, frameWords, Display.FRAME_SIZE, 0L);
+        frame = pendingFrame;
+        pending = false;
+        return frame;
+    }
+
+    // targetフレームの時点で表示されていた内容をrowsに書き、そのレコードのフレーム番号を返す
+    // (最初のレコードより前ならrowsを全て0にして-1を返す)
+    // rowsは以降のnextにそのまま渡すこと(キーフレーム以外は直前の内容との差分のため)
+    public long seek(long target, long[] rows) throws IOException {
+        int k = keyframeBefore(target);
+        if (k < 0) {
+            Arrays.fill(rows, 0, Display.FRAME_SIZE, 0L);
+            seekRecord(FrameRecorder.HEADER_SIZE);
+            return -1;
+        }
+        // 現在位置から進む方が近い場合はキーフレームに戻らない
+        if (frame < indexFrames[k] || frame > target) {
+            seekRecord(indexPositions[k]);
+        }
+        long found = -1;
+        while (true) {
+            long next = peek();
+            if (next < 0 || next > target) {
+                break;
+            }
+            found = next(rows);
+        }
+        return found >= 0 ? found : frame;
+    }
+
+    // target以前で最後のキーフレームの番号(無ければ-1)
+    private int keyframeBefore(long target) {
+        int low = 0;
+        int high = keyframes - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexFrames[mid] <= target) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // キーフレーム数
+    public int getKeyframes() {
+        return keyframes;
+    }
+
+    // 最初のレコードのフレーム番号(記録が無ければ-1)
+    public long getFirstFrame() {
+        return keyframes > 0 ? indexFrames[0] : -1;
+    }
+
+    private void seekRecord(long recordPosition) {
+        buffer.clear().flip();
+        filePosition = recordPosition;
+        pending = false;
+        frame = -1;
+    }
+
+    // 次のレコードの見出しを読む(読み済みなら何もしない、終わりならfalse)
+    private boolean readHeader() throws IOException {
+        if (pending) {
+            return true;
+        }
+        if (filePosition - buffer.remaining() >= end) {
+            return false;
+        }
+        if (buffer.remaining() < FrameRecorder.MAX_RECORD_HEADER) {
+            fill(FrameRecorder.MAX_RECORD_HEADER);
+        }
+        long lengthAndFlag = getVarLong();
+        long value = getVarLong();
+        if (lengthAndFlag < 0 || value < 0) {
+            return false;
+        }
+        pendingKeyframe = (lengthAndFlag & 1) != 0;
+        pendingLength = (int) (lengthAndFlag >>> 1);
+        if (pendingLength > encoded.length || (!pendingKeyframe && frame < 0)) {
+            throw new IOException("Corrupt frame record");
+        }
+        pendingFrame = pendingKeyframe ? value : frame + value;
+        pending = true;
+        return true;
+    }
+
+    // 可変長整数を読む(レコードの終わりを越える場合は-1)
+    private long getVarLong() {
+        long value = 0;
+        int shift = 0;
+        while (buffer.hasRemaining() && filePosition - buffer.remaining() < end && shift < 64) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+        return -1;
+    }
+
+    // バッファにn バイト以上溜まるまで読む(レコードの終わりまでに足りなければfalse)
+    private boolean fill(int n) throws IOException {
+        buffer.compact();
+        try {
+            while (buffer.position() < n && filePosition < end) {
+                int limit = (int) Math.min(buffer.capacity(), buffer.position() + (end - filePosition));
+                buffer.limit(limit);
+                int read = channel.read(buffer, filePosition);
+                if (read < 0) {
+                    break;
+                }
+                filePosition += read;
+            }
+            return buffer.position() >= n;
+        } finally {
+            buffer.limit(buffer.capacity());
+            buffer.flip();
+        }
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        long p = position;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, p);
+            if (read < 0) {
+                break;
+            }
+            p += read;
+        }
+    }
+
+    private void toBytes(long[] rows, byte[] dst) {
+        int p = 0;
+        for (int y = 0; y < frameWords; y++) {
+            long row = rows[y];
+            for (int i = 0; i < 8; i++) {
+                dst[p++] = (byte) (row >>> (56 - i * 8));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,261 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 描画のあったフレームを差分符号化してファイルに記録する
+// エミュレーションスレッドはフレームをリングバッファにコピーするだけで待たない(満杯の時はそのフレームを捨てる)
+// 書き込みスレッドが直前に記録したフレームとのXORをランレングス圧縮し、ダイレクトバッファにまとめてFileChannelに書く
+// (変化の無い行は0の連続になるので、変化した行だけが残る)
+//
+// ファイル形式
+//   'C' '8' 'F' version
+//   レコード: (符号化後のバイト数 << 1 | キーフレーム)(可変長整数)
+//            + フレーム番号(キーフレームは番号そのもの、それ以外は前のレコードからの差、可変長整数)
+//            + XorRle形式の差分(キーフレームは全て0が基準、それ以外は前のレコードのフレームが基準)
+//   フレームはDisplay.copyFrameToの形のDisplay.FRAME_SIZE個のlong(最後が解像度)を8バイトずつ並べたもの
+//   (バージョン1は64x32 のHEIGHT行だけで、128x64 は縮小して記録していた)
+//   索引: キーフレームごとに フレーム番号 8バイト + レコードの位置 8バイト
+//   末尾: 索引の位置 8バイト + キーフレーム数 4バイト + 'C' '8' 'F' 'I'
+//   (末尾の無いファイルはFrameReaderが先頭から読んで索引を作り直す)
+public class FrameRecorder implements Display.FrameListener, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameRecorder.class);
+
+    public static final int VERSION = 2;
+    // キーフレームの間隔(レコード数)
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 600;
+
+    static final int HEADER_SIZE = 4;
+    static final int TRAILER_SIZE = 16;
+    // 1フレームのバイト数(1つ8バイト、ビッグエンディアン)
+    static final int FRAME_BYTES = Display.FRAME_SIZE * 8;
+    // バージョン1の1フレームのバイト数
+    static final int FRAME_BYTES_V1 = Display.HEIGHT * 8;
+    // レコードの見出しの最大バイト数(可変長整数2つ)
+    static final int MAX_RECORD_HEADER = 5 + 10;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int RING_SIZE = 4096;
+    // 書き込むフレームが無い時の待ち時間
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int keyframeInterval;
+
+    // エミュレーションスレッドから書き込みスレッドへの受け渡し(単一生産者・単一消費者)
+    private final long[][] ring = new long[RING_SIZE][Display.FRAME_SIZE];
+    private final long[] ringFrames = new long[RING_SIZE];
+    // 書き込みスレッドが取り出した数
+    private volatile long head;
+    // エミュレーションスレッドが積んだ数
+    private volatile long tail;
+    private volatile long dropped;
+    private volatile boolean closing;
+    private final Thread writer;
+
+    // 以下は書き込みスレッド専用
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private byte[] current = new byte[FRAME_BYTES];
+    private byte[] previous = new byte[FRAME_BYTES];
+    private final byte[] encoded = new byte[XorRle.maxEncodedLength(FRAME_BYTES)];
+    // 次のレコードのファイル上の位置
+    private long position = HEADER_SIZE;
+    private long lastFrame;
+    private int recordsSinceKeyframe;
+    private long records;
+    private long[] indexFrames = new long[64];
+    private long[] indexPositions = new long[64];
+    private int keyframes;
+    private IOException failure;
+
+    public FrameRecorder(Path path) throws IOException {
+        this(path, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public FrameRecorder(Path path, int keyframeInterval) throws IOException {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be positive: " + keyframeInterval);
+        }
+        this.path = path;
+        this.keyframeInterval = keyframeInterval;
+        this.recordsSinceKeyframe = keyframeInterval;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.put(new byte[] {'C', '8', 'F', VERSION});
+        writer = new Thread(this::writeLoop, "frame-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // フレームを受け取る(エミュレーションスレッドから呼ばれる、メモリ確保なし)
+    @Override
+    public void onFrame(long frame, Display display) {
+        long t = tail;
+        if (t - head >= RING_SIZE) {
+            dropped = dropped + 1;
+            return;
+        }
+        int slot = (int) (t & (RING_SIZE - 1));
+        display.copyFrameTo(ring[slot]);
+        ringFrames[slot] = frame;
+        tail = t + 1;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            // 終了の確認を先にする(closeの時点で積まれているフレームは全て書く)
+            boolean last = closing;
+            long h = head;
+            if (h == tail) {
+                if (last) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            int slot = (int) (h & (RING_SIZE - 1));
+            writeRecord(ringFrames[slot], ring[slot]);
+            head = h + 1;
+        }
+        try {
+            flush();
+            writeIndex();
+            flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeRecord(long frame, long[] rows) {
+        int p = 0;
+        for (int y = 0; y < Display.FRAME_SIZE; y++) {
+            long row = rows[y];
+            for (int i = 0; i < 8; i++) {
+                current[p++] = (byte) (row >>> (56 - i * 8));
+            }
+        }
+        boolean keyframe = recordsSinceKeyframe >= keyframeInterval;
+        int length = XorRle.encode(current, keyframe ? null : previous, FRAME_BYTES, encoded, 0);
+        if (keyframe) {
+            addIndex(frame, position);
+            recordsSinceKeyframe = 0;
+        }
+        recordsSinceKeyframe++;
+        try {
+            if (buffer.remaining() < MAX_RECORD_HEADER + length) {
+                flush();
+            }
+            int start = buffer.position();
+            putVarLong(buffer, ((long) length << 1) | (keyframe ? 1 : 0));
+            putVarLong(buffer, keyframe ? frame : frame - lastFrame);
+            buffer.put(encoded, 0, length);
+            position += buffer.position() - start;
+        } catch (IOException e) {
+            fail(e);
+        }
+        lastFrame = frame;
+        records++;
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+    }
+
+    private void addIndex(long frame, long recordPosition) {
+        if (keyframes == indexFrames.length) {
+            indexFrames = Arrays.copyOf(indexFrames, keyframes * 2);
+            indexPositions = Arrays.copyOf(indexPositions, keyframes * 2);
+        }
+        indexFrames[keyframes] = frame;
+        indexPositions[keyframes] = recordPosition;
+        keyframes++;
+    }
+
+    private void writeIndex() throws IOException {
+        long indexPosition = position;
+        for (int i = 0; i < keyframes; i++) {
+            if (buffer.remaining() < 16) {
+                flush();
+            }
+            buffer.putLong(indexFrames[i]);
+            buffer.putLong(indexPositions[i]);
+        }
+        if (buffer.remaining() < TRAILER_SIZE) {
+            flush();
+        }
+        buffer.putLong(indexPosition);
+        buffer.putInt(keyframes);
+        buffer.put(new byte[] {'C', '8', 'F', 'I'});
+    }
+
+    // バッファの内容をファイルに書く(書き込みに失敗した後は捨てる)
+    private void flush() throws IOException {
+        buffer.flip();
+        try {
+            while (failure == null && buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            logger.error("Failed to write frame recording: {}", path, e);
+            failure = e;
+        }
+    }
+
+    // 残りのフレームと索引を書いてファイルを閉じる(エミュレーションの停止後に呼ぶこと)
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (dropped > 0) {
+            logger.warn("Frame recording {}: dropped {} frames (writer could not keep up)", path, dropped);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // 記録したフレーム数(closeの後に参照する)
+    public long getRecords() {
+        return records;
+    }
+
+    // 受け渡しが間に合わずに捨てたフレーム数
+    public long getDropped() {
+        return dropped;
+    }
+
+    // ファイルのバイト数(索引を除く、closeの後に参照する)
+    public long getSize() {
+        return position;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,135 @@
+package chip8;
+
+import java.util.concurrent.locks.LockSupport;
+
+// 60Hzのフレームを刻むスケジューラ
+// 各フレームの開始時刻は絶対時刻で計算するため、待機の誤差が累積しない
+public class FrameScheduler {
+
+    public enum Mode {
+        // 実時間(60fps)
+        REAL_TIME,
+        // 実時間のN倍速
+        SCALED,
+        // 待機なし
+        UNTHROTTLED
+    }
+
+    public static final int FRAMES_PER_SECOND = 60;
+    public static final long FRAME_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+
+    // この時間より短い待ちはparkせずスピンする(parkの粒度対策)
+    private static final long SPIN_THRESHOLD_NANOS = 200_000;
+    // これ以上遅れたら追いつこうとせず基準時刻を取り直す
+    private static final int MAX_LAG_FRAMES = 5;
+
+    private final Mode mode;
+    private final long periodNanos;
+    private volatile boolean running;
+
+    // ジッター計測(予定時刻と実際のフレーム開始時刻の差)
+    private volatile long frameCount;
+    private volatile long jitterSumNanos;
+    private volatile long jitterMaxNanos;
+
+    private FrameScheduler(Mode mode, double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("speed must be positive: " + speed);
+        }
+        this.mode = mode;
+        this.periodNanos = (long) (FRAME_NANOS / speed);
+    }
+
+    public static FrameScheduler realTime() {
+        return new FrameScheduler(Mode.REAL_TIME, 1.0);
+    }
+
+    public static FrameScheduler scaled(double speed) {
+        return new FrameScheduler(Mode.SCALED, speed);
+    }
+
+    public static FrameScheduler unthrottled() {
+        return new FrameScheduler(Mode.UNTHROTTLED, 1.0);
+    }
+
+    // stop()が呼ばれるまでフレームを実行する
+    public void run(Runnable frame) {
+        running = true;
+        long deadline = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (mode != Mode.UNTHROTTLED) {
+                recordJitter(now - deadline);
+            }
+            frame.run();
+            if (mode == Mode.UNTHROTTLED) {
+                frameCount++;
+                continue;
+            }
+            deadline += periodNanos;
+            now = System.nanoTime();
+            if (now - deadline > periodNanos * MAX_LAG_FRAMES) {
+                // 大きく遅れた場合は取り戻さない
+                deadline = now;
+                continue;
+            }
+            waitUntil(deadline);
+            if (Thread.currentThread().isInterrupted()) {
+                running = false;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void recordJitter(long lateNanos) {
+        long jitter = Math.abs(lateNanos);
+        frameCount++;
+        jitterSumNanos += jitter;
+        if (jitter > jitterMaxNanos) {
+            jitterMaxNanos = jitter;
+        }
+    }
+
+    // 計測値のリセット
+    public void resetStatistics() {
+        frameCount = 0;
+        jitterSumNanos = 0;
+        jitterMaxNanos = 0;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    // 平均ジッター(ナノ秒)
+    public double getMeanJitterNanos() {
+        long frames = frameCount;
+        return frames == 0 ? 0 : (double) jitterSumNanos / frames;
+    }
+
+    // 最大ジッター(ナノ秒)
+    public long getMaxJitterNanos() {
+        return jitterMaxNanos;
+    }
+}
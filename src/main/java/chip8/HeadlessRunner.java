@@ -0,0 +1,456 @@
+package chip8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 画面を持たずにROMをまとめて実行するランナー
+public class HeadlessRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(HeadlessRunner.class);
+
+    public static final long DEFAULT_CYCLES = 1_000_000;
+    // プロファイルの集計に出すアドレスの数
+    private static final int HOT_ADDRESSES = 32;
+    // 停止した時に表示する命令の記録の数
+    private static final int TRACE_ON_STOP = 16;
+
+    // 1ROM分の実行結果
+    public record Result(Path rom, long cycles, long elapsedNanos, long framebufferHash) {
+
+        // 1秒あたりの実行サイクル数
+        public double cyclesPerSecond() {
+            return elapsedNanos == 0 ? 0 : cycles * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+
+    // サイクル数指定(frames == 0 の場合に使用)
+    private final long cycles;
+    // フレーム数指定
+    private final long frames;
+    private final int instructionsPerFrame;
+    private final int threads;
+    private final ExecutionEngine.Kind engineKind;
+    // 実行統計を取るか
+    private boolean metrics;
+    // Cxkkの乱数のシード(実行ごとに同じ結果になるよう固定する)
+    private long seed;
+    private Quirks quirks = Quirks.DEFAULT;
+    // フレームの記録先のディレクトリ(nullは記録しない)
+    private Path captureDir;
+    // デバッガの設定(空ならデバッガを使わない)
+    private final List<Consumer<Debugger>> debugOptions = new ArrayList<>();
+    // 命令の記録を書くディレクトリ(nullは記録しない)
+    private Path traceDir;
+    private int traceSize = TraceBuffer.DEFAULT_CAPACITY;
+    // ブザーの音を書くディレクトリ(nullは鳴らさない)
+    private Path wavDir;
+    // プロファイルの出力先のディレクトリ(nullは取らない)
+    private Path profileDir;
+    private int profileInterval = Profiler.DEFAULT_INTERVAL;
+    // 事前変換したブロックのキャッシュ(nullは使わない)
+    private TranslationCache translationCache;
+
+    public HeadlessRunner(long cycles, int threads) {
+        this(cycles, 0, Chip8.DEFAULT_INSTRUCTIONS_PER_FRAME, threads, ExecutionEngine.Kind.INTERPRETER);
+    }
+
+    public HeadlessRunner(long cycles, long frames, int instructionsPerFrame, int threads,
+            ExecutionEngine.Kind engineKind) {
+        this.cycles = cycles;
+        this.frames = frames;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.threads = threads;
+        this.engineKind = engineKind;
+    }
+
+    // 実行統計を取る(結果はMetricsRegistryで集計する)
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setQuirks(Quirks quirks) {
+        this.quirks = quirks;
+    }
+
+    // 描画のあったフレームをROMごとに dir/<ROMのファイル名>.c8f に記録する
+    public void setCaptureDir(Path captureDir) {
+        this.captureDir = captureDir;
+    }
+
+    // ブザーの音をROMごとに dir/<ROMのファイル名>.wav に書く(1フレーム1/60秒として)
+    public void setWavDir(Path wavDir) {
+        this.wavDir = wavDir;
+    }
+
+    // ROMごとにデバッガを付けて実行し、optionでブレークポイントなどを設定する
+    // 止まったら状態と直前の命令を表示し、そのROMの実行を終える
+    public void addDebugOption(Consumer<Debugger> option) {
+        debugOptions.add(option);
+    }
+
+    // 命令をROMごとに最大size件記録し、終了時に dir/<ROMのファイル名>.c8t に書く
+    public void setTraceDir(Path traceDir, int size) {
+        this.traceDir = traceDir;
+        this.traceSize = size;
+    }
+
+    // プロファイルをROMごとに dir/<ROMのファイル名>.folded(collapsed形式)と .hot.txt(アドレスごとの集計)に書く
+    public void setProfileDir(Path profileDir, int interval) {
+        this.profileDir = profileDir;
+        this.profileInterval = interval;
+    }
+
+    // recompiler・lockstepで、事前変換したブロックをROMごとに dir/<ROMのハッシュ>-<設定>.c8x から読み込む
+    // (無ければ解析して作る)
+    public void setTranslationCache(TranslationCache translationCache) {
+        this.translationCache = translationCache;
+    }
+
+    // ROMを1つ実行する
+    public Result run(Path rom) {
+        Chip8 chip8 = new Chip8(engineKind);
+        chip8.setInstructionsPerFrame(instructionsPerFrame);
+        chip8.setSeed(seed);
+        chip8.setQuirks(quirks);
+        if (metrics) {
+            chip8.enableMetrics();
+        }
+        Profiler profiler = startProfiler(chip8);
+        Debugger debugger = startDebugger(chip8, rom);
+        chip8.loadROM(rom.toString());
+        chip8.setTranslationCache(translationCache);
+        // 音と記録はchip8に登録されて実行中に使われるので、実行後に閉じるだけ
+        SoundEngine sound = null;
+        FrameRecorder recorder = null;
+        try {
+            if (wavDir != null) {
+                sound = chip8.enableSound(SoundSink.wav(wavDir.resolve(rom.getFileName() + ".wav")));
+            }
+            if (captureDir != null) {
+                recorder = chip8.recordFrames(captureDir.resolve(rom.getFileName() + ".c8f"));
+            }
+            long start = System.nanoTime();
+            long executed = frames > 0 ? chip8.runFrames(frames) : chip8.runCycles(cycles);
+            long elapsed = System.nanoTime() - start;
+            chip8.disableMetrics();
+            saveProfile(rom, profiler);
+            saveTrace(rom, debugger);
+            return new Result(rom, executed, elapsed, chip8.framebufferHash());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            closeAll(recorder, sound);
+        }
+    }
+
+    // 順に閉じる(途中で失敗しても残りは閉じ、最初の失敗を投げる)
+    private static void closeAll(Closeable... resources) {
+        IOException failure = null;
+        for (Closeable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    // 入力ログを記録時と同じシード・命令数で再生する(記録したフレーム数だけ実行、実行エンジンは--engineのもの)
+    public Result replay(Path rom, InputLog log) {
+        Chip8 chip8 = new Chip8(engineKind);
+        if (metrics) {
+            chip8.enableMetrics();
+        }
+        Profiler profiler = startProfiler(chip8);
+        Debugger debugger = startDebugger(chip8, rom);
+        chip8.loadROM(rom.toString());
+        chip8.startReplay(log);
+        long start = System.nanoTime();
+        long executed = chip8.runFrames(log.getFrames());
+        long elapsed = System.nanoTime() - start;
+        chip8.disableMetrics();
+        try {
+            saveProfile(rom, profiler);
+            saveTrace(rom, debugger);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Result(rom, executed, elapsed, chip8.framebufferHash());
+    }
+
+    private Profiler startProfiler(Chip8 chip8) {
+        if (profileDir == null) {
+            return null;
+        }
+        Profiler profiler = new Profiler(profileInterval);
+        chip8.setProfiler(profiler);
+        return profiler;
+    }
+
+    private Debugger startDebugger(Chip8 chip8, Path rom) {
+        if (debugOptions.isEmpty() && traceDir == null) {
+            return null;
+        }
+        Debugger debugger = new Debugger();
+        for (Consumer<Debugger> option : debugOptions) {
+            option.accept(debugger);
+        }
+        if (traceDir != null) {
+            debugger.setTrace(new TraceBuffer(traceSize));
+        }
+        debugger.setStopListener((stop, cpu) -> {
+            StringBuilder message = new StringBuilder();
+            message.append(rom.getFileName()).append(": ").append(stop).append('\n')
+                    .append("  ").append(cpu.describeState()).append('\n');
+            if (debugger.getTrace() != null) {
+                ByteArrayOutputStream lines = new ByteArrayOutputStream();
+                debugger.getTrace().print(new PrintStream(lines, true), TRACE_ON_STOP);
+                message.append(lines);
+            }
+            System.out.print(message);
+        });
+        chip8.setDebugger(debugger);
+        return debugger;
+    }
+
+    private void saveTrace(Path rom, Debugger debugger) throws IOException {
+        if (debugger != null && debugger.getTrace() != null) {
+            debugger.getTrace().dump(traceDir.resolve(rom.getFileName() + ".c8t"));
+        }
+    }
+
+    private void saveProfile(Path rom, Profiler profiler) throws IOException {
+        if (profiler == null) {
+            return;
+        }
+        profiler.writeCollapsed(profileDir.resolve(rom.getFileName() + ".folded"));
+        try (PrintStream out = new PrintStream(
+                Files.newOutputStream(profileDir.resolve(rom.getFileName() + ".hot.txt")))) {
+            profiler.printHotAddresses(out, HOT_ADDRESSES);
+        }
+    }
+
+    // 複数のROMを全コアに分散して実行する(結果は入力順)
+    public List<Result> runAll(List<Path> roms) throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(roms.size());
+            for (Path rom : roms) {
+                futures.add(pool.submit(() -> run(rom)));
+            }
+            List<Result> results = new ArrayList<>(roms.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    logger.error("ROM execution failed", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // ディレクトリ直下のROMファイル一覧(ファイル名順)
+    public static List<Path> listRoms(Path dir) throws IOException {
+        if (Files.isRegularFile(dir)) {
+            return List.of(dir);
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).sorted().toList();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // AWTを読み込まないようにする
+        System.setProperty("java.awt.headless", "true");
+
+        if (args.length == 0) {
+            System.out.println("Usage: HeadlessRunner <rom-dir|rom> [--cycles N | --frames N] [--ipf N] [--threads N] [--engine KIND] [--seed N] [--quirks NAME] [--capture DIR] [--wav DIR] [--metrics]"
+                    + " [--break ADDR[:COND]] [--break-if COND] [--watch FROM[-TO][:r|w|rw]] [--trace DIR [--trace-size N]]"
+                    + " [--profile DIR [--profile-interval N|exact]]"
+                    + " [--translation-cache DIR]");
+            System.out.println("       HeadlessRunner <rom> --replay <input-log> [--engine KIND] [--metrics] [--profile DIR]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        long cycles = DEFAULT_CYCLES;
+        long frames = 0;
+        int instructionsPerFrame = Chip8.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutionEngine.Kind engineKind = ExecutionEngine.Kind.INTERPRETER;
+        boolean metrics = false;
+        long seed = 0;
+        Quirks quirks = Quirks.DEFAULT;
+        Path replay = null;
+        Path captureDir = null;
+        Path profileDir = null;
+        Path wavDir = null;
+        Path traceDir = null;
+        int traceSize = TraceBuffer.DEFAULT_CAPACITY;
+        List<Consumer<Debugger>> debugOptions = new ArrayList<>();
+        int profileInterval = Profiler.DEFAULT_INTERVAL;
+        Path translationDir = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles" -> cycles = Long.parseLong(args[++i]);
+                case "--frames" -> frames = Long.parseLong(args[++i]);
+                case "--ipf" -> instructionsPerFrame = Integer.parseInt(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--engine" -> engineKind = ExecutionEngine.Kind.valueOf(args[++i].toUpperCase());
+                case "--metrics" -> metrics = true;
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--quirks" -> quirks = Quirks.named(args[++i]);
+                case "--replay" -> replay = Paths.get(args[++i]);
+                case "--capture" -> captureDir = Paths.get(args[++i]);
+                case "--profile" -> profileDir = Paths.get(args[++i]);
+                case "--wav" -> wavDir = Paths.get(args[++i]);
+                case "--break" -> debugOptions.add(breakpoint(args[++i]));
+                case "--break-if" -> {
+                    Debugger.Condition condition = Debugger.Condition.parse(args[++i]);
+                    debugOptions.add(debugger -> debugger.addCondition(condition));
+                }
+                case "--watch" -> debugOptions.add(watchpoint(args[++i]));
+                case "--trace" -> traceDir = Paths.get(args[++i]);
+                case "--trace-size" -> traceSize = Integer.parseInt(args[++i]);
+                case "--translation-cache" -> translationDir = Paths.get(args[++i]);
+                case "--profile-interval" -> profileInterval = args[++i].equals("exact")
+                        ? Profiler.EXACT : Integer.parseInt(args[i]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        HeadlessRunner runner = new HeadlessRunner(cycles, frames, instructionsPerFrame, threads, engineKind);
+        runner.setMetrics(metrics);
+        runner.setSeed(seed);
+        runner.setQuirks(quirks);
+        if (translationDir != null) {
+            runner.setTranslationCache(new TranslationCache(translationDir));
+        }
+        if (captureDir != null) {
+            Files.createDirectories(captureDir);
+            runner.setCaptureDir(captureDir);
+        }
+        debugOptions.forEach(runner::addDebugOption);
+        if (traceDir != null) {
+            Files.createDirectories(traceDir);
+            runner.setTraceDir(traceDir, traceSize);
+        }
+        if (wavDir != null) {
+            Files.createDirectories(wavDir);
+            runner.setWavDir(wavDir);
+        }
+        if (profileDir != null) {
+            Files.createDirectories(profileDir);
+            runner.setProfileDir(profileDir, profileInterval);
+        }
+        if (replay != null) {
+            // 再生結果が記録時と異なれば終了コード1(回帰テスト用)
+            if (!replay(runner, dir, InputLog.load(replay), metrics)) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        List<Path> roms = listRoms(dir);
+        long start = System.nanoTime();
+        List<Result> results = runner.runAll(roms);
+        long elapsed = System.nanoTime() - start;
+
+        long totalCycles = 0;
+        for (Result result : results) {
+            System.out.printf("%-40s %12d cycles %14.0f cycles/s  hash=%016x%n",
+                    result.rom().getFileName(), result.cycles(), result.cyclesPerSecond(), result.framebufferHash());
+            totalCycles += result.cycles();
+        }
+        System.out.printf("%d ROMs, %d cycles in %.3f s (%.0f cycles/s)%n",
+                results.size(), totalCycles, elapsed / 1e9, totalCycles * 1e9 / Math.max(1, elapsed));
+        if (metrics) {
+            printMetrics(MetricsRegistry.getInstance().snapshot());
+        }
+    }
+
+    private static boolean replay(HeadlessRunner runner, Path rom, InputLog log, boolean metrics) {
+        Result result = runner.replay(rom, log);
+        boolean matches = result.framebufferHash() == log.getFinalHash();
+        System.out.printf("%-40s %12d frames %14.0f cycles/s  hash=%016x expected=%016x %s%n",
+                rom.getFileName(), log.getFrames(), result.cyclesPerSecond(), result.framebufferHash(),
+                log.getFinalHash(), matches ? "OK" : "MISMATCH");
+        if (metrics) {
+            printMetrics(MetricsRegistry.getInstance().snapshot());
+        }
+        return matches;
+    }
+
+    // ADDR または ADDR:COND(例: 2A4、2A4:V3==0x10)
+    private static Consumer<Debugger> breakpoint(String spec) {
+        int colon = spec.indexOf(':');
+        int address = Debugger.parseAddress(colon < 0 ? spec : spec.substring(0, colon));
+        if (colon < 0) {
+            return debugger -> debugger.addBreakpoint(address);
+        }
+        Debugger.Condition condition = Debugger.Condition.parse(spec.substring(colon + 1));
+        return debugger -> debugger.addBreakpoint(address, condition);
+    }
+
+    // FROM[-TO][:r|w|rw](例: 300-30F:w、種類の既定はrw)
+    private static Consumer<Debugger> watchpoint(String spec) {
+        int colon = spec.indexOf(':');
+        String range = colon < 0 ? spec : spec.substring(0, colon);
+        String kind = colon < 0 ? "rw" : spec.substring(colon + 1).toLowerCase();
+        int dash = range.indexOf('-');
+        int from = Debugger.parseAddress(dash < 0 ? range : range.substring(0, dash));
+        int to = dash < 0 ? from : Debugger.parseAddress(range.substring(dash + 1));
+        boolean read = kind.contains("r");
+        boolean write = kind.contains("w");
+        return debugger -> debugger.addWatchpoint(from, to, read, write);
+    }
+
+    // 実行統計の合計を表示する
+    private static void printMetrics(MetricsRegistry.Snapshot snapshot) {
+        System.out.printf("instructions=%d (idle %d) frames=%d sprites=%d collisions=%d keyWaits=%d unknown=%d%n",
+                snapshot.instructions(), snapshot.idleInstructions(), snapshot.frames(), snapshot.spriteDraws(),
+                snapshot.collisions(), snapshot.keyWaits(), snapshot.unknownOpcodes());
+        System.out.printf("frame time p50=%d ns p99=%d ns%n", snapshot.frameTimeP50Nanos(), snapshot.frameTimeP99Nanos());
+        long[] counts = snapshot.opcodeCounts();
+        for (int handler = Instruction.CLS; handler < counts.length; handler++) {
+            if (counts[handler] > 0) {
+                System.out.printf("  %-10s %12d%n", Instruction.name(handler), counts[handler]);
+            }
+        }
+    }
+}
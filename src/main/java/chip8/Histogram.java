@@ -0,0 +1,47 @@
+package chip8;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// ナノ秒単位の時間を2のべき乗ごとの区間で数えるヒストグラム
+// 書き込みは1つのスレッドのみが行い、メモリ確保は無い(読み取り側は多少古い値を見ることがある)
+// 別スレッドから読むため、区間の件数はsetOpaque/getOpaqueで読み書きする(Metricsと同じ)
+public class Histogram {
+
+    private static final VarHandle BUCKETS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] buckets = new long[64];
+
+    // 値を1つ記録する
+    public void record(long nanos) {
+        int i = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+        BUCKETS.setOpaque(buckets, i, (long) BUCKETS.getOpaque(buckets, i) + 1);
+    }
+
+    // 他のヒストグラムの値を加える
+    public void addTo(long[] totals) {
+        for (int i = 0; i < buckets.length; i++) {
+            totals[i] += (long) BUCKETS.getOpaque(buckets, i);
+        }
+    }
+
+    // 区間ごとの件数から、指定した割合(0～1)の値の上限を求める
+    public static long percentile(long[] buckets, double fraction) {
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -1,37 +1,123 @@
 package chip8;
 
-import java.util.Scanner;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// 16キーの入力状態
+// キーの押下状態はビットマスク(ビットiがキーi)で保持し、押下・解放はタイムスタンプ付きイベントとしてキューにも積む
+// キー操作はどのスレッドからでも呼べる
+// 入力の記録中はキー操作を一旦溜めておき、エミュレーションスレッドがフレームの先頭で反映する
+// (反映するフレームが決まるので、入力ログを再生すると同じ結果になる)
 public class InputHandler {
 
-    private static final Logger logger = LoggerFactory.getLogger(InputHandler.class);
-    Scanner scanner = new Scanner(System.in);
+    private static final int QUEUE_CAPACITY = 64;
+
     // 16キーの状態
-    public boolean[] keys = new boolean[16];
+    private final AtomicInteger keyMask = new AtomicInteger();
+    // Fx0A用のキーイベント
+    private final KeyEventQueue events = new KeyEventQueue(QUEUE_CAPACITY);
+    // 同じ入力を受け取る別のハンドラー(ロックステップ検証用)
+    private InputHandler mirror;
+    // フレームの先頭で反映するか
+    private volatile boolean latched;
+    // 反映待ちのキー操作
+    private final KeyEventQueue pending = new KeyEventQueue(QUEUE_CAPACITY);
 
     // キーが押された時
     public boolean isKeyPressed(int keyValue) {
         if (keyValue < 0 || keyValue > 15) {
             return false;
         }
-        return keys[keyValue];
+        return (keyMask.get() & (1 << keyValue)) != 0;
     }
 
-    // キー入力
-    public int waitForKeyPress() {
-        String input = scanner.nextLine().trim();
-        try {
-            int key = Integer.parseInt(input , 16);
-            if (key >= 0 && key < 16) {
-                keys[key] = true;
+    // 全キーの状態
+    public int getKeyMask() {
+        return keyMask.get();
+    }
+
+    // キーを押す
+    public void keyPressed(int key) {
+        keyChanged(key, true);
+    }
+
+    // キーを離す
+    public void keyReleased(int key) {
+        keyChanged(key, false);
+    }
+
+    private void keyChanged(int key, boolean pressed) {
+        if (key < 0 || key > 15) {
+            return;
+        }
+        if (latched) {
+            pending.offer(event(key, pressed, System.nanoTime()));
+            return;
+        }
+        apply(key, pressed);
+    }
+
+    // キーの状態を変える(状態が変わった場合はtrue)
+    boolean apply(int key, boolean pressed) {
+        int bit = 1 << key;
+        int previous = pressed ? keyMask.getAndUpdate(m -> m | bit) : keyMask.getAndUpdate(m -> m & ~bit);
+        // 状態が変わった時だけイベントにする(キーリピートを除く)
+        boolean changed = ((previous & bit) != 0) != pressed;
+        if (changed) {
+            events.offer(event(key, pressed, System.nanoTime()));
+        }
+        InputHandler target = mirror;
+        if (target != null) {
+            target.apply(key, pressed);
+        }
+        return changed;
+    }
+
+    // キー操作をフレームの先頭で反映するモードにする
+    void setLatched(boolean latched) {
+        this.latched = latched;
+        if (!latched) {
+            latch(0, null);
+        }
+    }
+
+    // 溜まっているキー操作を反映し、状態が変わったものをlogに記録する(エミュレーションスレッドから呼ぶ)
+    void latch(long frame, InputLog log) {
+        long event;
+        while ((event = pending.poll()) != KeyEventQueue.EMPTY) {
+            if (apply(eventKey(event), eventPressed(event)) && log != null) {
+                log.append(frame, eventKey(event), eventPressed(event));
             }
-            return key;
-        } catch(NumberFormatException e) {
-            logger.error("Invalid key input");
-            return 0;
         }
     }
+
+    void setMirror(InputHandler mirror) {
+        this.mirror = mirror;
+    }
+
+    // 次のキーイベント(無ければKeyEventQueue.EMPTY)
+    long pollEvent() {
+        return events.poll();
+    }
+
+    // 溜まっているキーイベントを捨てる
+    void clearEvents() {
+        events.clear();
+    }
+
+    // イベントの表現: 上位ビットにタイムスタンプ、ビット4に押下/解放、下位4ビットにキー
+    static long event(int key, boolean pressed, long nanos) {
+        return ((nanos & 0x07FF_FFFF_FFFF_FFFFL) << 5) | (pressed ? 0x10 : 0) | key;
+    }
+
+    static int eventKey(long event) {
+        return (int) (event & 0xF);
+    }
+
+    static boolean eventPressed(long event) {
+        return (event & 0x10) != 0;
+    }
+
+    static long eventNanos(long event) {
+        return event >>> 5;
+    }
 }
@@ -0,0 +1,197 @@
+package chip8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// 入力ログ
+// フレーム番号ごとのキーの押下・解放を記録し、ヘッドレスで再生して同じフレームバッファを再現する
+// 再現にはROM・乱数のシード・1フレームあたりの命令数・互換性の設定も同じである必要があるため一緒に保存する
+// (実行エンジンはフレーム境界で同じ状態になるので、どのエンジンでも再生できる)
+//
+// ファイル形式(ビッグエンディアン)
+//   'C' '8' 'I' version
+//   ROMのハッシュ           DataOutput.writeUTF形式(不明の場合は空文字列)
+//   乱数のシード            8バイト
+//   1フレームあたりの命令数  4バイト
+//   実行エンジン            DataOutput.writeUTF形式(バージョン2まで、読み飛ばす)
+//   互換性の設定            1バイト(Quirks.flags()、バージョン1には無く従来の動作)
+//   記録したフレーム数      8バイト
+//   最終フレームのハッシュ   8バイト
+//   エントリのバイト数      4バイト
+//   エントリ: 前のエントリからのフレーム数(7ビットずつの可変長) + 押下(ビット4)とキー(下位4ビット) 1バイト
+public final class InputLog {
+
+    public static final int VERSION = 3;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final String romHash;
+    private final long seed;
+    private final int instructionsPerFrame;
+    private final Quirks quirks;
+    private long frames;
+    private long finalHash;
+
+    // 符号化済みのエントリ
+    private byte[] data;
+    private int length;
+    // 最後に記録したエントリのフレーム番号
+    private long lastFrame;
+
+    InputLog(String romHash, long seed, int instructionsPerFrame, Quirks quirks) {
+        this(romHash, seed, instructionsPerFrame, quirks, new byte[INITIAL_CAPACITY], 0);
+    }
+
+    private InputLog(String romHash, long seed, int instructionsPerFrame, Quirks quirks, byte[] data, int length) {
+        this.romHash = romHash;
+        this.seed = seed;
+        this.instructionsPerFrame = instructionsPerFrame;
+        this.quirks = quirks;
+        this.data = data;
+        this.length = length;
+    }
+
+    // frame番目のフレームの先頭でキーが変化したことを記録する(フレーム番号は減らないこと)
+    void append(long frame, int key, boolean pressed) {
+        if (length + 11 > data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        long delta = frame - lastFrame;
+        while (delta >= 0x80) {
+            data[length++] = (byte) (delta | 0x80);
+            delta >>>= 7;
+        }
+        data[length++] = (byte) delta;
+        data[length++] = (byte) ((pressed ? 0x10 : 0) | key);
+        lastFrame = frame;
+    }
+
+    // 記録を終える(記録したフレーム数と最終フレームのハッシュを残す)
+    void finish(long frames, long finalHash) {
+        this.frames = frames;
+        this.finalHash = finalHash;
+    }
+
+    // 記録したROMのハッシュ(不明の場合はnull)
+    public String getRomHash() {
+        return romHash;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    public Quirks getQuirks() {
+        return quirks;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getFinalHash() {
+        return finalHash;
+    }
+
+    // エントリのバイト数
+    public int getEncodedLength() {
+        return length;
+    }
+
+    public void save(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.write(new byte[] {'C', '8', 'I', VERSION});
+            out.writeUTF(romHash != null ? romHash : "");
+            out.writeLong(seed);
+            out.writeInt(instructionsPerFrame);
+            out.writeByte(quirks.flags());
+            out.writeLong(frames);
+            out.writeLong(finalHash);
+            out.writeInt(length);
+            out.write(data, 0, length);
+        }
+    }
+
+    public static InputLog load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (magic[0] != 'C' || magic[1] != '8' || magic[2] != 'I') {
+                throw new IOException("Not an input log: " + path);
+            }
+            if (magic[3] < 1 || magic[3] > VERSION) {
+                throw new IOException("Unsupported input log version: " + magic[3]);
+            }
+            String romHash = in.readUTF();
+            long seed = in.readLong();
+            int instructionsPerFrame = in.readInt();
+            if (magic[3] < 3) {
+                // 実行エンジンの名前
+                in.readUTF();
+            }
+            Quirks quirks = magic[3] >= 2 ? Quirks.fromFlags(in.readUnsignedByte()) : Quirks.DEFAULT;
+            long frames = in.readLong();
+            long finalHash = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > Files.size(path)) {
+                throw new IOException("Corrupt input log: " + path);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            InputLog log = new InputLog(romHash.isEmpty() ? null : romHash, seed, instructionsPerFrame, quirks,
+                    data, length);
+            log.finish(frames, finalHash);
+            return log;
+        }
+    }
+
+    // 再生位置
+    Player player() {
+        return new Player();
+    }
+
+    // 記録したキー操作を同じフレームで反映する
+    final class Player {
+
+        private int position;
+        private long nextFrame;
+
+        private Player() {
+            readDelta();
+        }
+
+        // frame番目のフレームで記録されたキー操作を反映する(フレームごとに順に呼ぶ)
+        void apply(long frame, InputHandler inputHandler) {
+            while (position < length && nextFrame == frame) {
+                int entry = data[position++];
+                inputHandler.apply(entry & 0xF, (entry & 0x10) != 0);
+                readDelta();
+            }
+        }
+
+        private void readDelta() {
+            if (position >= length) {
+                return;
+            }
+            long delta = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = data[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            nextFrame += delta;
+        }
+    }
+}
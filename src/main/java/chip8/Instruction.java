@@ -0,0 +1,192 @@
+package chip8;
+
+// デコード済み命令の表現
+// 上位16ビットにハンドラ番号、下位16ビットにオペコードを詰めたint値で表す
+// (0はデコード前を意味する)
+public final class Instruction {
+
+    // ハンドラ番号
+    public static final int CLS = 1;         // 00E0
+    public static final int RET = 2;         // 00EE
+    public static final int SYS = 3;         // 0nnn
+    public static final int JP = 4;          // 1nnn
+    public static final int CALL = 5;        // 2nnn
+    public static final int SE_VX_KK = 6;    // 3xkk
+    public static final int SNE_VX_KK = 7;   // 4xkk
+    public static final int SE_VX_VY = 8;    // 5xy0
+    public static final int LD_VX_KK = 9;    // 6xkk
+    public static final int ADD_VX_KK = 10;  // 7xkk
+    public static final int LD_VX_VY = 11;   // 8xy0
+    public static final int OR = 12;         // 8xy1
+    public static final int AND = 13;        // 8xy2
+    public static final int XOR = 14;        // 8xy3
+    public static final int ADD_VX_VY = 15;  // 8xy4
+    public static final int SUB = 16;        // 8xy5
+    public static final int SHR = 17;        // 8xy6
+    public static final int SUBN = 18;       // 8xy7
+    public static final int SHL = 19;        // 8xyE
+    public static final int SNE_VX_VY = 20;  // 9xy0
+    public static final int LD_I = 21;       // Annn
+    public static final int JP_V0 = 22;      // Bnnn
+    public static final int RND = 23;        // Cxkk
+    public static final int DRW = 24;        // Dxyn
+    public static final int SKP = 25;        // Ex9E
+    public static final int SKNP = 26;       // ExA1
+    public static final int LD_VX_DT = 27;   // Fx07
+    public static final int LD_VX_K = 28;    // Fx0A
+    public static final int LD_DT_VX = 29;   // Fx15
+    public static final int LD_ST_VX = 30;   // Fx18
+    public static final int ADD_I_VX = 31;   // Fx1E
+    public static final int LD_F_VX = 32;    // Fx29
+    public static final int LD_B_VX = 33;    // Fx33
+    public static final int LD_I_VX = 34;    // Fx55
+    public static final int LD_VX_I = 35;    // Fx65
+    // 1nnn: 何もせずに待つループの後方ジャンプ(CPUがデコード時にJPを置き換える)
+    public static final int JP_IDLE = 36;
+    // 互換性の設定による置き換え(Quirksがデコード時に元のハンドラと入れ替える)
+    public static final int SHR_VY = 37;      // 8xy6: Vx = Vy >> 1
+    public static final int SHL_VY = 38;      // 8xyE: Vx = Vy << 1
+    public static final int LD_I_VX_INC = 39; // Fx55: 格納後に I += x + 1
+    public static final int LD_VX_I_INC = 40; // Fx65: 読み込み後に I += x + 1
+    public static final int JP_VX = 41;       // Bnnn: Vx + nnn にジャンプ
+    public static final int DRW_CLIP = 42;    // Dxyn: 画面の端で切り取る
+    // SUPER-CHIP
+    public static final int SCD = 43;         // 00Cn: n行下にスクロール
+    public static final int SCR = 44;         // 00FB: 4ピクセル右にスクロール
+    public static final int SCL = 45;         // 00FC: 4ピクセル左にスクロール
+    public static final int EXIT = 46;        // 00FD: 停止
+    public static final int LOW = 47;         // 00FE: 64x32
+    public static final int HIGH = 48;        // 00FF: 128x64
+    public static final int DRW_16 = 49;      // Dxy0: 16x16のスプライト
+    public static final int DRW_16_CLIP = 50; // Dxy0: 画面の端で切り取る(Quirks.clipSprites)
+    public static final int LD_HF_VX = 51;    // Fx30: 大きいフォントのアドレス
+    public static final int LD_R_VX = 52;     // Fx75: V0～VxをRPLフラグに保存
+    public static final int LD_VX_R = 53;     // Fx85: RPLフラグからV0～Vxに読み込み
+    public static final int UNKNOWN = 54;
+
+    // ハンドラ番号ごとの名前(統計の表示用)
+    private static final String[] NAMES = {
+        "", "CLS", "RET", "SYS", "JP", "CALL", "SE_VX_KK", "SNE_VX_KK", "SE_VX_VY", "LD_VX_KK",
+        "ADD_VX_KK", "LD_VX_VY", "OR", "AND", "XOR", "ADD_VX_VY", "SUB", "SHR", "SUBN", "SHL",
+        "SNE_VX_VY", "LD_I", "JP_V0", "RND", "DRW", "SKP", "SKNP", "LD_VX_DT", "LD_VX_K", "LD_DT_VX",
+        "LD_ST_VX", "ADD_I_VX", "LD_F_VX", "LD_B_VX", "LD_I_VX", "LD_VX_I", "JP_IDLE", "SHR_VY", "SHL_VY",
+        "LD_I_VX_INC", "LD_VX_I_INC", "JP_VX", "DRW_CLIP", "SCD", "SCR", "SCL", "EXIT", "LOW", "HIGH", "DRW_16",
+        "DRW_16_CLIP", "LD_HF_VX", "LD_R_VX", "LD_VX_R", "UNKNOWN"
+    };
+
+    private Instruction() {
+    }
+
+    // ハンドラ番号の名前
+    public static String name(int handler) {
+        return NAMES[handler];
+    }
+
+    // オペコードをデコードする
+    public static int decode(int opcode) {
+        return (handlerOf(opcode) << 16) | opcode;
+    }
+
+    private static int handlerOf(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (opcode == 0x00E0) {
+                    return CLS;
+                } else if (opcode == 0x00EE) {
+                    return RET;
+                } else if ((opcode & 0xFFF0) == 0x00C0) {
+                    return SCD;
+                }
+                switch (opcode) {
+                    case 0x00FB: return SCR;
+                    case 0x00FC: return SCL;
+                    case 0x00FD: return EXIT;
+                    case 0x00FE: return LOW;
+                    case 0x00FF: return HIGH;
+                    default: return SYS;
+                }
+            case 0x1000: return JP;
+            case 0x2000: return CALL;
+            case 0x3000: return SE_VX_KK;
+            case 0x4000: return SNE_VX_KK;
+            case 0x5000: return SE_VX_VY;
+            case 0x6000: return LD_VX_KK;
+            case 0x7000: return ADD_VX_KK;
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0: return LD_VX_VY;
+                    case 0x1: return OR;
+                    case 0x2: return AND;
+                    case 0x3: return XOR;
+                    case 0x4: return ADD_VX_VY;
+                    case 0x5: return SUB;
+                    case 0x6: return SHR;
+                    case 0x7: return SUBN;
+                    case 0xE: return SHL;
+                    default: return UNKNOWN;
+                }
+            case 0x9000: return SNE_VX_VY;
+            case 0xA000: return LD_I;
+            case 0xB000: return JP_V0;
+            case 0xC000: return RND;
+            case 0xD000: return (opcode & 0x000F) == 0 ? DRW_16 : DRW;
+            case 0xE000:
+                switch (opcode & 0x00FF) {
+                    case 0x9E: return SKP;
+                    case 0xA1: return SKNP;
+                    default: return UNKNOWN;
+                }
+            default:
+                switch (opcode & 0x00FF) {
+                    case 0x07: return LD_VX_DT;
+                    case 0x0A: return LD_VX_K;
+                    case 0x15: return LD_DT_VX;
+                    case 0x18: return LD_ST_VX;
+                    case 0x1E: return ADD_I_VX;
+                    case 0x29: return LD_F_VX;
+                    case 0x30: return LD_HF_VX;
+                    case 0x33: return LD_B_VX;
+                    case 0x55: return LD_I_VX;
+                    case 0x65: return LD_VX_I;
+                    case 0x75: return LD_R_VX;
+                    case 0x85: return LD_VX_R;
+                    default: return UNKNOWN;
+                }
+        }
+    }
+
+    // ハンドラ番号
+    public static int handler(int instruction) {
+        return instruction >>> 16;
+    }
+
+    // オペコード
+    public static int opcode(int instruction) {
+        return instruction & 0xFFFF;
+    }
+
+    // 第2ニブル
+    public static int x(int instruction) {
+        return (instruction >> 8) & 0xF;
+    }
+
+    // 第3ニブル
+    public static int y(int instruction) {
+        return (instruction >> 4) & 0xF;
+    }
+
+    // 下位4ビット
+    public static int n(int instruction) {
+        return instruction & 0xF;
+    }
+
+    // 下位8ビット
+    public static int kk(int instruction) {
+        return instruction & 0xFF;
+    }
+
+    // アドレス
+    public static int nnn(int instruction) {
+        return instruction & 0xFFF;
+    }
+}
@@ -0,0 +1,71 @@
+package chip8;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// キーイベントを受け渡す固定長のロックフリーキュー
+// 書き込みは任意のスレッドから、読み込みはエミュレーションスレッドのみが行う
+// 満杯の場合は新しいイベントを捨てる(キーの押下状態自体はInputHandlerのビットマスクに残る)
+final class KeyEventQueue {
+
+    static final long EMPTY = -1;
+
+    private final long[] buffer;
+    // 各スロットのシーケンス番号(書き込み完了でposition + 1、読み出し完了でposition + capacity)
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // 読み込み位置(エミュレーションスレッド専用)
+    private long head;
+
+    KeyEventQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        buffer = new long[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    boolean offer(long event) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = event;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // 先頭のイベントを取り出す(無ければEMPTY)
+    long poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return EMPTY;
+        }
+        long event = buffer[index];
+        sequences.set(index, head + buffer.length);
+        head++;
+        return event;
+    }
+
+    // 溜まっているイベントを捨てる
+    void clear() {
+        while (poll() != EMPTY) {
+            // 読み捨てる
+        }
+    }
+}
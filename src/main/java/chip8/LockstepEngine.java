@@ -0,0 +1,109 @@
+package chip8;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// リコンパイラと、独立したメモリ・ディスプレイを持つインタプリタを並走させ、
+// ブロックごとにレジスタ・メモリ・表示内容を比較する検証用エンジン
+// 不一致を検出したらログに出し、インタプリタ側をリコンパイラ側の状態に合わせて続行する
+public class LockstepEngine implements ExecutionEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(LockstepEngine.class);
+
+    private final CPU cpu;
+    private final Memory memory;
+    private final Display display;
+    private final Recompiler recompiler;
+
+    // 比較用のインタプリタ
+    private final Memory shadowMemory = new Memory();
+    private final Display shadowDisplay = new Display();
+    private final CPU shadowCpu;
+
+    private boolean synced;
+    // 統計・プロファイルを取るか(リコンパイラ側のみで数える)
+    private boolean counted;
+    private long divergences;
+
+    public LockstepEngine(CPU cpu, Memory memory, Display display, InputHandler inputHandler) {
+        this.cpu = cpu;
+        this.memory = memory;
+        this.display = display;
+        this.recompiler = new Recompiler(cpu, memory);
+        // インタプリタ側は別のキューで同じキー入力を受け取る
+        InputHandler shadowInput = new InputHandler();
+        inputHandler.setMirror(shadowInput);
+        this.shadowCpu = new CPU(shadowMemory, shadowDisplay, shadowInput);
+    }
+
+    @Override
+    public int run(int budget) {
+        if (!synced) {
+            // ROMのロード後、最初の実行時に状態を揃える
+            resync();
+        }
+        int executed = 0;
+        while (executed < budget) {
+            int pc = cpu.pc;
+            // 待機ループの早送りはインタプリタ側も同じ命令数で同じ状態になる
+            int count = cpu.skipIdle(budget - executed);
+            if (count == 0) {
+                count = counted ? recompiler.stepCounted(budget - executed)
+                        : recompiler.step(budget - executed);
+            }
+            shadowCpu.run(count);
+            executed += count;
+            if (!matches()) {
+                divergences++;
+                logger.error("Lockstep divergence after block at 0x{} ({} instructions)\n  recompiler: {}\n  interpreter: {}",
+                        Integer.toHexString(pc), count, cpu.describeState(), shadowCpu.describeState());
+                resync();
+            }
+        }
+        return budget;
+    }
+
+    @Override
+    public void updateTimers() {
+        cpu.updateTimers();
+        shadowCpu.updateTimers();
+    }
+
+    private boolean matches() {
+        return cpu.stateEquals(shadowCpu) && memory.contentEquals(shadowMemory)
+                && display.contentEquals(shadowDisplay);
+    }
+
+    void resync() {
+        shadowMemory.copyFrom(memory);
+        shadowDisplay.copyFrom(display);
+        shadowCpu.copyStateFrom(cpu);
+        synced = true;
+    }
+
+    void setMetrics(Metrics metrics) {
+        recompiler.setMetrics(metrics);
+        counted = recompiler.isCounted();
+    }
+
+    // 事前変換したブロックの登録先
+    Recompiler getRecompiler() {
+        return recompiler;
+    }
+
+    // 比較用のインタプリタにも同じ設定を使う
+    void setQuirks(Quirks quirks) {
+        cpu.setQuirks(quirks);
+        shadowCpu.setQuirks(quirks);
+    }
+
+    void setProfiler(Profiler profiler) {
+        recompiler.setProfiler(profiler);
+        counted = recompiler.isCounted();
+    }
+
+    // 検出した不一致の数
+    public long getDivergences() {
+        return divergences;
+    }
+}
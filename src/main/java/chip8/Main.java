@@ -1,12 +1,27 @@
 package chip8;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class Main {
+
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
     public static void main(String[] args) {
         
-        Chip8 chip8 = new Chip8();
+        Chip8 chip8 = new Chip8(engineKind(args));
         if (args.length > 0) {
             chip8.loadROM(args[0]);
         } else {
@@ -14,22 +29,201 @@ public class Main {
             System.exit(1);
         }
 
+        // オプション: --ipf N(1フレームの命令数) / --speed N(N倍速) / --unthrottled(待機なし)
+        //             --engine interpreter|recompiler|lockstep(実行エンジン)
+        //             --metrics(実行統計をJMXで公開し、10秒ごとにログに出す)
+        //             --seed N(乱数のシード) / --record FILE(入力を記録し、終了時に入力ログを保存)
+        //             --capture FILE(描画したフレームをファイルに記録)
+        //             --quirks default|vip|schip|xochip(互換性の設定)
+        //             --mute(音を出さない) / --wav FILE(音声デバイスの代わりにWAVファイルに書く)
+        //             --profile FILE(終了時にプロファイルをcollapsed形式で保存し、アドレスごとの集計を表示)
+        //             --profile-interval N|exact(プロファイルの記録間隔の命令数)
+        //             --translation-cache DIR(recompiler・lockstepで事前変換したブロックをDIRに保存し、次回から読み込む)
+        //             --terminal(ウインドウを開かずに端末に表示する、キー入力は受け付けない)
+        //             --terminal-fps N(端末の表示の最大更新回数/秒)
+        FrameScheduler scheduler = FrameScheduler.realTime();
+        Metrics metrics = null;
+        Path record = null;
+        Path capture = null;
+        Path profile = null;
+        boolean mute = false;
+        Path wav = null;
+        int profileInterval = Profiler.DEFAULT_INTERVAL;
+        boolean terminal = false;
+        int terminalFps = TerminalRenderer.DEFAULT_MAX_FPS;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--ipf" -> chip8.setInstructionsPerFrame(Integer.parseInt(args[++i]));
+                case "--speed" -> scheduler = FrameScheduler.scaled(Double.parseDouble(args[++i]));
+                case "--unthrottled" -> scheduler = FrameScheduler.unthrottled();
+                case "--engine" -> i++;
+                case "--metrics" -> metrics = enableMetrics(chip8);
+                case "--seed" -> chip8.setSeed(Long.parseLong(args[++i]));
+                case "--quirks" -> chip8.setQuirks(Quirks.named(args[++i]));
+                case "--record" -> record = Paths.get(args[++i]);
+                case "--capture" -> capture = Paths.get(args[++i]);
+                case "--profile" -> profile = Paths.get(args[++i]);
+                case "--mute" -> mute = true;
+                case "--wav" -> wav = Paths.get(args[++i]);
+                case "--translation-cache" -> chip8.setTranslationCache(new TranslationCache(Paths.get(args[++i])));
+                case "--terminal" -> terminal = true;
+                case "--terminal-fps" -> terminalFps = Integer.parseInt(args[++i]);
+                case "--profile-interval" -> profileInterval = args[++i].equals("exact")
+                        ? Profiler.EXACT : Integer.parseInt(args[i]);
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+        FrameScheduler selectedScheduler = scheduler;
+        Metrics selectedMetrics = metrics;
+        Path recordPath = record;
+        if (recordPath != null) {
+            chip8.startRecording();
+        }
+        FrameRecorder recorder = capture != null ? recordFrames(chip8, capture) : null;
+        Path profilePath = profile;
+        Profiler profiler = profile != null ? new Profiler(profileInterval) : null;
+        chip8.setProfiler(profiler);
+        if (!mute) {
+            enableSound(chip8, wav);
+        }
+        boolean soundFile = !mute && wav != null;
+
+        // エミュレーションスレッド
+        Thread emulation = new Thread(() -> {
+            chip8.start(selectedScheduler);
+        });
+
+        if (terminal) {
+            showInTerminal(chip8, emulation, terminalFps, recordPath, recorder, profilePath, profiler);
+            emulation.start();
+            return;
+        }
+
         // 画面表示
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame("CHIP-8 Emulator");
-            Screen screen = new Screen(chip8.getDisplay(), 10, chip8.getInputHandler());
+            Screen screen = new Screen(chip8.getFramePublisher(), 10, chip8.getInputHandler());
+            screen.setMetrics(selectedMetrics);
             frame.add(screen);
             // フレームサイズの自動調整
             frame.pack();
             // ウインドウを閉じた時にアプリケーションを終了
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            if (recordPath != null || recorder != null || profiler != null || soundFile) {
+                // 終了前にエミュレーションを止めて記録を保存する
+                frame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        saveRecordings(chip8, emulation, recordPath, recorder, profilePath, profiler);
+                    }
+                });
+            }
             // フレームを表示状態にする
             frame.setVisible(true);
         });
 
         // 処理の開始
-        new Thread(() -> {
-            chip8.start();
-        }).start();
+        emulation.start();
+    }
+
+    // 端末に表示する(Ctrl+Cなどで終了する時にカーソルを戻し、記録を保存する)
+    private static void showInTerminal(Chip8 chip8, Thread emulation, int maxFps, Path inputLogPath,
+            FrameRecorder recorder, Path profilePath, Profiler profiler) {
+        TerminalRenderer renderer = new TerminalRenderer(chip8.getFramePublisher(),
+                new FileOutputStream(FileDescriptor.out), maxFps);
+        renderer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            renderer.close();
+            saveRecordings(chip8, emulation, inputLogPath, recorder, profilePath, profiler);
+            logger.info("Terminal output: {} updates, {} bytes", renderer.getFrames(), renderer.getBytes());
+        }));
+    }
+
+    private static FrameRecorder recordFrames(Chip8 chip8, Path path) {
+        try {
+            return chip8.recordFrames(path);
+        } catch (IOException e) {
+            logger.error("Failed to open frame recording", e);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static void saveRecordings(Chip8 chip8, Thread emulation, Path inputLogPath, FrameRecorder recorder,
+            Path profilePath, Profiler profiler) {
+        chip8.stop();
+        try {
+            emulation.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (inputLogPath != null) {
+            try {
+                InputLog log = chip8.stopRecording();
+                log.save(inputLogPath);
+                logger.info("Saved input log: {} ({} frames, {} bytes of input)",
+                        inputLogPath, log.getFrames(), log.getEncodedLength());
+            } catch (IOException e) {
+                logger.error("Failed to save input log", e);
+            }
+        }
+        if (recorder != null) {
+            try {
+                recorder.close();
+                logger.info("Saved frame recording: {} frames, {} bytes", recorder.getRecords(), recorder.getSize());
+            } catch (IOException e) {
+                logger.error("Failed to save frame recording", e);
+            }
+        }
+        if (profiler != null) {
+            try {
+                profiler.writeCollapsed(profilePath);
+                logger.info("Saved profile: {} ({} samples)", profilePath, profiler.getSamples());
+                profiler.printHotAddresses(System.out, 20);
+            } catch (IOException e) {
+                logger.error("Failed to save profile", e);
+            }
+        }
+        try {
+            chip8.disableSound();
+        } catch (IOException e) {
+            logger.error("Failed to save sound", e);
+        }
+    }
+
+    // 音声デバイス(無ければ無音)またはWAVファイルにブザーを出力する
+    private static void enableSound(Chip8 chip8, Path wav) {
+        try {
+            chip8.enableSound(wav != null ? SoundSink.wav(wav) : SoundSink.open(SoundEngine.DEFAULT_LINE_TICKS));
+        } catch (IOException e) {
+            logger.error("Failed to open sound output", e);
+            System.exit(1);
+        }
+    }
+
+    // 実行統計を有効にしてJMXに登録する
+    private static Metrics enableMetrics(Chip8 chip8) {
+        Metrics metrics = chip8.enableMetrics();
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.registerMBean();
+        registry.startPeriodicSnapshots(10, TimeUnit.SECONDS, snapshot -> logger.info(
+                "{} instructions ({} /s), frame time p50={} ns p99={} ns, render latency p99={} ns",
+                snapshot.instructions(), String.format("%.0f", snapshot.instructionsPerSecond()),
+                snapshot.frameTimeP50Nanos(), snapshot.frameTimeP99Nanos(), snapshot.renderLatencyP99Nanos()));
+        return metrics;
+    }
+
+    // 実行エンジンはインスタンス生成時に決めるため先に読む
+    static ExecutionEngine.Kind engineKind(String[] args) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--engine")) {
+                return ExecutionEngine.Kind.valueOf(args[i + 1].toUpperCase());
+            }
+        }
+        return ExecutionEngine.Kind.INTERPRETER;
     }
 }
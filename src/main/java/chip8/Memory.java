@@ -1,63 +1,215 @@
 package chip8;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// 4KBのメモリ
+// 内容は256バイトのページ単位で持ち、初期状態ではMemoryImageのページを共有する
+// 最初に書き込まれた時にそのページだけをコピーするため、同じROMのインスタンスを大量に作ってもほとんど確保しない
 public class Memory {
 
     private static final Logger logger = LoggerFactory.getLogger(Memory.class);
 
-    private byte[] memory = new byte[4096];
+    public static final int SIZE = 4096;
     public static final int SPRITE_START_ADDRESS = 0x000;
+    // SUPER-CHIPの大きいフォント(8x10)の位置
+    public static final int LARGE_SPRITE_START_ADDRESS = 0x050;
+
+    // メモリ書き込みの通知先(デコード済み命令キャッシュの破棄などに使う)
+    public interface WriteListener {
+        void onWrite(int address, int length);
+    }
+
+    // ページ単位の割り当て(書き込み時にだけ共有イメージからコピーする)
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_COUNT = SIZE / PAGE_SIZE;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // ページごとの内容(自分のものでないページはMemoryImageと共有しているので書き換えない)
+    // (内容を自分で持つサブクラスではnull)
+    private final byte[][] pages;
+    // 自分でコピーしたページのビット集合
+    private int ownedPages;
+    private WriteListener[] writeListeners = new WriteListener[0];
+
+    // フォントセットのみのイメージから始める
+    public Memory() {
+        this(MemoryImage.fontOnly());
+    }
+
+    // イメージを初期内容として始める(コピーは最初の書き込みまで行わない)
+    public Memory(MemoryImage image) {
+        pages = new byte[PAGE_COUNT][];
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            pages[page] = image.page(page);
+        }
+    }
+
+    // 内容を自分で持つサブクラス用(ページを割り当てない)
+    Memory(Void external) {
+        pages = null;
+    }
+
+    // 書き込み通知先の追加
+    public void addWriteListener(WriteListener listener) {
+        WriteListener[] listeners = Arrays.copyOf(writeListeners, writeListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        writeListeners = listeners;
+    }
+
+    void notifyWrite(int address, int length) {
+        for (WriteListener listener : writeListeners) {
+            listener.onWrite(address, length);
+        }
+    }
+
+    // 書き込む前に、共有しているページを自分用にコピーする
+    private byte[] ownPage(int page) {
+        if ((ownedPages & (1 << page)) == 0) {
+            pages[page] = pages[page].clone();
+            ownedPages |= 1 << page;
+        }
+        return pages[page];
+    }
+
+    // メモリ全体をイメージの内容に戻す(コピーした分は捨てる)
+    public void loadImage(MemoryImage image) {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            pages[page] = image.page(page);
+        }
+        ownedPages = 0;
+        notifyWrite(0, SIZE);
+    }
 
     public void loadDefaultFontSet() {
-        byte[] fontset = {
-            (byte)0xF0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xF0, // 0
-            (byte)0x20, (byte)0x60, (byte)0x20, (byte)0x20, (byte)0x70, // 1
-            (byte)0xF0, (byte)0x10, (byte)0xF0, (byte)0x80, (byte)0xF0, // 2
-            (byte)0xF0, (byte)0x10, (byte)0xF0, (byte)0x10, (byte)0xF0, // 3
-            (byte)0x90, (byte)0x90, (byte)0xF0, (byte)0x10, (byte)0x10, // 4
-            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x10, (byte)0xF0, // 5
-            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x90, (byte)0xF0, // 6
-            (byte)0xF0, (byte)0x10, (byte)0x20, (byte)0x40, (byte)0x40, // 7
-            (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x90, (byte)0xF0, // 8
-            (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x10, (byte)0xF0, // 9
-            (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x90, (byte)0x90, // A
-            (byte)0xE0, (byte)0x90, (byte)0xE0, (byte)0x90, (byte)0xE0, // B
-            (byte)0xF0, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0xF0, // C
-            (byte)0xE0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xE0, // D
-            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x80, (byte)0xF0, // E
-            (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x80, (byte)0x80  // F
-        };
         // フォントセットをメモリの先頭にロード
-        System.arraycopy(fontset, 0, memory, 0, fontset.length);
+        write(SPRITE_START_ADDRESS, MemoryImage.FONT_SET, 0, MemoryImage.FONT_SET.length);
+        write(LARGE_SPRITE_START_ADDRESS, MemoryImage.LARGE_FONT_SET, 0, MemoryImage.LARGE_FONT_SET.length);
     }
 
     public void loadROM(String filepath) {
         try {
-            // ファイルから全バイトを読み込む
-            byte[] romData = Files.readAllBytes(Paths.get(filepath));
-            // メモリ容量のチェック
-            if (romData.length + 0x200 > memory.length) {
-                logger.error("ROM size exceeds memory capacity");
-                return;
-            }
-            // ROMをメモリにコピー
-            System.arraycopy(romData, 0, memory, 0x200, romData.length);
-        } catch (IOException e) {
+            // ROMライブラリ経由で読み込み、共有イメージから始める
+            loadImage(RomLibrary.getInstance().load(Paths.get(filepath)).image());
+        } catch (IOException | IllegalArgumentException e) {
             logger.error("Failed to load ROM", e);
         }
     }
 
+    public void loadROM(byte[] romData) {
+        // メモリ容量のチェック
+        if (romData.length > MemoryImage.MAX_ROM_SIZE) {
+            logger.error("ROM size exceeds memory capacity");
+            return;
+        }
+        // ROMをメモリにコピー
+        write(MemoryImage.ROM_START_ADDRESS, romData, 0, romData.length);
+    }
+
+    // srcの内容をaddress以降に書き込む(内容が同じ場合はコピーも通知もしない)
+    void write(int address, byte[] src, int offset, int length) {
+        boolean changed = false;
+        int end = address + length;
+        for (int a = address; a < end; ) {
+            int page = a >>> PAGE_SHIFT;
+            int from = a & PAGE_MASK;
+            int count = Math.min(PAGE_SIZE - from, end - a);
+            int srcFrom = offset + a - address;
+            if (Arrays.mismatch(pages[page], from, from + count, src, srcFrom, srcFrom + count) >= 0) {
+                System.arraycopy(src, srcFrom, ownPage(page), from, count);
+                changed = true;
+            }
+            a += count;
+        }
+        if (changed) {
+            notifyWrite(address, length);
+        }
+    }
+
     public void setByte(int address, byte value) {
-        memory[address] = value;
+        ownPage(address >>> PAGE_SHIFT)[address & PAGE_MASK] = value;
+        notifyWrite(address, 1);
     }
 
     public byte getByte(int address) {
-        return memory[address];
+        return pages[address >>> PAGE_SHIFT][address & PAGE_MASK];
+    }
+
+    // 他のメモリの内容をコピー(相手が共有イメージのままのページは共有する)
+    public void copyFrom(Memory other) {
+        if (other.pages == null) {
+            // 別の実装からは内容を取り出して書き込む
+            byte[] content = new byte[SIZE];
+            other.copyTo(content, 0);
+            restore(content, 0);
+            return;
+        }
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if ((other.ownedPages & (1 << page)) == 0) {
+                pages[page] = other.pages[page];
+                ownedPages &= ~(1 << page);
+            } else {
+                System.arraycopy(other.pages[page], 0, ownPage(page), 0, PAGE_SIZE);
+            }
+        }
+        notifyWrite(0, SIZE);
+    }
+
+    // メモリ内容の比較
+    public boolean contentEquals(Memory other) {
+        if (other.pages == null) {
+            for (int address = 0; address < SIZE; address++) {
+                if (getByte(address) != other.getByte(address)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            if (pages[page] != other.pages[page] && !Arrays.equals(pages[page], other.pages[page])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // メモリ内容をdstのoffset以降にコピー
+    public void copyTo(byte[] dst, int offset) {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            System.arraycopy(pages[page], 0, dst, offset + (page << PAGE_SHIFT), PAGE_SIZE);
+        }
+    }
+
+    // srcのoffset以降からメモリ内容を復元する
+    // 書き込み通知は実際に変化した範囲だけに出す(命令キャッシュを不要に捨てないため)
+    // 変化の無いページはコピーしない
+    public void restore(byte[] src, int offset) {
+        int first = -1;
+        int last = -1;
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            int base = offset + (page << PAGE_SHIFT);
+            int from = Arrays.mismatch(pages[page], 0, PAGE_SIZE, src, base, base + PAGE_SIZE);
+            if (from < 0) {
+                continue;
+            }
+            byte[] content = ownPage(page);
+            int to = PAGE_SIZE - 1;
+            while (content[to] == src[base + to]) {
+                to--;
+            }
+            System.arraycopy(src, base + from, content, from, to - from + 1);
+            if (first < 0) {
+                first = (page << PAGE_SHIFT) + from;
+            }
+            last = (page << PAGE_SHIFT) + to;
+        }
+        if (first >= 0) {
+            notifyWrite(first, last - first + 1);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package chip8;
+
+import java.util.Arrays;
+
+// メモリの初期内容(フォントセット+ROM)を保持する不変のイメージ
+// ページ単位で複数のMemoryから共有され、書き込まれたページだけが各Memoryにコピーされる
+public final class MemoryImage {
+
+    // ROMの読み込み先アドレスと最大サイズ
+    public static final int ROM_START_ADDRESS = 0x200;
+    public static final int MAX_ROM_SIZE = Memory.SIZE - ROM_START_ADDRESS;
+
+    static final byte[] FONT_SET = {
+        (byte)0xF0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xF0, // 0
+        (byte)0x20, (byte)0x60, (byte)0x20, (byte)0x20, (byte)0x70, // 1
+        (byte)0xF0, (byte)0x10, (byte)0xF0, (byte)0x80, (byte)0xF0, // 2
+        (byte)0xF0, (byte)0x10, (byte)0xF0, (byte)0x10, (byte)0xF0, // 3
+        (byte)0x90, (byte)0x90, (byte)0xF0, (byte)0x10, (byte)0x10, // 4
+        (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x10, (byte)0xF0, // 5
+        (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x90, (byte)0xF0, // 6
+        (byte)0xF0, (byte)0x10, (byte)0x20, (byte)0x40, (byte)0x40, // 7
+        (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x90, (byte)0xF0, // 8
+        (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x10, (byte)0xF0, // 9
+        (byte)0xF0, (byte)0x90, (byte)0xF0, (byte)0x90, (byte)0x90, // A
+        (byte)0xE0, (byte)0x90, (byte)0xE0, (byte)0x90, (byte)0xE0, // B
+        (byte)0xF0, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0xF0, // C
+        (byte)0xE0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xE0, // D
+        (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x80, (byte)0xF0, // E
+        (byte)0xF0, (byte)0x80, (byte)0xF0, (byte)0x80, (byte)0x80  // F
+    };
+
+    // SUPER-CHIPの大きいフォント(1文字8x10、Fx30で参照する)
+    static final byte[] LARGE_FONT_SET = {
+        (byte)0x3C, (byte)0x7E, (byte)0xE7, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xE7, (byte)0x7E, (byte)0x3C, // 0
+        (byte)0x18, (byte)0x38, (byte)0x58, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x18, (byte)0x3C, // 1
+        (byte)0x3E, (byte)0x7F, (byte)0xC3, (byte)0x06, (byte)0x0C, (byte)0x18, (byte)0x30, (byte)0x60, (byte)0xFF, (byte)0xFF, // 2
+        (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0x03, (byte)0x0E, (byte)0x0E, (byte)0x03, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 3
+        (byte)0x06, (byte)0x0E, (byte)0x1E, (byte)0x36, (byte)0x66, (byte)0xC6, (byte)0xFF, (byte)0xFF, (byte)0x06, (byte)0x06, // 4
+        (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFC, (byte)0xFE, (byte)0x03, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 5
+        (byte)0x3E, (byte)0x7C, (byte)0xC0, (byte)0xC0, (byte)0xFC, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 6
+        (byte)0xFF, (byte)0xFF, (byte)0x03, (byte)0x06, (byte)0x0C, (byte)0x18, (byte)0x30, (byte)0x60, (byte)0x60, (byte)0x60, // 7
+        (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0xC3, (byte)0x7E, (byte)0x7E, (byte)0xC3, (byte)0xC3, (byte)0x7E, (byte)0x3C, // 8
+        (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0xC3, (byte)0x7F, (byte)0x3F, (byte)0x03, (byte)0x03, (byte)0x3E, (byte)0x7C, // 9
+        (byte)0x7E, (byte)0xFF, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xFF, (byte)0xFF, (byte)0xC3, (byte)0xC3, (byte)0xC3, // A
+        (byte)0xFC, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0xFE, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0xFE, (byte)0xFC, // B
+        (byte)0x3C, (byte)0x7E, (byte)0xC3, (byte)0xC0, (byte)0xC0, (byte)0xC0, (byte)0xC0, (byte)0xC3, (byte)0x7E, (byte)0x3C, // C
+        (byte)0xFC, (byte)0xFE, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xC3, (byte)0xFE, (byte)0xFC, // D
+        (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFF, (byte)0xFF, // E
+        (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xFF, (byte)0xFF, (byte)0xC0, (byte)0xC0, (byte)0xC0, (byte)0xC0  // F
+    };
+
+    // フォントセットのみのイメージ
+    private static final MemoryImage FONT_ONLY = new MemoryImage(new byte[0]);
+
+    private final byte[][] pages = new byte[Memory.PAGE_COUNT][];
+
+    // フォントセットとROMからイメージを作る(romは呼び出し後に変更してよい)
+    public MemoryImage(byte[] rom) {
+        this(rom, 0, rom.length);
+    }
+
+    MemoryImage(byte[] rom, int offset, int length) {
+        if (length > MAX_ROM_SIZE) {
+            throw new IllegalArgumentException("ROM size exceeds memory capacity: " + length + " bytes");
+        }
+        byte[] image = new byte[Memory.SIZE];
+        System.arraycopy(FONT_SET, 0, image, Memory.SPRITE_START_ADDRESS, FONT_SET.length);
+        System.arraycopy(LARGE_FONT_SET, 0, image, Memory.LARGE_SPRITE_START_ADDRESS, LARGE_FONT_SET.length);
+        System.arraycopy(rom, offset, image, ROM_START_ADDRESS, length);
+        // 内容が0だけのページは1つを共有する
+        byte[] zeroPage = new byte[Memory.PAGE_SIZE];
+        for (int page = 0; page < Memory.PAGE_COUNT; page++) {
+            int from = page << Memory.PAGE_SHIFT;
+            byte[] content = Arrays.copyOfRange(image, from, from + Memory.PAGE_SIZE);
+            pages[page] = Arrays.equals(content, zeroPage) ? zeroPage : content;
+        }
+    }
+
+    // フォントセットのみのイメージ
+    public static MemoryImage fontOnly() {
+        return FONT_ONLY;
+    }
+
+    // イメージ全体をdstのoffset以降にコピー
+    void copyTo(byte[] dst, int offset) {
+        for (int page = 0; page < Memory.PAGE_COUNT; page++) {
+            System.arraycopy(pages[page], 0, dst, offset + (page << Memory.PAGE_SHIFT), Memory.PAGE_SIZE);
+        }
+    }
+
+    // ページの内容(書き換えないこと)
+    byte[] page(int page) {
+        return pages[page];
+    }
+}
@@ -0,0 +1,102 @@
+package chip8;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// 1インスタンス分の実行統計
+// 各カウンタはエミュレーションスレッド(描画遅延のみ描画スレッド)だけが書き込むため、同期もメモリ確保も無い
+// (インスタンスごと=スレッドごとに分かれており、集計はMetricsRegistryが読み取り時に行う)
+// 読み取りはJMXなど別スレッドから行うので、カウンタはsetOpaque/getOpaqueで読み書きする
+// (longの書き込みが分かれて見えたり、JITが加算をループの外にまとめて書き込みが遅れたりしない、x86では普通の読み書きと同じ命令)
+// 無効な時はCPUなどが参照を持たず、計測用の処理を一切通らない
+public class Metrics {
+
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // countersの添字
+    private static final int INSTRUCTIONS = 0;
+    private static final int FRAMES = 1;
+    private static final int SPRITE_DRAWS = 2;
+    private static final int COLLISIONS = 3;
+    private static final int KEY_WAITS = 4;
+    private static final int UNKNOWN_OPCODES = 5;
+    // 待機ループの早送りで実行を省いた命令数(INSTRUCTIONSにも含む)
+    private static final int IDLE_INSTRUCTIONS = 6;
+
+    // 命令の種類(Instructionのハンドラ番号)ごとの実行回数
+    private final long[] opcodeCounts = new long[Instruction.UNKNOWN + 1];
+    private final long[] counters = new long[IDLE_INSTRUCTIONS + 1];
+
+    // 1フレームの処理時間
+    private final Histogram frameTime = new Histogram();
+    // フレームの公開から描画スレッドが受け取るまでの時間
+    private final Histogram renderLatency = new Histogram();
+
+    void instruction(int handler) {
+        add(opcodeCounts, handler, 1);
+        add(counters, INSTRUCTIONS, 1);
+    }
+
+    void frame(long elapsedNanos) {
+        add(counters, FRAMES, 1);
+        frameTime.record(elapsedNanos);
+    }
+
+    void spriteDrawn(boolean collision) {
+        add(counters, SPRITE_DRAWS, 1);
+        if (collision) {
+            add(counters, COLLISIONS, 1);
+        }
+    }
+
+    void keyWait() {
+        add(counters, KEY_WAITS, 1);
+    }
+
+    void idle(int skipped) {
+        add(counters, INSTRUCTIONS, skipped);
+        add(counters, IDLE_INSTRUCTIONS, skipped);
+    }
+
+    void unknownOpcode() {
+        add(counters, UNKNOWN_OPCODES, 1);
+    }
+
+    // 描画スレッドから記録する
+    public void renderLatency(long nanos) {
+        renderLatency.record(nanos);
+    }
+
+    // 集計値に加える
+    void addTo(MetricsRegistry.Totals totals) {
+        for (int i = 0; i < opcodeCounts.length; i++) {
+            totals.opcodeCounts[i] += get(opcodeCounts, i);
+        }
+        totals.instructions += get(counters, INSTRUCTIONS);
+        totals.frames += get(counters, FRAMES);
+        totals.spriteDraws += get(counters, SPRITE_DRAWS);
+        totals.collisions += get(counters, COLLISIONS);
+        totals.keyWaits += get(counters, KEY_WAITS);
+        totals.unknownOpcodes += get(counters, UNKNOWN_OPCODES);
+        totals.idleInstructions += get(counters, IDLE_INSTRUCTIONS);
+        frameTime.addTo(totals.frameTimeBuckets);
+        renderLatency.addTo(totals.renderLatencyBuckets);
+    }
+
+    public long getInstructions() {
+        return get(counters, INSTRUCTIONS);
+    }
+
+    public long getOpcodeCount(int handler) {
+        return get(opcodeCounts, handler);
+    }
+
+    // 書き込むスレッドだけが呼ぶ(読んでから書くだけで、他の書き込みとは競合しない)
+    private static void add(long[] array, int index, long delta) {
+        COUNTERS.setOpaque(array, index, (long) COUNTERS.getOpaque(array, index) + delta);
+    }
+
+    private static long get(long[] array, int index) {
+        return (long) COUNTERS.getOpaque(array, index);
+    }
+}
@@ -0,0 +1,217 @@
+package chip8;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 統計を有効にした全インスタンスの集計
+// JMX(chip8:type=Metrics)と定期スナップショットで公開する
+public class MetricsRegistry implements MetricsRegistryMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+    // JMXの属性はこの間隔より古い場合だけ集計し直す
+    private static final long MBEAN_REFRESH_NANOS = 100_000_000L;
+
+    // ある時点の集計値
+    public record Snapshot(long timestampNanos, int instances, long instructions, double instructionsPerSecond,
+            long frames, long spriteDraws, long collisions, long keyWaits, long unknownOpcodes, long idleInstructions,
+            long frameTimeP50Nanos, long frameTimeP99Nanos, long renderLatencyP50Nanos, long renderLatencyP99Nanos,
+            long[] opcodeCounts) {
+    }
+
+    // 集計の作業領域
+    static final class Totals {
+        final long[] opcodeCounts = new long[Instruction.UNKNOWN + 1];
+        long instructions;
+        long frames;
+        long spriteDraws;
+        long collisions;
+        long keyWaits;
+        long unknownOpcodes;
+        long idleInstructions;
+        final long[] frameTimeBuckets = new long[64];
+        final long[] renderLatencyBuckets = new long[64];
+    }
+
+    private final List<Metrics> instances = new CopyOnWriteArrayList<>();
+    // 登録解除されたインスタンスの累計(合計値が減らないように残す)
+    private final Totals retiredTotals = new Totals();
+
+    private Snapshot latest;
+    private ScheduledExecutorService scheduler;
+
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public void add(Metrics metrics) {
+        instances.add(metrics);
+    }
+
+    public synchronized void remove(Metrics metrics) {
+        if (instances.remove(metrics)) {
+            metrics.addTo(retiredTotals);
+        }
+    }
+
+    // 現在の集計値(命令数/秒は前回のスナップショットからの差分で求める)
+    public synchronized Snapshot snapshot() {
+        Totals totals = new Totals();
+        addRetired(totals);
+        for (Metrics metrics : instances) {
+            metrics.addTo(totals);
+        }
+        long now = System.nanoTime();
+        double rate = 0;
+        if (latest != null && now > latest.timestampNanos()) {
+            rate = Math.max(0, totals.instructions - latest.instructions()) * 1e9 / (now - latest.timestampNanos());
+        }
+        latest = new Snapshot(now, instances.size(), totals.instructions, rate, totals.frames,
+                totals.spriteDraws, totals.collisions, totals.keyWaits, totals.unknownOpcodes, totals.idleInstructions,
+                Histogram.percentile(totals.frameTimeBuckets, 0.5), Histogram.percentile(totals.frameTimeBuckets, 0.99),
+                Histogram.percentile(totals.renderLatencyBuckets, 0.5),
+                Histogram.percentile(totals.renderLatencyBuckets, 0.99), totals.opcodeCounts);
+        return latest;
+    }
+
+    private void addRetired(Totals totals) {
+        for (int i = 0; i < totals.opcodeCounts.length; i++) {
+            totals.opcodeCounts[i] += retiredTotals.opcodeCounts[i];
+        }
+        totals.instructions += retiredTotals.instructions;
+        totals.frames += retiredTotals.frames;
+        totals.spriteDraws += retiredTotals.spriteDraws;
+        totals.collisions += retiredTotals.collisions;
+        totals.keyWaits += retiredTotals.keyWaits;
+        totals.unknownOpcodes += retiredTotals.unknownOpcodes;
+        totals.idleInstructions += retiredTotals.idleInstructions;
+        for (int i = 0; i < 64; i++) {
+            totals.frameTimeBuckets[i] += retiredTotals.frameTimeBuckets[i];
+            totals.renderLatencyBuckets[i] += retiredTotals.renderLatencyBuckets[i];
+        }
+    }
+
+    // 一定間隔でスナップショットを取り、listenerに渡す
+    public synchronized ScheduledFuture<?> startPeriodicSnapshots(long period, TimeUnit unit,
+            Consumer<Snapshot> listener) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "chip8-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler.scheduleAtFixedRate(() -> listener.accept(snapshot()), period, period, unit);
+    }
+
+    // JMXに登録する
+    public void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("chip8:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.error("Failed to register metrics MBean", e);
+        }
+    }
+
+    private synchronized Snapshot current() {
+        if (latest == null || System.nanoTime() - latest.timestampNanos() > MBEAN_REFRESH_NANOS) {
+            return snapshot();
+        }
+        return latest;
+    }
+
+    @Override
+    public int getInstances() {
+        return current().instances();
+    }
+
+    @Override
+    public long getInstructions() {
+        return current().instructions();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return current().instructionsPerSecond();
+    }
+
+    @Override
+    public long getFrames() {
+        return current().frames();
+    }
+
+    @Override
+    public long getSpriteDraws() {
+        return current().spriteDraws();
+    }
+
+    @Override
+    public long getCollisions() {
+        return current().collisions();
+    }
+
+    @Override
+    public long getKeyWaits() {
+        return current().keyWaits();
+    }
+
+    @Override
+    public long getUnknownOpcodes() {
+        return current().unknownOpcodes();
+    }
+
+    @Override
+    public long getIdleInstructions() {
+        return current().idleInstructions();
+    }
+
+    @Override
+    public long getFrameTimeP50Nanos() {
+        return current().frameTimeP50Nanos();
+    }
+
+    @Override
+    public long getFrameTimeP99Nanos() {
+        return current().frameTimeP99Nanos();
+    }
+
+    @Override
+    public long getRenderLatencyP50Nanos() {
+        return current().renderLatencyP50Nanos();
+    }
+
+    @Override
+    public long getRenderLatencyP99Nanos() {
+        return current().renderLatencyP99Nanos();
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        long[] counts = current().opcodeCounts();
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int handler = Instruction.CLS; handler < counts.length; handler++) {
+            result.put(Instruction.name(handler), counts[handler]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,35 @@
+package chip8;
+
+import java.util.Map;
+
+// JMXで公開する実行統計(全インスタンスの合計)
+public interface MetricsRegistryMBean {
+
+    int getInstances();
+
+    long getInstructions();
+
+    double getInstructionsPerSecond();
+
+    long getFrames();
+
+    long getSpriteDraws();
+
+    long getCollisions();
+
+    long getKeyWaits();
+
+    long getUnknownOpcodes();
+
+    long getIdleInstructions();
+
+    long getFrameTimeP50Nanos();
+
+    long getFrameTimeP99Nanos();
+
+    long getRenderLatencyP50Nanos();
+
+    long getRenderLatencyP99Nanos();
+
+    Map<String, Long> getOpcodeCounts();
+}
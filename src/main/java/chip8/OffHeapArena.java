@@ -0,0 +1,70 @@
+package chip8;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+// 多数のインスタンスのメモリをまとめて確保するオフヒープ領域
+// 1つの連続したセグメントを固定長のスロットに分け、スロットごとにOffHeapMemoryを割り当てる
+// スロットはセーブステートと同じ配置で、レジスタ類・メモリ・フレームバッファを1か所に収める
+public class OffHeapArena implements AutoCloseable {
+
+    // 1スロットのバイト数(キャッシュラインの境界に揃える)
+    static final long SLOT_SIZE = (SaveState.SIZE + 63) & ~63L;
+
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment segment;
+    private final int capacity;
+
+    // 空きスロットのスタック
+    private final int[] freeSlots;
+    private int freeCount;
+
+    public OffHeapArena(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.segment = arena.allocate(SLOT_SIZE * capacity, 64);
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        this.freeCount = capacity;
+    }
+
+    // イメージを初期内容とするメモリを割り当てる
+    public synchronized OffHeapMemory allocate(MemoryImage image) {
+        if (freeCount == 0) {
+            throw new IllegalStateException("Off-heap arena is full (" + capacity + " slots)");
+        }
+        int slot = freeSlots[--freeCount];
+        return new OffHeapMemory(this, slot, image);
+    }
+
+    // スロットを返却する(以降そのメモリは使わないこと)
+    public synchronized void release(OffHeapMemory memory) {
+        if (memory.arena() != this) {
+            throw new IllegalArgumentException("Memory does not belong to this arena");
+        }
+        freeSlots[freeCount++] = memory.slot();
+    }
+
+    // 使用中のスロット数
+    public synchronized int used() {
+        return capacity - freeCount;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    MemorySegment segment() {
+        return segment;
+    }
+
+    // 領域全体を解放する(割り当てたメモリはすべて使えなくなる)
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
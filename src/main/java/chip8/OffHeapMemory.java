@@ -0,0 +1,137 @@
+package chip8;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Objects;
+
+// OffHeapArenaのスロットに内容を置くメモリ
+// ヒープ上のオブジェクトはこのインスタンスだけなので、大量に作ってもGCが辿るものが増えない
+// スロットはセーブステートと同じ配置のため、storeStateの後はスロット1回のコピーで状態全体を複製できる
+public class OffHeapMemory extends Memory {
+
+    private final OffHeapArena arena;
+    private final int slot;
+    // 領域全体(スロットごとのスライスは作らず、オフセットで参照する)
+    private final MemorySegment segment;
+    // スロットの先頭位置とメモリ部分の先頭位置
+    private final long slotBase;
+    private final long base;
+
+    OffHeapMemory(OffHeapArena arena, int slot, MemoryImage image) {
+        super((Void) null);
+        this.arena = arena;
+        this.slot = slot;
+        this.segment = arena.segment();
+        this.slotBase = slot * OffHeapArena.SLOT_SIZE;
+        this.base = slotBase + SaveState.MEMORY;
+        copyImage(image);
+    }
+
+    OffHeapArena arena() {
+        return arena;
+    }
+
+    int slot() {
+        return slot;
+    }
+
+    private void copyImage(MemoryImage image) {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            MemorySegment.copy(image.page(page), 0, segment, ValueLayout.JAVA_BYTE,
+                    base + ((long) page << PAGE_SHIFT), PAGE_SIZE);
+        }
+    }
+
+    @Override
+    public void loadImage(MemoryImage image) {
+        copyImage(image);
+        notifyWrite(0, SIZE);
+    }
+
+    @Override
+    void write(int address, byte[] src, int offset, int length) {
+        Objects.checkFromIndexSize(address, length, SIZE);
+        MemorySegment.copy(src, offset, segment, ValueLayout.JAVA_BYTE, base + address, length);
+        notifyWrite(address, length);
+    }
+
+    @Override
+    public void setByte(int address, byte value) {
+        // 隣のスロットを壊さないように範囲を確認する
+        segment.set(ValueLayout.JAVA_BYTE, base + Objects.checkIndex(address, SIZE), value);
+        notifyWrite(address, 1);
+    }
+
+    @Override
+    public byte getByte(int address) {
+        return segment.get(ValueLayout.JAVA_BYTE, base + Objects.checkIndex(address, SIZE));
+    }
+
+    @Override
+    public void copyFrom(Memory other) {
+        if (other instanceof OffHeapMemory offHeap) {
+            MemorySegment.copy(offHeap.segment, offHeap.base, segment, base, SIZE);
+        } else {
+            // 別の実装からは内容を取り出して書き込む
+            byte[] content = new byte[SIZE];
+            other.copyTo(content, 0);
+            MemorySegment.copy(content, 0, segment, ValueLayout.JAVA_BYTE, base, SIZE);
+        }
+        notifyWrite(0, SIZE);
+    }
+
+    @Override
+    public boolean contentEquals(Memory other) {
+        if (other instanceof OffHeapMemory offHeap) {
+            return MemorySegment.mismatch(segment, base, base + SIZE,
+                    offHeap.segment, offHeap.base, offHeap.base + SIZE) < 0;
+        }
+        return other.contentEquals(this);
+    }
+
+    @Override
+    public void copyTo(byte[] dst, int offset) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, base, dst, offset, SIZE);
+    }
+
+    @Override
+    public void restore(byte[] src, int offset) {
+        int first = -1;
+        int last = -1;
+        for (int address = 0; address < SIZE; address++) {
+            if (segment.get(ValueLayout.JAVA_BYTE, base + address) != src[offset + address]) {
+                if (first < 0) {
+                    first = address;
+                }
+                last = address;
+            }
+        }
+        if (first >= 0) {
+            MemorySegment.copy(src, offset + first, segment, ValueLayout.JAVA_BYTE, base + first, last - first + 1);
+            notifyWrite(first, last - first + 1);
+        }
+    }
+
+    // レジスタ類とフレームバッファをスロットに直接書き込み、スロット全体をセーブステートにする(メモリ確保なし)
+    public void storeState(CPU cpu, Display display) {
+        SaveState.writeRegisters(cpu, segment, slotBase);
+        SaveState.writeDisplay(display, segment, slotBase + SaveState.DISPLAY);
+    }
+
+    // storeStateで書き込んだレジスタ類とフレームバッファをスロットから直接復元する(メモリ確保なし)
+    public void loadState(CPU cpu, Display display) {
+        SaveState.readRegisters(segment, slotBase, cpu);
+        SaveState.readDisplay(segment, slotBase + SaveState.DISPLAY, display);
+    }
+
+    // スロット全体(storeState済みならセーブステート全体)を他のメモリへ1回でコピーする
+    public void copyStateTo(OffHeapMemory dst) {
+        MemorySegment.copy(segment, slotBase, dst.segment, dst.slotBase, SaveState.SIZE);
+        dst.notifyWrite(0, SIZE);
+    }
+
+    // スロット全体をセーブステートとしてdstに書き出す(storeStateの後に呼ぶ)
+    public void copyStateTo(byte[] dst) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, slotBase, dst, 0, SaveState.SIZE);
+    }
+}
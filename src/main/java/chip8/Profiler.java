@@ -0,0 +1,199 @@
+package chip8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// CHIP-8プログラムのプロファイラ
+// 一定命令数ごとに(間隔1なら全命令で)pcとスタックを記録し、2nnnの呼び出し先をキーにした呼び出しツリーに集計する
+// 間隔は実時間ではなく実行した命令数で数える
+// (エミュレーションスレッドの中で記録するのでスタックを読んでも競合せず、同じ入力なら結果も同じになる)
+// 無効な時はCPU・Recompilerが参照を持たず、計測用の処理を一切通らない
+//
+// 記録した結果はエミュレーションを止めてから(またはChip8で無効にした次のフレーム以降に)読むこと
+public class Profiler {
+
+    // 全命令を数える
+    public static final int EXACT = 1;
+    // サンプリングの既定の間隔(命令数、ループの周期と揃わないよう素数にする)
+    public static final int DEFAULT_INTERVAL = 97;
+
+    // アドレスごとの記録数
+    public record HotAddress(int address, int opcode, long count) {
+    }
+
+    // 呼び出しツリーの節(ルートはROMの先頭0x200)
+    private static final class Node {
+
+        final int address;
+        final Node parent;
+        // この関数の中で記録した数(呼び出し先を除く)
+        long self;
+        Node[] children = new Node[0];
+
+        Node(int address, Node parent) {
+            this.address = address;
+            this.parent = parent;
+        }
+
+        Node child(int target) {
+            for (Node child : children) {
+                if (child.address == target) {
+                    return child;
+                }
+            }
+            Node child = new Node(target, this);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+
+    private final int interval;
+    // 次の記録までの命令数(1なら次の命令を記録する)
+    private int countdown;
+    private long samples;
+
+    private final long[] addressCounts = new long[Memory.SIZE];
+    // 記録した時点のアドレスの命令
+    private final int[] addressOpcodes = new int[Memory.SIZE];
+
+    private final Node root = new Node(0x200, null);
+    // 前回の記録時の呼び出し元のアドレス(stack[0..depth))と、それに対応するツリーの節
+    // スタックの底から変わっていない分はツリーをたどり直さない
+    private final int[] callSites = new int[16];
+    private final Node[] path = new Node[17];
+    private int depth;
+
+    public Profiler() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    // interval命令ごとに記録する(EXACTなら全命令)
+    public Profiler(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.interval = interval;
+        this.countdown = interval;
+        path[0] = root;
+    }
+
+    // startから続けて実行するcount命令(分岐を含まない並び)を数える
+    // 命令の実行前に呼ぶ(Recompilerのブロックは呼び出しを最後にしか含まないので、スタックは全命令で同じ)
+    void instructions(CPU cpu, int start, int count) {
+        if ((countdown -= count) > 0) {
+            return;
+        }
+        int k = countdown + count - 1;
+        do {
+            sample(cpu, start + k * 2, 1);
+            k += interval;
+        } while (k < count);
+        countdown = k - count + 1;
+    }
+
+    // addressの命令をcount回実行した分を数える(待機ループの早送り用)
+    void repeated(CPU cpu, int address, int count) {
+        if ((countdown -= count) > 0) {
+            return;
+        }
+        int k = countdown + count - 1;
+        long n = 1 + (count - 1 - k) / interval;
+        sample(cpu, address, n);
+        countdown = (int) (k + n * interval - count + 1);
+    }
+
+    private void sample(CPU cpu, int pc, long weight) {
+        int[] stack = cpu.stack;
+        int sp = cpu.sp;
+        int common = 0;
+        int limit = Math.min(sp, depth);
+        while (common < limit && callSites[common] == stack[common]) {
+            common++;
+        }
+        for (int i = common; i < sp; i++) {
+            callSites[i] = stack[i];
+            // スタックには2nnn自身のアドレスが積まれている
+            path[i + 1] = path[i].child(cpu.opcodeAt(stack[i]) & 0x0FFF);
+        }
+        depth = sp;
+        path[sp].self += weight;
+        if (addressCounts[pc] == 0) {
+            addressOpcodes[pc] = cpu.opcodeAt(pc);
+        }
+        addressCounts[pc] += weight;
+        samples += weight;
+    }
+
+    // 記録数の合計(EXACTなら実行した命令数)
+    public long getSamples() {
+        return samples;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    // 記録数の多いアドレスから順にlimit件
+    public List<HotAddress> hotAddresses(int limit) {
+        List<HotAddress> hot = new ArrayList<>();
+        for (int address = 0; address < addressCounts.length; address++) {
+            if (addressCounts[address] > 0) {
+                hot.add(new HotAddress(address, addressOpcodes[address], addressCounts[address]));
+            }
+        }
+        hot.sort((a, b) -> Long.compare(b.count(), a.count()));
+        return hot.size() > limit ? hot.subList(0, limit) : hot;
+    }
+
+    // 記録数の多いアドレスの一覧を表示する
+    public void printHotAddresses(PrintStream out, int limit) {
+        out.printf("%d samples (interval %d)%n", samples, interval);
+        for (HotAddress hot : hotAddresses(limit)) {
+            out.printf("  0x%03X  %04X %-10s %12d %6.2f%%%n", hot.address(), hot.opcode(),
+                    Instruction.name(Instruction.handler(Instruction.decode(hot.opcode()))), hot.count(),
+                    samples == 0 ? 0 : hot.count() * 100.0 / samples);
+        }
+    }
+
+    // 呼び出しツリーをcollapsed形式(flamegraph.plなどの入力)で書く
+    // 1行が1つの呼び出し経路で、"0x200;0x2A4;0x31C 記録数" の形
+    public void writeCollapsed(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        List<Node> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            if (node.self > 0) {
+                line.setLength(0);
+                appendPath(line, node);
+                line.append(' ').append(node.self).append('\n');
+                out.write(line.toString());
+            }
+            for (int i = node.children.length - 1; i >= 0; i--) {
+                pending.add(node.children[i]);
+            }
+        }
+    }
+
+    public void writeCollapsed(Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            writeCollapsed(out);
+        }
+    }
+
+    private static void appendPath(StringBuilder line, Node node) {
+        if (node.parent != null) {
+            appendPath(line, node.parent);
+            line.append(';');
+        }
+        line.append(String.format("0x%03X", node.address));
+    }
+}
@@ -0,0 +1,70 @@
+package chip8;
+
+import java.util.Locale;
+
+// 実装ごとに異なる命令の動作(互換性の設定)
+// 命令ごとに設定を判定するのではなく、デコード時に対応する別のハンドラ番号に置き換える
+// (CPUのデコード済み命令キャッシュに置き換え後の命令が入るので、実行時の分岐は増えない)
+//
+//   shiftVy          8xy6/8xyE で Vy をシフトした結果を Vx に入れる(無効なら Vx をシフト)
+//   incrementI       Fx55/Fx65 の後に I を x + 1 進める
+//   jumpVx           Bnnn で V0 ではなく Vx(xはnnnの上位4ビット)を足す
+//   clipSprites      画面の端で折り返さずに切り取る(描画開始位置は折り返す)
+//   largeSprites     64x32 でも Dxy0 で16x16のスプライトを描く
+//                    (無効なら16x16は128x64 の時だけで、64x32 ではCHIP-8と同じく0行の描画になりVFは0)
+//                    (解像度は実行中に変わるので、これだけはデコード時ではなくDxy0の実行時に判定する)
+public record Quirks(boolean shiftVy, boolean incrementI, boolean jumpVx, boolean clipSprites,
+        boolean largeSprites) {
+
+    // このエミュレーターの従来の動作
+    public static final Quirks DEFAULT = new Quirks(false, false, false, false, false);
+    // COSMAC VIP のオリジナルのCHIP-8
+    public static final Quirks VIP = new Quirks(true, true, false, true, false);
+    // SUPER-CHIP 1.1
+    public static final Quirks SCHIP = new Quirks(false, false, true, true, true);
+    // XO-CHIP
+    public static final Quirks XOCHIP = new Quirks(true, true, false, false, true);
+
+    private static final int SHIFT_VY = 1;
+    private static final int INCREMENT_I = 2;
+    private static final int JUMP_VX = 4;
+    private static final int CLIP_SPRITES = 8;
+    private static final int LARGE_SPRITES = 16;
+
+    // デコード済み命令を設定に合わせたハンドラの命令に置き換える
+    public int variant(int instruction) {
+        int handler = switch (Instruction.handler(instruction)) {
+            case Instruction.SHR -> shiftVy ? Instruction.SHR_VY : Instruction.SHR;
+            case Instruction.SHL -> shiftVy ? Instruction.SHL_VY : Instruction.SHL;
+            case Instruction.LD_I_VX -> incrementI ? Instruction.LD_I_VX_INC : Instruction.LD_I_VX;
+            case Instruction.LD_VX_I -> incrementI ? Instruction.LD_VX_I_INC : Instruction.LD_VX_I;
+            case Instruction.JP_V0 -> jumpVx ? Instruction.JP_VX : Instruction.JP_V0;
+            case Instruction.DRW -> clipSprites ? Instruction.DRW_CLIP : Instruction.DRW;
+            case Instruction.DRW_16 -> clipSprites ? Instruction.DRW_16_CLIP : Instruction.DRW_16;
+            default -> Instruction.handler(instruction);
+        };
+        return (handler << 16) | Instruction.opcode(instruction);
+    }
+
+    // 保存用のビット表現
+    public int flags() {
+        return (shiftVy ? SHIFT_VY : 0) | (incrementI ? INCREMENT_I : 0) | (jumpVx ? JUMP_VX : 0)
+                | (clipSprites ? CLIP_SPRITES : 0) | (largeSprites ? LARGE_SPRITES : 0);
+    }
+
+    public static Quirks fromFlags(int flags) {
+        return new Quirks((flags & SHIFT_VY) != 0, (flags & INCREMENT_I) != 0, (flags & JUMP_VX) != 0,
+                (flags & CLIP_SPRITES) != 0, (flags & LARGE_SPRITES) != 0);
+    }
+
+    // 名前(default / vip / schip / xochip)から設定を得る
+    public static Quirks named(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "default" -> DEFAULT;
+            case "vip" -> VIP;
+            case "schip" -> SCHIP;
+            case "xochip" -> XOCHIP;
+            default -> throw new IllegalArgumentException("Unknown quirks profile: " + name);
+        };
+    }
+}
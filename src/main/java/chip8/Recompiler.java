@@ -0,0 +1,330 @@
+package chip8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// 基本ブロック単位でJVMバイトコードに変換して実行するエンジン
+// 一定回数実行されたアドレスから基本ブロックを切り出してコンパイルし、アドレスをキーにキャッシュする
+// コンパイルできないものはインタプリタ(CPU)で実行する
+// ブロックは途中で止めないため、予算の残りより長いブロックには入らずインタプリタで1命令ずつ実行する
+// (予算の境界=タイマーの更新とフレームの公開はインタプリタと同じ命令数の位置になる)
+// 待機ループはブロックより先にCPUで検出して早送りする
+// TranslationCacheから、事前に変換したブロックを実行前に読み込むこともできる(install)
+public class Recompiler implements ExecutionEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(Recompiler.class);
+
+    // この回数実行されたアドレスからコンパイルする
+    private static final int COMPILE_THRESHOLD = 16;
+    // 1ブロックの最大命令数
+    static final int MAX_BLOCK_LENGTH = 64;
+    // コンパイルしないことを示す実行回数
+    private static final short NOT_COMPILABLE = -1;
+    // 破棄されるたびに閾値を倍にする回数の上限(実行回数はshortなので16 << 10まで)
+    private static final int MAX_BACKOFF = 10;
+
+    private final CPU cpu;
+    private final Memory memory;
+    private final BlockCompiler compiler = new BlockCompiler();
+
+    // 開始アドレスごとのコンパイル済みブロック
+    private final BlockCompiler.Block[] blocks = new BlockCompiler.Block[Memory.SIZE];
+    // 開始アドレスごとのブロック長(命令数)
+    private final int[] blockLengths = new int[Memory.SIZE];
+    // 開始アドレスごとのブロック内の命令(統計用)
+    private final int[][] blockInstructions = new int[Memory.SIZE][];
+    // アドレスごとの実行回数
+    private final short[] hits = new short[Memory.SIZE];
+    // 開始アドレスごとの、自己書き換えでブロックを破棄した回数(自分を書き換え続けるブロックの再コンパイルを減らす)
+    private final byte[] backoff = new byte[Memory.SIZE];
+    // アドレスごとの、そのアドレスを含むコンパイル済みブロックの数
+    private final short[] coverage = new short[Memory.SIZE];
+    private final int[] scratch = new int[MAX_BLOCK_LENGTH];
+
+    // 実行統計(nullの時は計測しない)
+    private Metrics metrics;
+    // プロファイラ(nullの時は記録しない)
+    private Profiler profiler;
+
+    private long compiledBlocks;
+    private long invalidatedBlocks;
+    private long installedBlocks;
+
+    public Recompiler(CPU cpu, Memory memory) {
+        this.cpu = cpu;
+        this.memory = memory;
+        memory.addWriteListener(this::invalidate);
+    }
+
+    @Override
+    public int run(int budget) {
+        int executed = 0;
+        if (isCounted()) {
+            while (executed < budget) {
+                int idle = cpu.skipIdle(budget - executed);
+                executed += idle != 0 ? idle : stepCounted(budget - executed);
+            }
+        } else {
+            while (executed < budget) {
+                int idle = cpu.skipIdle(budget - executed);
+                executed += idle != 0 ? idle : step(budget - executed);
+            }
+        }
+        return budget;
+    }
+
+    // 1ブロックまたは1命令を実行し、実行した命令数を返す(remaining命令を超えるブロックには入らない)
+    int step(int remaining) {
+        int pc = cpu.pc;
+        BlockCompiler.Block block = lookup(pc);
+        int length = blockLengths[pc];
+        if (block != null && length <= remaining) {
+            // 実行中に自己書き換えで破棄されると長さが0になるため先に取り出す
+            block.run(cpu);
+            return length;
+        }
+        cpu.executeCycle();
+        return 1;
+    }
+
+    // 命令の種類ごとに数えながら(プロファイラにも記録しながら)1ブロックまたは1命令を実行する
+    int stepCounted(int remaining) {
+        int pc = cpu.pc;
+        BlockCompiler.Block block = lookup(pc);
+        if (block != null && blockLengths[pc] <= remaining) {
+            // 実行中に自己書き換えで破棄されることがあるため先に取り出す
+            int[] instructions = blockInstructions[pc];
+            int length = blockLengths[pc];
+            if (profiler != null) {
+                profiler.instructions(cpu, pc, length);
+            }
+            block.run(cpu);
+            if (metrics != null) {
+                for (int i = 0; i < length; i++) {
+                    metrics.instruction(Instruction.handler(instructions[i]));
+                }
+            }
+            return length;
+        }
+        // CPU側で数える
+        cpu.run(1);
+        return 1;
+    }
+
+    // pcから始まるコンパイル済みブロック(実行回数が閾値に達したらここでコンパイルする)
+    private BlockCompiler.Block lookup(int pc) {
+        BlockCompiler.Block block = blocks[pc];
+        if (block == null && hits[pc] != NOT_COMPILABLE && ++hits[pc] >= COMPILE_THRESHOLD << backoff[pc]) {
+            block = compile(pc);
+        }
+        return block;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // 統計またはプロファイラが有効か(stepCountedで実行する必要があるか)
+    boolean isCounted() {
+        return metrics != null || profiler != null;
+    }
+
+    @Override
+    public void updateTimers() {
+        cpu.updateTimers();
+    }
+
+    // pcから始まる基本ブロックを切り出してコンパイルする
+    private BlockCompiler.Block compile(int start) {
+        int length = 0;
+        boolean worthCompiling = false;
+        int address = start;
+        while (length < MAX_BLOCK_LENGTH && address + 1 < Memory.SIZE) {
+            int opcode = (Byte.toUnsignedInt(memory.getByte(address)) << 8)
+                    | Byte.toUnsignedInt(memory.getByte(address + 1));
+            int instruction = cpu.getQuirks().variant(Instruction.decode(opcode));
+            int handler = Instruction.handler(instruction);
+            scratch[length++] = instruction;
+            address += 2;
+            worthCompiling |= BlockCompiler.isInlined(handler);
+            if (endsBlock(handler)) {
+                break;
+            }
+        }
+        if (!worthCompiling) {
+            hits[start] = NOT_COMPILABLE;
+            return null;
+        }
+        BlockCompiler.Block block;
+        try {
+            block = compiler.define(BlockCompiler.generate(start, scratch, length));
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            logger.warn("Failed to compile block at 0x{}, falling back to interpreter",
+                    Integer.toHexString(start), e);
+            hits[start] = NOT_COMPILABLE;
+            return null;
+        }
+        add(start, block, Arrays.copyOf(scratch, length));
+        compiledBlocks++;
+        return block;
+    }
+
+    private void add(int start, BlockCompiler.Block block, int[] instructions) {
+        blocks[start] = block;
+        blockLengths[start] = instructions.length;
+        blockInstructions[start] = instructions;
+        for (int i = start; i < start + instructions.length * 2; i++) {
+            coverage[i]++;
+        }
+    }
+
+    // startsの各アドレスから始まるブロックを、実行回数を待たずにコンパイルする(RomAnalyzerの結果から呼ぶ)
+    // 返り値はコンパイルしたブロック数(展開できる命令が無いものはコンパイルしない)
+    int precompile(int[] starts) {
+        int count = 0;
+        for (int start : starts) {
+            if (blocks[start] == null && hits[start] != NOT_COMPILABLE && compile(start) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // コンパイル済みのブロック(TranslationCacheへの保存用)
+    List<TranslationCache.Translation> translations() {
+        List<TranslationCache.Translation> result = new ArrayList<>();
+        for (int start = 0; start < Memory.SIZE; start++) {
+            if (blocks[start] != null) {
+                int[] instructions = blockInstructions[start];
+                int[] opcodes = new int[instructions.length];
+                for (int i = 0; i < opcodes.length; i++) {
+                    opcodes[i] = Instruction.opcode(instructions[i]);
+                }
+                result.add(new TranslationCache.Translation(start, opcodes));
+            }
+        }
+        return result;
+    }
+
+    // 事前に変換したブロックを登録する(ROMの読み込み後、実行開始前に呼ぶ)
+    // 今のメモリの命令がブロックを作った時と同じで、ブロックの形(終端の位置)も変わらない場合だけ使う
+    // クラスファイルは確かめた命令から生成する
+    // 使えないものはfalseを返し、そのアドレスは通常どおり実行回数に応じてコンパイルする
+    boolean install(TranslationCache.Translation translation) {
+        int start = translation.start();
+        int[] opcodes = translation.opcodes();
+        int length = opcodes.length;
+        if (length == 0 || length > MAX_BLOCK_LENGTH || start + length * 2 > Memory.SIZE || blocks[start] != null) {
+            return false;
+        }
+        int[] instructions = new int[length];
+        for (int i = 0; i < length; i++) {
+            int address = start + i * 2;
+            int opcode = (Byte.toUnsignedInt(memory.getByte(address)) << 8)
+                    | Byte.toUnsignedInt(memory.getByte(address + 1));
+            if (opcode != opcodes[i]) {
+                return false;
+            }
+            instructions[i] = cpu.getQuirks().variant(Instruction.decode(opcode));
+            // 途中に分岐などがあれば別の形のブロックなので使わない
+            if (i < length - 1 && endsBlock(Instruction.handler(instructions[i]))) {
+                return false;
+            }
+        }
+        BlockCompiler.Block block;
+        try {
+            block = compiler.define(BlockCompiler.generate(start, instructions, length));
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            logger.warn("Failed to load translated block at 0x{}, falling back to interpreter",
+                    Integer.toHexString(start), e);
+            return false;
+        }
+        add(start, block, instructions);
+        installedBlocks++;
+        return true;
+    }
+
+    // 基本ブロックの終端になる命令
+    // 分岐・スキップ・キー待ち・メモリ書き込み(自己書き換え対策)・停止・未知の命令
+    static boolean endsBlock(int handler) {
+        switch (handler) {
+            case Instruction.JP:
+            case Instruction.CALL:
+            case Instruction.RET:
+            case Instruction.JP_V0:
+            case Instruction.JP_VX:
+            case Instruction.SE_VX_KK:
+            case Instruction.SNE_VX_KK:
+            case Instruction.SE_VX_VY:
+            case Instruction.SNE_VX_VY:
+            case Instruction.SKP:
+            case Instruction.SKNP:
+            case Instruction.LD_VX_K:
+            case Instruction.LD_B_VX:
+            case Instruction.LD_I_VX:
+            case Instruction.LD_I_VX_INC:
+            case Instruction.EXIT:
+            case Instruction.UNKNOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 書き込まれた範囲を含むブロックを破棄する
+    private void invalidate(int address, int length) {
+        int end = Math.min(Memory.SIZE, address + length);
+        for (int a = address; a < end; a++) {
+            if (coverage[a] == 0) {
+                continue;
+            }
+            int from = Math.max(0, a - MAX_BLOCK_LENGTH * 2);
+            for (int start = from; start <= a; start++) {
+                if (blocks[start] != null && start + blockLengths[start] * 2 > a) {
+                    drop(start);
+                }
+            }
+        }
+        // 命令語の途中に書き込まれた場合も含めて再カウントさせる
+        for (int a = Math.max(0, address - 1); a < end; a++) {
+            hits[a] = 0;
+        }
+    }
+
+    private void drop(int start) {
+        int end = start + blockLengths[start] * 2;
+        for (int i = start; i < end; i++) {
+            coverage[i]--;
+        }
+        blocks[start] = null;
+        blockLengths[start] = 0;
+        blockInstructions[start] = null;
+        // 書き込みが先頭より後ろでも、実行回数を数え直してからコンパイルし直す
+        hits[start] = 0;
+        if (backoff[start] < MAX_BACKOFF) {
+            backoff[start]++;
+        }
+        invalidatedBlocks++;
+    }
+
+    public long getCompiledBlocks() {
+        return compiledBlocks;
+    }
+
+    public long getInvalidatedBlocks() {
+        return invalidatedBlocks;
+    }
+
+    // TranslationCacheから登録したブロック数
+    public long getInstalledBlocks() {
+        return installedBlocks;
+    }
+}
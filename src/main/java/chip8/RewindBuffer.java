@@ -0,0 +1,187 @@
+package chip8;
+
+// 巻き戻し用のリングバッファ
+// 毎フレームのセーブステートを、直近のキーフレームとのXOR差分をランレングス圧縮して固定サイズの領域に記録する
+// 領域やエントリ数が足りなくなると古いものから捨てる(キーフレームを捨てたら、それに依存する差分も捨てる)
+// 記録・巻き戻しとも作業用バッファは事前に確保するため、フレームごとのメモリ確保は無い
+public class RewindBuffer {
+
+    public static final int DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FRAMES = 60 * FrameScheduler.FRAMES_PER_SECOND;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+    private final int keyframeInterval;
+
+    // 符号化済みデータの領域
+    private final byte[] arena;
+    private int writePosition;
+
+    // エントリのリング(oldestから古い順にcount個)
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean[] keyframes;
+    private int oldest;
+    private int count;
+
+    // 作業用バッファ
+    private final byte[] current = new byte[SaveState.SIZE];
+    private final byte[] keyframeState = new byte[SaveState.SIZE];
+    private final byte[] encoded = new byte[XorRle.maxEncodedLength(SaveState.SIZE)];
+    // 巻き戻し時に復号済みのキーフレーム(エントリ番号、-1は無し)
+    private int decodedKeyframe = -1;
+    private final byte[] decodedKeyframeState = new byte[SaveState.SIZE];
+
+    private int framesSinceKeyframe;
+    // 記録中の差分が依存するキーフレームが捨てられた
+    private boolean keyframeEvicted;
+    private int lastKeyframe = -1;
+
+    public RewindBuffer() {
+        this(DEFAULT_CAPACITY_BYTES, DEFAULT_MAX_FRAMES, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public RewindBuffer(int capacityBytes, int maxFrames, int keyframeInterval) {
+        if (capacityBytes < XorRle.maxEncodedLength(SaveState.SIZE) || maxFrames < 2 || keyframeInterval < 1) {
+            throw new IllegalArgumentException("Rewind buffer too small");
+        }
+        this.arena = new byte[capacityBytes];
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+        this.keyframes = new boolean[maxFrames];
+        this.keyframeInterval = keyframeInterval;
+        this.framesSinceKeyframe = keyframeInterval;
+    }
+
+    // 現在の状態を1フレーム分記録する(フレームの終わりに毎回呼ぶ)
+    public void record(Chip8 chip8) {
+        chip8.snapshot(current);
+        boolean keyframe = framesSinceKeyframe >= keyframeInterval;
+        int length = encode(keyframe);
+        keyframeEvicted = false;
+        int offset = allocate(length);
+        if (!keyframe && keyframeEvicted) {
+            // 依存先のキーフレームが領域確保で捨てられたので、キーフレームとして記録し直す
+            keyframe = true;
+            length = encode(true);
+            offset = allocate(length);
+        }
+        System.arraycopy(encoded, 0, arena, offset, length);
+        int index = (oldest + count) % offsets.length;
+        offsets[index] = offset;
+        lengths[index] = length;
+        keyframes[index] = keyframe;
+        count++;
+        if (index == decodedKeyframe) {
+            decodedKeyframe = -1;
+        }
+        if (keyframe) {
+            System.arraycopy(current, 0, keyframeState, 0, SaveState.SIZE);
+            lastKeyframe = index;
+            framesSinceKeyframe = 1;
+        } else {
+            framesSinceKeyframe++;
+        }
+    }
+
+    private int encode(boolean keyframe) {
+        return XorRle.encode(current, keyframe ? null : keyframeState, SaveState.SIZE, encoded, 0);
+    }
+
+    // 最後に記録した状態を取り除いて復元する(記録が無ければfalse)
+    public boolean rewind(Chip8 chip8) {
+        if (count == 0) {
+            return false;
+        }
+        int index = (oldest + count - 1) % offsets.length;
+        if (keyframes[index]) {
+            XorRle.decode(arena, offsets[index], lengths[index], null, current, SaveState.SIZE);
+        } else {
+            int keyIndex = keyframeOf(index);
+            if (decodedKeyframe != keyIndex) {
+                XorRle.decode(arena, offsets[keyIndex], lengths[keyIndex], null, decodedKeyframeState, SaveState.SIZE);
+                decodedKeyframe = keyIndex;
+            }
+            XorRle.decode(arena, offsets[index], lengths[index], decodedKeyframeState, current, SaveState.SIZE);
+        }
+        count--;
+        if (index == decodedKeyframe) {
+            decodedKeyframe = -1;
+        }
+        if (index == lastKeyframe) {
+            lastKeyframe = -1;
+        }
+        // 巻き戻した後の記録は新しいキーフレームから始める
+        framesSinceKeyframe = keyframeInterval;
+        chip8.restore(current);
+        return true;
+    }
+
+    // 記録されているフレーム数
+    public int size() {
+        return count;
+    }
+
+    // 符号化済みデータの使用バイト数
+    public long usedBytes() {
+        long used = 0;
+        for (int i = 0; i < count; i++) {
+            used += lengths[(oldest + i) % offsets.length];
+        }
+        return used;
+    }
+
+    public void clear() {
+        count = 0;
+        writePosition = 0;
+        decodedKeyframe = -1;
+        lastKeyframe = -1;
+        framesSinceKeyframe = keyframeInterval;
+    }
+
+    // 差分エントリが依存するキーフレームのエントリ番号
+    private int keyframeOf(int index) {
+        int i = index;
+        while (!keyframes[i]) {
+            i = (i - 1 + offsets.length) % offsets.length;
+        }
+        return i;
+    }
+
+    // lengthバイトの領域を確保する(重なる古いエントリは捨てる)
+    private int allocate(int length) {
+        if (writePosition + length > arena.length) {
+            // 末尾に収まらない場合は先頭に戻る(末尾に残っている前の周回のエントリは最も古いので捨てる)
+            while (count > 0 && offsets[oldest] >= writePosition) {
+                evictOldest();
+            }
+            writePosition = 0;
+        }
+        int start = writePosition;
+        int end = start + length;
+        while (count > 0 && (count == offsets.length || overlaps(oldest, start, end))) {
+            evictOldest();
+        }
+        writePosition = end;
+        return start;
+    }
+
+    private boolean overlaps(int index, int start, int end) {
+        int entryStart = offsets[index];
+        return entryStart < end && entryStart + lengths[index] > start;
+    }
+
+    private void evictOldest() {
+        do {
+            if (oldest == decodedKeyframe) {
+                decodedKeyframe = -1;
+            }
+            if (oldest == lastKeyframe) {
+                keyframeEvicted = true;
+                lastKeyframe = -1;
+            }
+            oldest = (oldest + 1) % offsets.length;
+            count--;
+            // 先頭がキーフレームになるまで依存する差分も捨てる
+        } while (count > 0 && !keyframes[oldest]);
+    }
+}
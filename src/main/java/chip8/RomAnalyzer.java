@@ -0,0 +1,216 @@
+package chip8;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+// ROMの静的解析
+// 0x200から分岐・呼び出しをたどって到達できる命令を求め、基本ブロックの制御フローグラフを作る
+// Bnnn(レジスタで決まるジャンプ先)の先はたどれないため、そこから先のコードは見つからないことがある
+// (見つからなかったコードは実行時に通常どおりインタプリタ・Recompilerで実行される)
+public final class RomAnalyzer {
+
+    // 基本ブロック(endは最後の命令の次のアドレス)
+    // successorsは後続のブロックの開始アドレス、indirectはジャンプ先がレジスタで決まる(Bnnn)か
+    public record BasicBlock(int start, int end, int[] successors, boolean indirect) {
+
+        // 命令数
+        public int length() {
+            return (end - start) / 2;
+        }
+    }
+
+    // 解析結果
+    // codeは命令の先頭として到達できるアドレス、translationStartsはRecompilerのブロックの開始位置になるアドレス
+    public record Graph(List<BasicBlock> blocks, BitSet code, int[] translationStarts) {
+
+        // 到達できる命令数
+        public int instructions() {
+            return code.cardinality();
+        }
+    }
+
+    private RomAnalyzer() {
+    }
+
+    // memoryの0x200から解析する(命令の種類はquirksで置き換えたもので判定する)
+    public static Graph analyze(Memory memory, Quirks quirks) {
+        BitSet code = new BitSet(Memory.SIZE);
+        // 基本ブロックの先頭(エントリ・分岐先・分岐の次の命令)
+        BitSet leaders = new BitSet(Memory.SIZE);
+        Deque<Integer> pending = new ArrayDeque<>();
+        leaders.set(MemoryImage.ROM_START_ADDRESS);
+        pending.push(MemoryImage.ROM_START_ADDRESS);
+        int[] successors = new int[2];
+        while (!pending.isEmpty()) {
+            int address = pending.pop();
+            if (code.get(address) || address + 1 >= Memory.SIZE) {
+                continue;
+            }
+            code.set(address);
+            int instruction = decode(memory, quirks, address);
+            int count = successors(instruction, address, successors);
+            boolean branch = endsBasicBlock(Instruction.handler(instruction));
+            for (int i = 0; i < count; i++) {
+                int next = successors[i];
+                if (next + 1 >= Memory.SIZE) {
+                    continue;
+                }
+                if (branch) {
+                    leaders.set(next);
+                }
+                pending.push(next);
+            }
+        }
+
+        List<BasicBlock> blocks = new ArrayList<>();
+        for (int start = leaders.nextSetBit(0); start >= 0; start = leaders.nextSetBit(start + 1)) {
+            if (!code.get(start)) {
+                continue;
+            }
+            int address = start;
+            while (true) {
+                int instruction = decode(memory, quirks, address);
+                int handler = Instruction.handler(instruction);
+                int next = address + 2;
+                if (endsBasicBlock(handler)) {
+                    int count = successors(instruction, address, successors);
+                    int[] targets = Arrays.stream(successors, 0, count).filter(a -> a + 1 < Memory.SIZE).toArray();
+                    boolean indirect = handler == Instruction.JP_V0 || handler == Instruction.JP_VX;
+                    blocks.add(new BasicBlock(start, next, targets, indirect));
+                    break;
+                }
+                if (leaders.get(next) || !code.get(next)) {
+                    blocks.add(new BasicBlock(start, next, code.get(next) ? new int[] {next} : new int[0], false));
+                    break;
+                }
+                address = next;
+            }
+        }
+
+        // Recompilerのブロックは分岐に加えてメモリへの書き込みでも区切られるので、その次の命令からも始める
+        BitSet starts = (BitSet) leaders.clone();
+        for (int address = code.nextSetBit(0); address >= 0; address = code.nextSetBit(address + 1)) {
+            if (Recompiler.endsBlock(Instruction.handler(decode(memory, quirks, address)))) {
+                starts.set(address + 2);
+            }
+        }
+        starts.and(code);
+        return new Graph(blocks, code, starts.stream().toArray());
+    }
+
+    private static int decode(Memory memory, Quirks quirks, int address) {
+        int opcode = (Byte.toUnsignedInt(memory.getByte(address)) << 8)
+                | Byte.toUnsignedInt(memory.getByte(address + 1));
+        return quirks.variant(Instruction.decode(opcode));
+    }
+
+    // 後続の命令のアドレスをdstに入れて数を返す
+    private static int successors(int instruction, int address, int[] dst) {
+        switch (Instruction.handler(instruction)) {
+            case Instruction.JP:
+                dst[0] = Instruction.nnn(instruction);
+                return 1;
+            case Instruction.CALL:
+                // 呼び出し先と、戻ってきた後の命令
+                dst[0] = Instruction.nnn(instruction);
+                dst[1] = address + 2;
+                return 2;
+            case Instruction.RET:
+            case Instruction.EXIT:
+            case Instruction.JP_V0:
+            case Instruction.JP_VX:
+                return 0;
+            case Instruction.SE_VX_KK:
+            case Instruction.SNE_VX_KK:
+            case Instruction.SE_VX_VY:
+            case Instruction.SNE_VX_VY:
+            case Instruction.SKP:
+            case Instruction.SKNP:
+                dst[0] = address + 2;
+                dst[1] = address + 4;
+                return 2;
+            default:
+                dst[0] = address + 2;
+                return 1;
+        }
+    }
+
+    // 制御フローグラフの基本ブロックの終端になる命令(分岐・スキップ・呼び出し・停止)
+    private static boolean endsBasicBlock(int handler) {
+        switch (handler) {
+            case Instruction.JP:
+            case Instruction.CALL:
+            case Instruction.RET:
+            case Instruction.EXIT:
+            case Instruction.JP_V0:
+            case Instruction.JP_VX:
+            case Instruction.SE_VX_KK:
+            case Instruction.SNE_VX_KK:
+            case Instruction.SE_VX_VY:
+            case Instruction.SNE_VX_VY:
+            case Instruction.SKP:
+            case Instruction.SKNP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 制御フローグラフを表示する
+    public static void print(Graph graph, PrintStream out) {
+        out.printf("%d instructions in %d basic blocks, %d translation starts%n",
+                graph.instructions(), graph.blocks().size(), graph.translationStarts().length);
+        for (BasicBlock block : graph.blocks()) {
+            StringBuilder line = new StringBuilder(String.format("%03X-%03X %3d", block.start(), block.end() - 2,
+                    block.length()));
+            if (block.successors().length > 0) {
+                line.append("  ->");
+                for (int successor : block.successors()) {
+                    line.append(String.format(" %03X", successor));
+                }
+            }
+            if (block.indirect()) {
+                line.append("  -> (indirect)");
+            }
+            out.println(line);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: RomAnalyzer <rom> [--quirks NAME] [--cache DIR]");
+            System.exit(1);
+        }
+        Path rom = Paths.get(args[0]);
+        Quirks quirks = Quirks.DEFAULT;
+        Path cacheDir = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quirks" -> quirks = Quirks.named(args[++i]);
+                case "--cache" -> cacheDir = Paths.get(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        RomLibrary.Rom loaded = RomLibrary.getInstance().load(rom);
+        Memory memory = new Memory();
+        memory.loadImage(loaded.image());
+        print(analyze(memory, quirks), System.out);
+        if (cacheDir != null) {
+            // 事前に変換してキャッシュに書く(既にあれば読み込めることを確認するだけ)
+            CPU cpu = new CPU(memory, new Display(), new InputHandler());
+            cpu.setQuirks(quirks);
+            Recompiler recompiler = new Recompiler(cpu, memory);
+            int blocks = new TranslationCache(cacheDir).preload(recompiler, memory, loaded.hash(), quirks);
+            System.out.printf("%d translated blocks in %s%n", blocks,
+                    new TranslationCache(cacheDir).path(loaded.hash(), quirks));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package chip8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ROMの読み込みキャッシュ
+// ROMは内容のSHA-256で索引し、同じ内容のROMは1つのMemoryImageを共有する
+// ファイルはサイズと更新時刻が変わらない限り再読み込みしない
+public class RomLibrary {
+
+    private static final RomLibrary INSTANCE = new RomLibrary();
+
+    // 読み込み済みのROM
+    public record Rom(String hash, int size, MemoryImage image) {
+    }
+
+    // ファイルごとの読み込み結果
+    private record FileEntry(long size, long lastModified, Rom rom) {
+    }
+
+    private final Map<String, Rom> byHash = new ConcurrentHashMap<>();
+    private final Map<Path, FileEntry> byPath = new ConcurrentHashMap<>();
+
+    public static RomLibrary getInstance() {
+        return INSTANCE;
+    }
+
+    // ファイルからROMを読み込む(読み込み済みで変更が無ければキャッシュを返す)
+    // サイズが上限を超える場合は読み込む前にIllegalArgumentExceptionを投げる
+    public Rom load(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long size = attributes.size();
+        if (size > MemoryImage.MAX_ROM_SIZE) {
+            throw new IllegalArgumentException("ROM size exceeds memory capacity: " + path + " (" + size + " bytes)");
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        FileEntry entry = byPath.get(key);
+        if (entry != null && entry.size() == size && entry.lastModified() == lastModified) {
+            return entry.rom();
+        }
+        Rom rom = add(read(key, (int) size));
+        byPath.put(key, new FileEntry(size, lastModified, rom));
+        return rom;
+    }
+
+    // バイト列のROMを登録する(同じ内容が登録済みならそれを返す)
+    public Rom add(byte[] data) {
+        if (data.length > MemoryImage.MAX_ROM_SIZE) {
+            throw new IllegalArgumentException("ROM size exceeds memory capacity: " + data.length + " bytes");
+        }
+        String hash = sha256(data);
+        return byHash.computeIfAbsent(hash, h -> new Rom(h, data.length, new MemoryImage(data)));
+    }
+
+    // ハッシュ値から登録済みのROMを取得(無ければnull)
+    public Rom get(String hash) {
+        return byHash.get(hash);
+    }
+
+    // 登録済みのROMの数
+    public int size() {
+        return byHash.size();
+    }
+
+    // ファイルサイズ分の配列に直接読み込む
+    private static byte[] read(Path path, int size) throws IOException {
+        byte[] data = new byte[size];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("ROM truncated while reading: " + path);
+                }
+            }
+        }
+        return data;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256はすべてのJava実装で使える
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package chip8;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+// セーブステートのバイナリ形式(固定長、ビッグエンディアン)
+//
+//   0  'C' '8' 'S' version
+//   4  V0～VF            16バイト
+//  20  I                 2バイト
+//  22  pc                2バイト
+//  24  sp                1バイト
+//  25  stack[16]         32バイト
+//  57  delayTimer        1バイト
+//  58  soundTimer        1バイト
+//  59  Fx0Aのキー待ち    1バイト(0/1)
+//  60  待ち中に押されたキー 1バイト(0xFFは未入力)
+//  61  乱数の状態        8バイト
+//  69  RPLフラグ         8バイト
+//  77  メモリ            4096バイト
+//      解像度            1バイト(0は64x32、1は128x64)
+//      フレームバッファ   8バイト x 128(64x32 では先頭32個が1行ずつ、128x64 では1行2個)
+public final class SaveState {
+
+    public static final int VERSION = 3;
+
+    private static final int REGISTERS = 4;
+    // メモリ・フレームバッファの位置(OffHeapMemoryのスロットも同じ配置)
+    static final int MEMORY = 77;
+    static final int DISPLAY = MEMORY + Memory.SIZE;
+    static final int DISPLAY_SIZE = 1 + Display.MODE_INDEX * 8;
+
+    // 1つのセーブステートのバイト数
+    public static final int SIZE = DISPLAY + DISPLAY_SIZE;
+
+    // セグメントへ直接読み書きする時の2バイト・8バイトの値(ビッグエンディアン、境界は揃っていない)
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private SaveState() {
+    }
+
+    // 状態をdstの先頭SIZEバイトに書き込む(メモリ確保なし)
+    static void write(CPU cpu, Memory memory, Display display, byte[] dst) {
+        writeRegisters(cpu, dst);
+        memory.copyTo(dst, MEMORY);
+        writeDisplay(display, dst, DISPLAY);
+    }
+
+    // 先頭からメモリの手前まで(識別子とレジスタ類)をdstに書き込む
+    static void writeRegisters(CPU cpu, byte[] dst) {
+        dst[0] = 'C';
+        dst[1] = '8';
+        dst[2] = 'S';
+        dst[3] = VERSION;
+        int p = REGISTERS;
+        for (int i = 0; i < 16; i++) {
+            dst[p++] = (byte) cpu.V[i];
+        }
+        p = putShort(dst, p, cpu.I);
+        p = putShort(dst, p, cpu.pc);
+        dst[p++] = (byte) cpu.sp;
+        for (int i = 0; i < 16; i++) {
+            p = putShort(dst, p, cpu.stack[i]);
+        }
+        dst[p++] = (byte) cpu.delayTimer;
+        dst[p++] = (byte) cpu.soundTimer;
+        dst[p++] = (byte) (cpu.waitingForKey ? 1 : 0);
+        dst[p++] = (byte) cpu.waitPressedKey;
+        long random = cpu.random.getState();
+        for (int i = 0; i < 8; i++) {
+            dst[p++] = (byte) (random >>> (56 - i * 8));
+        }
+        for (int i = 0; i < CPU.RPL_FLAGS; i++) {
+            dst[p++] = (byte) cpu.rpl[i];
+        }
+    }
+
+    // writeRegistersと同じ内容をセグメントのoffset以降に直接書き込む(OffHeapMemoryのスロット用、メモリ確保なし)
+    static void writeRegisters(CPU cpu, MemorySegment dst, long offset) {
+        dst.set(ValueLayout.JAVA_BYTE, offset, (byte) 'C');
+        dst.set(ValueLayout.JAVA_BYTE, offset + 1, (byte) '8');
+        dst.set(ValueLayout.JAVA_BYTE, offset + 2, (byte) 'S');
+        dst.set(ValueLayout.JAVA_BYTE, offset + 3, (byte) VERSION);
+        long p = offset + REGISTERS;
+        for (int i = 0; i < 16; i++) {
+            dst.set(ValueLayout.JAVA_BYTE, p++, (byte) cpu.V[i]);
+        }
+        dst.set(SHORT, p, (short) cpu.I);
+        dst.set(SHORT, p + 2, (short) cpu.pc);
+        p += 4;
+        dst.set(ValueLayout.JAVA_BYTE, p++, (byte) cpu.sp);
+        for (int i = 0; i < 16; i++) {
+            dst.set(SHORT, p, (short) cpu.stack[i]);
+            p += 2;
+        }
+        dst.set(ValueLayout.JAVA_BYTE, p++, (byte) cpu.delayTimer);
+        dst.set(ValueLayout.JAVA_BYTE, p++, (byte) cpu.soundTimer);
+        dst.set(ValueLayout.JAVA_BYTE, p++, (byte) (cpu.waitingForKey ? 1 : 0));
+        dst.set(ValueLayout.JAVA_BYTE, p++, (byte) cpu.waitPressedKey);
+        dst.set(LONG, p, cpu.random.getState());
+        p += 8;
+        for (int i = 0; i < CPU.RPL_FLAGS; i++) {
+            dst.set(ValueLayout.JAVA_BYTE, p++, (byte) cpu.rpl[i]);
+        }
+    }
+
+    // フレームバッファをdstのoffset以降に書き込む
+    static void writeDisplay(Display display, byte[] dst, int offset) {
+        int p = offset;
+        dst[p++] = (byte) (display.isHires() ? 1 : 0);
+        for (int w = 0; w < Display.MODE_INDEX; w++) {
+            long row = display.getFrameWord(w);
+            for (int i = 0; i < 8; i++) {
+                dst[p++] = (byte) (row >>> (56 - i * 8));
+            }
+        }
+    }
+
+    // writeDisplayと同じ内容をセグメントのoffset以降に直接書き込む
+    static void writeDisplay(Display display, MemorySegment dst, long offset) {
+        dst.set(ValueLayout.JAVA_BYTE, offset, (byte) (display.isHires() ? 1 : 0));
+        for (int w = 0; w < Display.MODE_INDEX; w++) {
+            dst.set(LONG, offset + 1 + w * 8L, display.getFrameWord(w));
+        }
+    }
+
+    // srcから状態を復元する(メモリ確保なし)
+    static void read(byte[] src, CPU cpu, Memory memory, Display display, long[] rowScratch) {
+        if (src.length < SIZE) {
+            throw new IllegalArgumentException("Not a save state");
+        }
+        readRegisters(src, cpu);
+        memory.restore(src, MEMORY);
+        readDisplay(src, DISPLAY, display, rowScratch);
+    }
+
+    // 先頭からメモリの手前まで(識別子とレジスタ類)を復元する
+    static void readRegisters(byte[] src, CPU cpu) {
+        if (src.length < MEMORY || src[0] != 'C' || src[1] != '8' || src[2] != 'S') {
+            throw new IllegalArgumentException("Not a save state");
+        }
+        if (src[3] != VERSION) {
+            throw new IllegalArgumentException("Unsupported save state version: " + src[3]);
+        }
+        int p = REGISTERS;
+        for (int i = 0; i < 16; i++) {
+            cpu.V[i] = Byte.toUnsignedInt(src[p++]);
+        }
+        cpu.I = getShort(src, p);
+        p += 2;
+        cpu.pc = getShort(src, p);
+        p += 2;
+        cpu.sp = Byte.toUnsignedInt(src[p++]);
+        for (int i = 0; i < 16; i++) {
+            cpu.stack[i] = getShort(src, p);
+            p += 2;
+        }
+        cpu.delayTimer = Byte.toUnsignedInt(src[p++]);
+        cpu.soundTimer = Byte.toUnsignedInt(src[p++]);
+        cpu.waitingForKey = src[p++] != 0;
+        cpu.waitPressedKey = src[p++];
+        long random = 0;
+        for (int i = 0; i < 8; i++) {
+            random = (random << 8) | Byte.toUnsignedInt(src[p++]);
+        }
+        cpu.random.setState(random);
+        for (int i = 0; i < CPU.RPL_FLAGS; i++) {
+            cpu.rpl[i] = Byte.toUnsignedInt(src[p++]);
+        }
+    }
+
+    // writeRegisters(CPU, MemorySegment, long)で書き込んだレジスタ類を復元する
+    static void readRegisters(MemorySegment src, long offset, CPU cpu) {
+        if (src.get(ValueLayout.JAVA_BYTE, offset) != 'C' || src.get(ValueLayout.JAVA_BYTE, offset + 1) != '8'
+                || src.get(ValueLayout.JAVA_BYTE, offset + 2) != 'S') {
+            throw new IllegalArgumentException("Not a save state");
+        }
+        byte version = src.get(ValueLayout.JAVA_BYTE, offset + 3);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported save state version: " + version);
+        }
+        long p = offset + REGISTERS;
+        for (int i = 0; i < 16; i++) {
+            cpu.V[i] = Byte.toUnsignedInt(src.get(ValueLayout.JAVA_BYTE, p++));
+        }
+        cpu.I = Short.toUnsignedInt(src.get(SHORT, p));
+        cpu.pc = Short.toUnsignedInt(src.get(SHORT, p + 2));
+        p += 4;
+        cpu.sp = Byte.toUnsignedInt(src.get(ValueLayout.JAVA_BYTE, p++));
+        for (int i = 0; i < 16; i++) {
+            cpu.stack[i] = Short.toUnsignedInt(src.get(SHORT, p));
+            p += 2;
+        }
+        cpu.delayTimer = Byte.toUnsignedInt(src.get(ValueLayout.JAVA_BYTE, p++));
+        cpu.soundTimer = Byte.toUnsignedInt(src.get(ValueLayout.JAVA_BYTE, p++));
+        cpu.waitingForKey = src.get(ValueLayout.JAVA_BYTE, p++) != 0;
+        cpu.waitPressedKey = src.get(ValueLayout.JAVA_BYTE, p++);
+        cpu.random.setState(src.get(LONG, p));
+        p += 8;
+        for (int i = 0; i < CPU.RPL_FLAGS; i++) {
+            cpu.rpl[i] = Byte.toUnsignedInt(src.get(ValueLayout.JAVA_BYTE, p++));
+        }
+    }
+
+    // writeDisplay(Display, MemorySegment, long)で書き込んだフレームバッファを復元する(メモリ確保なし)
+    static void readDisplay(MemorySegment src, long offset, Display display) {
+        display.setHires(src.get(ValueLayout.JAVA_BYTE, offset) != 0);
+        for (int w = 0; w < Display.MODE_INDEX; w++) {
+            display.setFrameWord(w, src.get(LONG, offset + 1 + w * 8L));
+        }
+    }
+
+    // srcのoffset以降からフレームバッファを復元する(rowScratchはDisplay.FRAME_SIZE要素以上)
+    static void readDisplay(byte[] src, int offset, Display display, long[] rowScratch) {
+        int p = offset;
+        rowScratch[Display.MODE_INDEX] = src[p++];
+        for (int w = 0; w < Display.MODE_INDEX; w++) {
+            long row = 0;
+            for (int i = 0; i < 8; i++) {
+                row = (row << 8) | Byte.toUnsignedInt(src[p++]);
+            }
+            rowScratch[w] = row;
+        }
+        display.copyFrameFrom(rowScratch);
+    }
+
+    private static int putShort(byte[] dst, int p, int value) {
+        dst[p] = (byte) (value >> 8);
+        dst[p + 1] = (byte) value;
+        return p + 2;
+    }
+
+    private static int getShort(byte[] src, int p) {
+        return (Byte.toUnsignedInt(src[p]) << 8) | Byte.toUnsignedInt(src[p + 1]);
+    }
+}
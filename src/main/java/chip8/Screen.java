@@ -1,25 +1,53 @@
 package chip8;
 
 import javax.swing.JPanel;
-import java.awt.Color;
+import javax.swing.Timer;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
 import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 public class Screen extends JPanel {
 
-    private Display display;
+    private static final int COLOR_ON = 0xFFFFFF;
+    private static final int COLOR_OFF = 0x000000;
+    private static final int DEFAULT_REFRESH_RATE = 60;
+
+    // エミュレーションスレッドが公開したフレーム
+    private FramePublisher framePublisher;
     // 1ピクセルあたりの描画サイズ
     private int scale;
+
+    // 解像度ごとの等倍の画像(ピクセル配列に直接書き込み、描画時にウィンドウの大きさへ拡大する)
+    // 128x64 では1ピクセルの大きさがscaleの半分になり、ウィンドウの大きさは変わらない
+    private final BufferedImage lowResImage = new BufferedImage(Display.WIDTH, Display.HEIGHT, BufferedImage.TYPE_INT_RGB);
+    private final BufferedImage highResImage = new BufferedImage(Display.HIRES_WIDTH, Display.HIRES_HEIGHT,
+            BufferedImage.TYPE_INT_RGB);
+    private final int[] lowResPixels = ((DataBufferInt) lowResImage.getRaster().getDataBuffer()).getData();
+    private final int[] highResPixels = ((DataBufferInt) highResImage.getRaster().getDataBuffer()).getData();
+    // 表示中の画像
+    private BufferedImage image = lowResImage;
+    // 画像に反映済みのフレーム(解像度を含む)
+    private final long[] shownRows = new long[Display.FRAME_SIZE];
+    private final long[] latestRows = new long[Display.FRAME_SIZE];
+    private long shownSequence;
+    // 画面のリフレッシュレートで変更を確認するタイマー
+    private final Timer refreshTimer;
     @SuppressWarnings("unused")
     private InputHandler inputHandler;
+    // 実行統計(nullの時は計測しない)
+    private Metrics metrics;
 
-    public Screen(Display display, int scale, InputHandler inputHandler) {
-        this.display = display;
+    public Screen(FramePublisher framePublisher, int scale, InputHandler inputHandler) {
+        this.framePublisher = framePublisher;
         this.scale = scale;
         this.inputHandler = inputHandler;
-        setPreferredSize(new Dimension(64 * scale, 32 * scale));
+        setPreferredSize(new Dimension(Display.WIDTH * scale, Display.HEIGHT * scale));
 
         // キーリスナーを追加
         addKeyListener(new KeyAdapter() {
@@ -27,7 +55,7 @@ public class Screen extends JPanel {
             public void keyPressed(KeyEvent e) {
                 int chip8Key = convertKey(e.getKeyCode());
                 if (chip8Key != -1) {
-                    inputHandler.keys[chip8Key] = true;
+                    inputHandler.keyPressed(chip8Key);
                 }
             }
 
@@ -35,13 +63,102 @@ public class Screen extends JPanel {
             public void keyReleased(KeyEvent e) {
                 int chip8Key = convertKey(e.getKeyCode());
                 if(chip8Key != -1) {
-                    inputHandler.keys[chip8Key] = false;
+                    inputHandler.keyReleased(chip8Key);
                 }
             }   
         });
         // キー入力を受け取るためにフォーカス可能にし、フォーカスを要求
         setFocusable(true);
         requestFocusInWindow();
+
+        setOpaque(true);
+        refreshTimer = new Timer(1000 / refreshRate(), e -> refresh());
+        refreshTimer.setCoalesce(true);
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refreshTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        refreshTimer.stop();
+        super.removeNotify();
+    }
+
+    // 描画遅延を記録する統計を設定
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // ディスプレイのリフレッシュレート(取得できない場合は60Hz)
+    private static int refreshRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDisplayMode().getRefreshRate();
+            return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : rate;
+        } catch (HeadlessException e) {
+            return DEFAULT_REFRESH_RATE;
+        }
+    }
+
+    // 新しいフレームが公開されていれば、変化した行だけを画像に反映して再描画を要求する
+    private void refresh() {
+        long sequence = framePublisher.readIfNewer(shownSequence, latestRows);
+        if (sequence < 0) {
+            return;
+        }
+        shownSequence = sequence;
+        if (metrics != null) {
+            metrics.renderLatency(System.nanoTime() - framePublisher.getLatestPublishedNanos());
+        }
+        boolean hires = Display.isHires(latestRows);
+        if (hires != Display.isHires(shownRows)) {
+            // 解像度が変わったら画像を切り替えて全行を描き直す
+            shownRows[Display.MODE_INDEX] = latestRows[Display.MODE_INDEX];
+            image = hires ? highResImage : lowResImage;
+            for (int i = 0; i < Display.MODE_INDEX; i++) {
+                shownRows[i] = ~latestRows[i];
+            }
+        }
+        int height = hires ? Display.HIRES_HEIGHT : Display.HEIGHT;
+        // 1行あたりのlongの数
+        int words = hires ? 2 : 1;
+        int[] pixels = hires ? highResPixels : lowResPixels;
+        int top = -1;
+        int bottom = -1;
+        for (int y = 0; y < height; y++) {
+            boolean changed = false;
+            for (int w = 0; w < words; w++) {
+                int i = y * words + w;
+                long row = latestRows[i];
+                if (row == shownRows[i]) {
+                    continue;
+                }
+                shownRows[i] = row;
+                int offset = i * 64;
+                for (int x = 0; x < 64; x++) {
+                    pixels[offset + x] = (row << x) < 0 ? COLOR_ON : COLOR_OFF;
+                }
+                changed = true;
+            }
+            if (!changed) {
+                continue;
+            }
+            if (top < 0) {
+                top = y;
+            }
+            bottom = y;
+        }
+        if (top >= 0) {
+            // 行の範囲をウィンドウの座標に直す(128x64 でscaleが奇数の時は端数を含める)
+            int panelHeight = Display.HEIGHT * scale;
+            int from = top * panelHeight / height;
+            int to = ((bottom + 1) * panelHeight + height - 1) / height;
+            repaint(0, from, Display.WIDTH * scale, to - from);
+        }
     }
 
     // CHIP-8のキーに変換するためのメソッド
@@ -69,19 +186,7 @@ public class Screen extends JPanel {
     
     @Override
     protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        // 背景色を黒に指定
-        g.setColor(Color.BLACK);
-        g.fillRect(0, 0, getWidth(), getHeight());
-
-        // 各ピクセルの状態に応じて描画
-        g.setColor(Color.WHITE);
-        for (int x = 0; x < 64; x++) {
-            for (int y = 0; y < 32; y++) {
-                if (display.pixels[x][y]) {
-                    g.fillRect(x * scale, y * scale, scale, scale);
-                }
-            }
-        }
+        // 画像を1回の描画で拡大する(再描画範囲はクリップで制限される)
+        g.drawImage(image, 0, 0, Display.WIDTH * scale, Display.HEIGHT * scale, null);
     }
 }
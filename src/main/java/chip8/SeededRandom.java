@@ -0,0 +1,48 @@
+package chip8;
+
+// インスタンスごとの乱数生成器(SplitMix64)
+// 同じシードからは同じ列を返すので、入力ログの再生で同じ結果になる
+// 状態はlong 1つだけで、生成時にメモリ確保やスレッド間の競合は無い
+final class SeededRandom {
+
+    // 1回ごとに状態に加える値
+    static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    SeededRandom(long seed) {
+        this.state = seed;
+    }
+
+    void setSeed(long seed) {
+        state = seed;
+    }
+
+    long getState() {
+        return state;
+    }
+
+    void setState(long state) {
+        this.state = state;
+    }
+
+    long nextLong() {
+        return mix(state += GAMMA);
+    }
+
+    // 0～255の乱数
+    int nextByte() {
+        return toByte(nextLong());
+    }
+
+    // GAMMAを加えた後の状態から出力を求める(BatchEnvironmentはレーンごとのlongの状態で同じ列を作る)
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static int toByte(long value) {
+        return (int) (value >>> 56);
+    }
+}
@@ -0,0 +1,252 @@
+package chip8;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// EmulatorServerの負荷試験
+// セッション数を段階的に増やし、各セッションが実時間(60フレーム/秒)で進んでいるかを受信したフレーム番号から測る
+// 全クライアントを1つのスレッドとセレクターで動かし、定期的にキー操作も送る
+// (フレームは変化があった時だけ届くので、毎フレーム描画するROMを使うこと)
+public class ServerLoadGenerator {
+
+    // 実時間の何割以上で進んでいれば維持できているとみなすか
+    private static final double SUSTAINED_RATIO = 0.95;
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long KEY_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    // 定期的に押したり離したりするキー(入力経路の負荷用、ROMの進行を止めないようにキー0を使う)
+    private static final int LOAD_KEY = 0;
+
+    // 1段階の測定結果
+    public record Step(int sessions, double meanFramesPerSecond, double minFramesPerSecond,
+            double receivedBytesPerSecond) {
+
+        public boolean sustained() {
+            return minFramesPerSecond >= FrameScheduler.FRAMES_PER_SECOND * SUSTAINED_RATIO;
+        }
+    }
+
+    private static final class Client {
+
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        final ByteBuffer out = ByteBuffer.allocate(64);
+        final long[] rows = new long[Display.FRAME_SIZE];
+        // 測定開始時点と最後に受け取ったフレーム番号と受信時刻
+        // (受信の遅れで区間の端がずれないよう、経過時間もフレームを受け取った時刻で測る)
+        long startFrame = -1;
+        long startNanos;
+        long lastFrame = -1;
+        long lastNanos;
+        boolean keyDown;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final SocketAddress address;
+    private final String rom;
+    private int generation;
+
+    public ServerLoadGenerator(SocketAddress address, String rom) {
+        this.address = address;
+        this.rom = rom;
+    }
+
+    // sessions個のセッションを作り、seconds秒間の進み具合を測る
+    public Step measure(int sessions, double seconds) throws IOException {
+        generation++;
+        List<Client> clients = new ArrayList<>(sessions);
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < sessions; i++) {
+                SocketChannel channel = address instanceof UnixDomainSocketAddress
+                        ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+                Client client = new Client(channel);
+                clients.add(client);
+                channel.connect(address);
+                client.out.clear();
+                ServerProtocol.putAttach(client.out, "load-" + generation + "-" + i, rom);
+                client.out.flip();
+                while (client.out.hasRemaining()) {
+                    channel.write(client.out);
+                }
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                client.in.flip();
+            }
+
+            long start = System.nanoTime();
+            long measureStart = start + WARMUP_NANOS;
+            long end = measureStart + (long) (seconds * 1e9);
+            long nextKey = start + KEY_INTERVAL_NANOS;
+            long received = 0;
+            boolean measuring = false;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (!measuring && now >= measureStart) {
+                    measuring = true;
+                    received = 0;
+                    for (Client client : clients) {
+                        client.startFrame = client.lastFrame;
+                        client.startNanos = client.lastNanos;
+                    }
+                }
+                if (now >= nextKey) {
+                    nextKey += KEY_INTERVAL_NANOS;
+                    for (Client client : clients) {
+                        toggleKey(client);
+                    }
+                }
+                selector.select(10);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    received += receive((Client) key.attachment(), System.nanoTime());
+                }
+                selector.selectedKeys().clear();
+            }
+
+            double measured = (end - measureStart) / 1e9;
+            double sum = 0;
+            double min = Double.MAX_VALUE;
+            for (Client client : clients) {
+                double rate = client.startFrame < 0 || client.lastNanos == client.startNanos ? 0
+                        : (client.lastFrame - client.startFrame) * 1e9 / (client.lastNanos - client.startNanos);
+                sum += rate;
+                min = Math.min(min, rate);
+            }
+            return new Step(sessions, sum / sessions, min, received / measured);
+        } finally {
+            for (Client client : clients) {
+                client.channel.close();
+            }
+        }
+    }
+
+    // 受信したフレームを読み、受信バイト数を返す
+    private static long receive(Client client, long now) throws IOException {
+        ByteBuffer in = client.in;
+        in.compact();
+        int read = client.channel.read(in);
+        in.flip();
+        if (read < 0) {
+            throw new IOException("Server closed the connection");
+        }
+        while (in.hasRemaining()) {
+            int start = in.position();
+            byte type = in.get();
+            if (type == ServerProtocol.ERROR) {
+                String message = ServerProtocol.getString(in);
+                if (message == null) {
+                    in.position(start);
+                    break;
+                }
+                throw new IOException("Server error: " + message);
+            }
+            long frame = ServerProtocol.getFrame(in, client.rows);
+            if (frame < 0) {
+                in.position(start);
+                break;
+            }
+            client.lastFrame = frame;
+            client.lastNanos = now;
+        }
+        return Math.max(read, 0);
+    }
+
+    private static void toggleKey(Client client) throws IOException {
+        client.keyDown = !client.keyDown;
+        client.out.clear();
+        ServerProtocol.putKey(client.out, LOAD_KEY, client.keyDown);
+        client.out.flip();
+        client.channel.write(client.out);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 2) {
+            System.out.println("Usage: ServerLoadGenerator <rom-dir> <rom> [--connect PORT|unix:PATH] [--workers N]"
+                    + " [--start N] [--step N] [--max N] [--seconds S] [--engine KIND]");
+            System.exit(1);
+        }
+        Path romDir = Paths.get(args[0]);
+        String rom = args[1];
+        SocketAddress connect = null;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int first = 50;
+        int step = 50;
+        int max = 100_000;
+        double seconds = 5;
+        ExecutionEngine.Kind engineKind = ExecutionEngine.Kind.INTERPRETER;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--connect" -> connect = EmulatorServer.parseAddress(args[++i]);
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--start" -> first = Integer.parseInt(args[++i]);
+                case "--step" -> step = Integer.parseInt(args[++i]);
+                case "--max" -> max = Integer.parseInt(args[++i]);
+                case "--seconds" -> seconds = Double.parseDouble(args[++i]);
+                case "--engine" -> engineKind = ExecutionEngine.Kind.valueOf(args[++i].toUpperCase());
+                default -> {
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        // 接続先を指定しない場合は同じプロセスでサーバーを動かす(ティックの処理時間も表示する)
+        EmulatorServer server = null;
+        if (connect == null) {
+            server = new EmulatorServer(new InetSocketAddress("127.0.0.1", 0), romDir, workers, engineKind);
+            server.start();
+            connect = server.getLocalAddress();
+        }
+        ServerLoadGenerator generator = new ServerLoadGenerator(connect, rom);
+        int sustained = 0;
+        try {
+            long[] before = new long[64];
+            for (int sessions = first; sessions <= max; sessions += step) {
+                long skipped = server != null ? server.getSkippedFrames() : 0;
+                if (server != null) {
+                    Arrays.fill(before, 0);
+                    server.addTickTimesTo(before);
+                }
+                Step result = generator.measure(sessions, seconds);
+                String serverStats = "";
+                if (server != null) {
+                    // この段階の分だけを集計する
+                    long[] ticks = new long[64];
+                    server.addTickTimesTo(ticks);
+                    for (int i = 0; i < ticks.length; i++) {
+                        ticks[i] -= before[i];
+                    }
+                    serverStats = String.format("  tick p99 %.2f ms  skipped %d",
+                            Histogram.percentile(ticks, 0.99) / 1e6, server.getSkippedFrames() - skipped);
+                }
+                System.out.printf("%6d sessions  mean %5.1f fps  min %5.1f fps  %8.1f KB/s%s%n",
+                        result.sessions(), result.meanFramesPerSecond(), result.minFramesPerSecond(),
+                        result.receivedBytesPerSecond() / 1024, serverStats);
+                if (!result.sustained()) {
+                    break;
+                }
+                sustained = sessions;
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        System.out.printf("Sustained %d sessions at >= %.0f%% of real time%n", sustained, SUSTAINED_RATIO * 100);
+    }
+}
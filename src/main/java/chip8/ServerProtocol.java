@@ -0,0 +1,149 @@
+package chip8;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// EmulatorServerとクライアントの間のメッセージ形式(ビッグエンディアン)
+//
+// クライアント → サーバー
+//   ATTACH  1, プロトコルのバージョン 1バイト, セッション名(2バイトの長さ + UTF-8),
+//           ROMのファイル名(同じ形式、既存のセッションに接続する場合は空)
+//   KEY     2, 押下(ビット4)とキー(下位4ビット) 1バイト
+// サーバー → クライアント
+//   FRAME   1, フレーム番号 8バイト, 解像度 1バイト(0は64x32、1は128x64),
+//           変化したlongのビット集合 8バイト x 2(1つ目のビットiが i番目、2つ目のビットiが 64+i番目),
+//           変化したlongの内容 1つ8バイト
+//           (フレームはDisplay.copyFrameToの形のDisplay.MODE_INDEX個のlong、64x32 では先頭のHEIGHT個だけを使う)
+//           (差分の基準はそのクライアントに前回送ったフレーム、最初は全て0)
+//   ERROR   2, メッセージ(2バイトの長さ + UTF-8)、送信後に切断する
+final class ServerProtocol {
+
+    // バージョン1はATTACHにバージョンが無く、FRAMEが64x32 の行だけだった
+    static final byte VERSION = 2;
+
+    static final byte ATTACH = 1;
+    static final byte KEY = 2;
+
+    static final byte FRAME = 1;
+    static final byte ERROR = 2;
+
+    // FRAMEの最大バイト数
+    static final int MAX_FRAME_MESSAGE = 1 + 8 + 1 + 16 + Display.MODE_INDEX * 8;
+    // FRAMEの種別の後ろの固定部分のバイト数
+    private static final int FRAME_HEADER = 8 + 1 + 16;
+    // 文字列の最大バイト数
+    static final int MAX_STRING = 1024;
+
+    private ServerProtocol() {
+    }
+
+    // previousからcurrentへの差分をFRAMEとしてoutに書き、previousをcurrentに更新する(変化が無ければ書かずにfalse)
+    // current・previousはDisplay.FRAME_SIZE要素(Display.copyFrameToの形)
+    static boolean putFrame(ByteBuffer out, long frame, long[] current, long[] previous) {
+        long low = changedMask(current, previous, 0);
+        long high = changedMask(current, previous, 64);
+        long mode = current[Display.MODE_INDEX];
+        if (low == 0 && high == 0 && mode == previous[Display.MODE_INDEX]) {
+            return false;
+        }
+        out.put(FRAME);
+        out.putLong(frame);
+        out.put((byte) mode);
+        out.putLong(low);
+        out.putLong(high);
+        putChanged(out, low, current, previous, 0);
+        putChanged(out, high, current, previous, 64);
+        previous[Display.MODE_INDEX] = mode;
+        return true;
+    }
+
+    // offsetから64個のlongのうち変化したもののビット集合
+    private static long changedMask(long[] current, long[] previous, int offset) {
+        long changed = 0;
+        for (int i = 0; i < 64; i++) {
+            if (current[offset + i] != previous[offset + i]) {
+                changed |= 1L << i;
+            }
+        }
+        return changed;
+    }
+
+    private static void putChanged(ByteBuffer out, long changed, long[] current, long[] previous, int offset) {
+        for (int i = 0; i < 64; i++) {
+            if ((changed & (1L << i)) != 0) {
+                out.putLong(current[offset + i]);
+                previous[offset + i] = current[offset + i];
+            }
+        }
+    }
+
+    // FRAME(種別の後ろ)を読んでframeに反映し、フレーム番号を返す(揃っていなければ読まずに-1)
+    // frameはDisplay.FRAME_SIZE要素(Display.copyFrameToの形になる)
+    static long getFrame(ByteBuffer in, long[] frame) {
+        if (in.remaining() < FRAME_HEADER) {
+            return -1;
+        }
+        int start = in.position();
+        long number = in.getLong();
+        int mode = in.get();
+        long low = in.getLong();
+        long high = in.getLong();
+        if (in.remaining() < (Long.bitCount(low) + Long.bitCount(high)) * 8) {
+            in.position(start);
+            return -1;
+        }
+        getChanged(in, low, frame, 0);
+        getChanged(in, high, frame, 64);
+        frame[Display.MODE_INDEX] = mode;
+        return number;
+    }
+
+    private static void getChanged(ByteBuffer in, long changed, long[] frame, int offset) {
+        for (int i = 0; i < 64; i++) {
+            if ((changed & (1L << i)) != 0) {
+                frame[offset + i] = in.getLong();
+            }
+        }
+    }
+
+    static void putAttach(ByteBuffer out, String session, String rom) {
+        out.put(ATTACH);
+        out.put(VERSION);
+        putString(out, session);
+        putString(out, rom);
+    }
+
+    static void putKey(ByteBuffer out, int key, boolean pressed) {
+        out.put(KEY);
+        out.put((byte) ((pressed ? 0x10 : 0) | (key & 0xF)));
+    }
+
+    static void putError(ByteBuffer out, String message) {
+        out.put(ERROR);
+        putString(out, message);
+    }
+
+    static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    // 文字列を読む(揃っていなければ読まずにnull)
+    static String getString(ByteBuffer in) {
+        if (in.remaining() < 2) {
+            return null;
+        }
+        int length = Short.toUnsignedInt(in.getShort(in.position()));
+        if (length > MAX_STRING) {
+            throw new IllegalArgumentException("String too long: " + length);
+        }
+        if (in.remaining() < 2 + length) {
+            return null;
+        }
+        in.getShort();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
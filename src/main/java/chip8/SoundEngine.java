@@ -0,0 +1,174 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// サウンドタイマーのブザー
+// CPUはタイマーの更新(60Hz)ごとに鳴らすかどうか(ゲート)をリングバッファに積むだけで待たない
+// 音声スレッドがゲートを1つ取り出すごとに1ティック分(1/60秒)のPCMを出力先に書く
+// 波形は最初に1秒分(440周期ちょうどなので継ぎ目なくループする)を作っておき、位相を保ったまま切り出す
+//
+// 実時間の出力(音声デバイス)では、溜まったゲートがMAX_BACKLOGを超えたら古いものを捨てて追いつき、
+// ゲートが届かずにデバイスのバッファが空きそうな時は無音で埋める
+// (遅延は出力側のバッファとMAX_BACKLOGの和で抑えられ、デバイスが遅くてもエミュレーションは待たない)
+// それ以外の出力(WAVなど)では積まれたゲートを全て書く
+public class SoundEngine implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SoundEngine.class);
+
+    public static final int SAMPLE_RATE = 44100;
+    public static final int TONE_HZ = 440;
+    // 1ティック分のサンプル数・バイト数
+    public static final int SAMPLES_PER_TICK = SAMPLE_RATE / FrameScheduler.FRAMES_PER_SECOND;
+    public static final int BYTES_PER_TICK = SAMPLES_PER_TICK * 2;
+    // 音声デバイスのバッファ(ティック数)
+    public static final int DEFAULT_LINE_TICKS = 3;
+
+    private static final short AMPLITUDE = 6000;
+    private static final int RING_SIZE = 1 << 16;
+    // 実時間の出力で溜めておくゲートの最大数
+    private static final int MAX_BACKLOG = 2;
+    // 書くものが無い時の待ち時間
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final SoundSink sink;
+    // 1秒分の矩形波と1ティック分の無音
+    private final byte[] tone = new byte[SAMPLE_RATE * 2];
+    private final byte[] silence = new byte[BYTES_PER_TICK];
+
+    // CPUから音声スレッドへのゲートの受け渡し(単一生産者・単一消費者)
+    private final boolean[] ring = new boolean[RING_SIZE];
+    private volatile long head;
+    private volatile long tail;
+    private volatile long dropped;
+    private volatile long skipped;
+    private volatile long underruns;
+    private volatile boolean closing;
+    private final Thread thread;
+
+    // 以下は音声スレッド専用
+    // toneの読み出し位置(バイト)
+    private int phase;
+    private IOException failure;
+
+    public SoundEngine(SoundSink sink) {
+        this.sink = sink;
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            short sample = (long) i * TONE_HZ * 2 / SAMPLE_RATE % 2 == 0 ? AMPLITUDE : -AMPLITUDE;
+            tone[i * 2] = (byte) sample;
+            tone[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        thread = new Thread(this::audioLoop, "sound");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    // 1ティック分のゲートを積む(エミュレーションスレッドから呼ばれる、メモリ確保なし)
+    void tick(boolean gate) {
+        long t = tail;
+        if (t - head >= RING_SIZE) {
+            dropped = dropped + 1;
+            return;
+        }
+        ring[(int) (t & (RING_SIZE - 1))] = gate;
+        tail = t + 1;
+    }
+
+    private void audioLoop() {
+        boolean realTime = sink.isRealTime();
+        try {
+            while (true) {
+                // 終了の確認を先にする(closeの時点で積まれているゲートは全て書く)
+                boolean last = closing;
+                long h = head;
+                long t = tail;
+                if (h == t) {
+                    if (last) {
+                        break;
+                    }
+                    if (realTime && sink.bufferSize() - sink.available() < BYTES_PER_TICK) {
+                        underruns = underruns + 1;
+                        render(false);
+                    } else {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    continue;
+                }
+                if (realTime && t - h > MAX_BACKLOG) {
+                    skipped = skipped + (t - h - MAX_BACKLOG);
+                    h = t - MAX_BACKLOG;
+                }
+                boolean gate = ring[(int) (h & (RING_SIZE - 1))];
+                head = h + 1;
+                render(gate);
+            }
+        } catch (IOException e) {
+            logger.error("Sound output failed, sound is disabled", e);
+            failure = e;
+            // 以降のゲートは受け取って捨てる
+            while (!closing) {
+                head = tail;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // 1ティック分を書く(鳴らしていない間は位相を先頭に戻す)
+    private void render(boolean gate) throws IOException {
+        if (!gate) {
+            phase = 0;
+            sink.write(silence, 0, BYTES_PER_TICK);
+            return;
+        }
+        int remaining = BYTES_PER_TICK;
+        while (remaining > 0) {
+            int n = Math.min(remaining, tone.length - phase);
+            sink.write(tone, phase, n);
+            phase = (phase + n) % tone.length;
+            remaining -= n;
+        }
+    }
+
+    // 残りのゲートを書いて出力先を閉じる(エミュレーションの停止後に呼ぶこと)
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped > 0) {
+            logger.warn("Sound: dropped {} ticks (output could not keep up)", dropped);
+        }
+        sink.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public SoundSink getSink() {
+        return sink;
+    }
+
+    // 受け渡しが間に合わずに捨てたティック数
+    public long getDropped() {
+        return dropped;
+    }
+
+    // 遅延を抑えるために読み飛ばしたティック数(実時間の出力のみ)
+    public long getSkipped() {
+        return skipped;
+    }
+
+    // ゲートが届かずに無音で埋めたティック数(実時間の出力のみ)
+    public long getUnderruns() {
+        return underruns;
+    }
+}
@@ -0,0 +1,201 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// SoundEngineの出力先(符号付き16ビット・モノラル・リトルエンディアンのPCM)
+// SoundEngineの音声スレッドだけが呼ぶ
+public interface SoundSink extends Closeable {
+
+    AudioFormat FORMAT = new AudioFormat(SoundEngine.SAMPLE_RATE, 16, 1, true, false);
+
+    // PCMを書く(実時間の出力では再生が追いつくまで待つことがある)
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    // 実時間で再生する出力か(falseなら受け取ったティックを全て書く)
+    boolean isRealTime();
+
+    // 待たずに書けるバイト数
+    default int available() {
+        return Integer.MAX_VALUE;
+    }
+
+    // 出力側に溜められるバイト数
+    default int bufferSize() {
+        return 0;
+    }
+
+    // 音声デバイスに出力する(bufferTicksティック分のバッファを持つ)
+    static SoundSink line(int bufferTicks) throws LineUnavailableException {
+        return new LineSink(bufferTicks);
+    }
+
+    // 音声デバイスがあればそこに出力し、無ければ捨てる
+    static SoundSink open(int bufferTicks) {
+        try {
+            return line(bufferTicks);
+        } catch (LineUnavailableException | IllegalArgumentException | SecurityException e) {
+            LoggerFactory.getLogger(SoundSink.class).warn("No audio device available, sound is disabled: {}",
+                    e.getMessage());
+            return none();
+        }
+    }
+
+    // 何も出力しない
+    static SoundSink none() {
+        return new NullSink();
+    }
+
+    // WAVファイルに書く
+    static SoundSink wav(Path path) throws IOException {
+        return new WavSink(path);
+    }
+
+    // javax.soundのSourceDataLine
+    final class LineSink implements SoundSink {
+
+        private final SourceDataLine line;
+
+        LineSink(int bufferTicks) throws LineUnavailableException {
+            line = AudioSystem.getSourceDataLine(FORMAT);
+            line.open(FORMAT, bufferTicks * SoundEngine.BYTES_PER_TICK);
+            line.start();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            line.write(buffer, offset, length);
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return true;
+        }
+
+        @Override
+        public int available() {
+            return line.available();
+        }
+
+        @Override
+        public int bufferSize() {
+            return line.getBufferSize();
+        }
+
+        @Override
+        public void close() {
+            line.drain();
+            line.close();
+        }
+    }
+
+    // 書いたバイト数だけ数える
+    final class NullSink implements SoundSink {
+
+        private long written;
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            written += length;
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return false;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // WAVファイル(データの長さは閉じる時に見出しへ書き戻す)
+    final class WavSink implements SoundSink {
+
+        private static final Logger logger = LoggerFactory.getLogger(WavSink.class);
+        private static final int HEADER_SIZE = 44;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long dataLength;
+
+        WavSink(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            putHeader(0);
+        }
+
+        private void putHeader(long length) {
+            int bytesPerSample = FORMAT.getSampleSizeInBits() / 8;
+            buffer.put(new byte[] {'R', 'I', 'F', 'F'}).putInt((int) (36 + length))
+                    .put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16)
+                    .putShort((short) 1).putShort((short) FORMAT.getChannels())
+                    .putInt(SoundEngine.SAMPLE_RATE).putInt(SoundEngine.SAMPLE_RATE * bytesPerSample)
+                    .putShort((short) bytesPerSample).putShort((short) FORMAT.getSampleSizeInBits())
+                    .put(new byte[] {'d', 'a', 't', 'a'}).putInt((int) length);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+                dataLength += n;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                putHeader(dataLength);
+                buffer.flip();
+                long position = 0;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+                logger.info("Saved sound: {} ({} bytes of PCM)", path, dataLength);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
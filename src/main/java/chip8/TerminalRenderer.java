@@ -0,0 +1,254 @@
+package chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// ANSIエスケープシーケンスの端末に画面を表示する(SSH越しの監視用)
+// 上下2ピクセルを半角ブロック文字(▀ ▄ █ と空白)の1文字で表すので、64x32 は64x16文字、128x64 は128x32文字になる
+// 専用のスレッドがFramePublisherから最新のフレームを読むだけなので、エミュレーションスレッドは待たない
+// 表示中のフレームと比べて変化した文字とカーソル移動だけを1つのバッファにまとめ、1フレーム1回のwriteで送る
+// 更新は最大maxFps回/秒に間引く(その間のフレームは最後のものだけを表示する)
+public class TerminalRenderer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TerminalRenderer.class);
+
+    public static final int DEFAULT_MAX_FPS = 30;
+
+    private static final byte ESC = 0x1B;
+    private static final String HIDE_CURSOR = "\u001B[?25l";
+    private static final String SHOW_CURSOR = "\u001B[?25h";
+    private static final String CLEAR_SCREEN = "\u001B[2J";
+    // 上下のピクセル(上が1ビット目、下が2ビット目)ごとの文字のUTF-8
+    private static final byte[][] CELLS = {
+            {' '},
+            {(byte) 0xE2, (byte) 0x96, (byte) 0x80}, // ▀
+            {(byte) 0xE2, (byte) 0x96, (byte) 0x84}, // ▄
+            {(byte) 0xE2, (byte) 0x96, (byte) 0x88}, // █
+    };
+    // 1文字の最大バイト数(カーソル移動 ESC[rr;cccH + 文字)
+    private static final int MAX_CELL_BYTES = 10 + 3;
+
+    private final FramePublisher framePublisher;
+    private final OutputStream out;
+    private final long intervalNanos;
+    private final Thread thread;
+    private volatile boolean closing;
+    private volatile long frames;
+    private volatile long bytes;
+
+    // 以下は表示スレッド専用
+    private final long[] latest = new long[Display.FRAME_SIZE];
+    // 端末に表示している内容
+    private final long[] shown = new long[Display.FRAME_SIZE];
+    private final byte[] buffer = new byte[Display.HIRES_WIDTH * Display.HIRES_HEIGHT / 2 * MAX_CELL_BYTES + 64];
+    private int length;
+    // 端末のカーソル位置(0始まり、-1は不明)
+    private int cursorRow = -1;
+    private int cursorColumn = -1;
+    private long shownSequence = -1;
+
+    public TerminalRenderer(FramePublisher framePublisher, OutputStream out) {
+        this(framePublisher, out, DEFAULT_MAX_FPS);
+    }
+
+    public TerminalRenderer(FramePublisher framePublisher, OutputStream out, int maxFps) {
+        if (maxFps < 1) {
+            throw new IllegalArgumentException("maxFps must be positive: " + maxFps);
+        }
+        this.framePublisher = framePublisher;
+        this.out = out;
+        this.intervalNanos = 1_000_000_000L / maxFps;
+        thread = new Thread(this::renderLoop, "terminal-renderer");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void renderLoop() {
+        try {
+            // カーソルを隠して画面を消す(表示中の内容は全て消灯)
+            append(HIDE_CURSOR);
+            clearScreen();
+            long next = System.nanoTime();
+            while (!closing) {
+                long sequence = framePublisher.readIfNewer(shownSequence, latest);
+                if (sequence >= 0) {
+                    shownSequence = sequence;
+                    render();
+                }
+                if (length > 0) {
+                    write();
+                }
+                next += intervalNanos;
+                long now = System.nanoTime();
+                if (next - now > 0) {
+                    LockSupport.parkNanos(next - now);
+                } else {
+                    // 遅れた分は取り戻さない
+                    next = now;
+                }
+            }
+            // カーソルを表示の下に移してから元に戻す
+            moveTo(rows(Display.isHires(shown)), 0);
+            append(SHOW_CURSOR);
+            write();
+        } catch (IOException e) {
+            // 端末が閉じられた(SSHの切断など)
+            logger.warn("Terminal output closed: {}", e.getMessage());
+        }
+    }
+
+    // latestと表示中の内容を比べ、変化した文字をバッファに書く
+    private void render() {
+        boolean hires = Display.isHires(latest);
+        if (hires != Display.isHires(shown)) {
+            // 解像度が変わったら画面を消して全て描き直す
+            clearScreen();
+            shown[Display.MODE_INDEX] = latest[Display.MODE_INDEX];
+        }
+        // 1行あたりのlongの数
+        int words = hires ? 2 : 1;
+        for (int row = 0; row < rows(hires); row++) {
+            for (int w = 0; w < words; w++) {
+                int upper = row * 2 * words + w;
+                int lower = upper + words;
+                long top = latest[upper];
+                long bottom = latest[lower];
+                long changed = (top ^ shown[upper]) | (bottom ^ shown[lower]);
+                while (changed != 0) {
+                    int bit = Long.numberOfLeadingZeros(changed);
+                    changed &= -1L >>> bit >>> 1;
+                    putCell(row, w * 64 + bit, words);
+                }
+                shown[upper] = top;
+                shown[lower] = bottom;
+            }
+        }
+    }
+
+    // (row, column)の文字を書く
+    // 同じ行の少し先なら、カーソル移動の代わりに間の文字(変化していないので表示中と同じ)を書き直す方が短い
+    private void putCell(int row, int column, int words) {
+        if (row == cursorRow && column >= cursorColumn && cursorColumn >= 0) {
+            int gap = 0;
+            for (int x = cursorColumn; x < column; x++) {
+                gap += CELLS[cellAt(row, x, words)].length;
+            }
+            // ESC[nC(右にn文字)と比べる
+            if (gap <= 3 + digits(column - cursorColumn)) {
+                for (int x = cursorColumn; x < column; x++) {
+                    appendCell(cellAt(row, x, words));
+                }
+            } else {
+                appendCsi(column - cursorColumn);
+                append('C');
+            }
+        } else {
+            moveTo(row, column);
+        }
+        appendCell(cellAt(row, column, words));
+        // 右端の文字の後はカーソル位置が端末によって異なるので不明にする
+        cursorColumn = column + 1 < (words * 64) ? column + 1 : -1;
+    }
+
+    // latestの(row, column)の文字(上のピクセルが1ビット目、下のピクセルが2ビット目)
+    // カーソルより左の変化は書き終えていて、間の変化していない文字は表示中と同じなので、どちらも新しい値でよい
+    private int cellAt(int row, int column, int words) {
+        int upper = row * 2 * words + (column >> 6);
+        int shift = 63 - (column & 63);
+        return (int) (latest[upper] >>> shift) & 1 | ((int) (latest[upper + words] >>> shift) & 1) << 1;
+    }
+
+    private void moveTo(int row, int column) {
+        appendCsi(row + 1);
+        append(';');
+        appendNumber(column + 1);
+        append('H');
+        cursorRow = row;
+        cursorColumn = column;
+    }
+
+    private void clearScreen() {
+        append(CLEAR_SCREEN);
+        Arrays.fill(shown, 0, Display.MODE_INDEX, 0L);
+        cursorRow = -1;
+        cursorColumn = -1;
+    }
+
+    private void appendCell(int cell) {
+        byte[] bytes = CELLS[cell];
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void append(int c) {
+        buffer[length++] = (byte) c;
+    }
+
+    private void append(String sequence) {
+        for (int i = 0; i < sequence.length(); i++) {
+            buffer[length++] = (byte) sequence.charAt(i);
+        }
+    }
+
+    // ESC [ n(カーソル移動の始まり)
+    private void appendCsi(int n) {
+        append(ESC);
+        append('[');
+        appendNumber(n);
+    }
+
+    private void appendNumber(int n) {
+        if (n >= 10) {
+            appendNumber(n / 10);
+        }
+        buffer[length++] = (byte) ('0' + n % 10);
+    }
+
+    private static int digits(int n) {
+        return n >= 100 ? 3 : n >= 10 ? 2 : 1;
+    }
+
+    private static int rows(boolean hires) {
+        return (hires ? Display.HIRES_HEIGHT : Display.HEIGHT) / 2;
+    }
+
+    // バッファを1回のwriteで送る
+    private void write() throws IOException {
+        out.write(buffer, 0, length);
+        out.flush();
+        bytes = bytes + length;
+        frames = frames + 1;
+        length = 0;
+    }
+
+    // 表示を止めてカーソルを元に戻す
+    @Override
+    public void close() {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 端末に送ったフレーム数(変化の無いフレームは数えない)
+    public long getFrames() {
+        return frames;
+    }
+
+    // 端末に送ったバイト数
+    public long getBytes() {
+        return bytes;
+    }
+}
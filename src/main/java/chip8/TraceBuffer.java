@@ -0,0 +1,188 @@
+package chip8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// 実行した命令の記録(Debuggerが使う固定長のリングバッファ)
+// 1命令ごとにpc・オペコード・値が変わったレジスタ(V0～VFとI)の実行後の値を残す
+// 配列は最初に確保したものだけを使い、古い記録から上書きする
+//
+// ファイル形式(ビッグエンディアン、古い順)
+//   'C' '8' 'T' version
+//   記録数 4バイト, それまでに記録した総数 8バイト
+//   記録: pc 2バイト + オペコード 2バイト + 変化したレジスタのビット集合 4バイト(ビット0～15がV0～VF、ビット16がI)
+//         + 変化したVの値 1バイトずつ + (Iが変化した場合)Iの値 2バイト
+public class TraceBuffer {
+
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int I_CHANGED = 1 << 16;
+
+    private final int capacity;
+    // pc(下位16ビット) | オペコード(16～31ビット) | 変化したレジスタ(32ビット以降)
+    private final long[] headers;
+    // 記録ごとのV0～VFの実行後の値(変化したものだけ書く)
+    private final byte[] registers;
+    private final short[] indexes;
+    private long count;
+
+    // 実行前のレジスタ
+    private final int[] before = new int[16];
+    private int beforeI;
+
+    public TraceBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TraceBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        headers = new long[capacity];
+        registers = new byte[capacity * 16];
+        indexes = new short[capacity];
+    }
+
+    // 命令の実行前に呼ぶ
+    void before(CPU cpu) {
+        System.arraycopy(cpu.V, 0, before, 0, 16);
+        beforeI = cpu.I;
+    }
+
+    // pcの命令を実行した後に呼ぶ
+    void after(CPU cpu, int pc, int opcode) {
+        int slot = (int) (count % capacity);
+        int mask = 0;
+        for (int r = 0; r < 16; r++) {
+            if (cpu.V[r] != before[r]) {
+                mask |= 1 << r;
+                registers[slot * 16 + r] = (byte) cpu.V[r];
+            }
+        }
+        if (cpu.I != beforeI) {
+            mask |= I_CHANGED;
+            indexes[slot] = (short) cpu.I;
+        }
+        headers[slot] = (pc & 0xFFFFL) | ((long) opcode << 16) | ((long) mask << 32);
+        count++;
+    }
+
+    // 残っている記録の数
+    public int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    // それまでに記録した総数
+    public long getCount() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    // 新しい方からlast件を古い順に表示する
+    public void print(PrintStream out, int last) {
+        int n = Math.min(last, size());
+        StringBuilder line = new StringBuilder();
+        for (long i = count - n; i < count; i++) {
+            int slot = (int) (i % capacity);
+            long header = headers[slot];
+            int mask = (int) (header >>> 32);
+            line.setLength(0);
+            appendEntry(line, (int) (header & 0xFFFF), (int) ((header >>> 16) & 0xFFFF));
+            for (int r = 0; r < 16; r++) {
+                if ((mask & (1 << r)) != 0) {
+                    appendRegister(line, r, Byte.toUnsignedInt(registers[slot * 16 + r]));
+                }
+            }
+            if ((mask & I_CHANGED) != 0) {
+                line.append(String.format(" I=%03X", Short.toUnsignedInt(indexes[slot])));
+            }
+            out.println(line);
+        }
+    }
+
+    public void dump(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            int n = size();
+            out.write(new byte[] {'C', '8', 'T', VERSION});
+            out.writeInt(n);
+            out.writeLong(count);
+            for (long i = count - n; i < count; i++) {
+                int slot = (int) (i % capacity);
+                long header = headers[slot];
+                int mask = (int) (header >>> 32);
+                out.writeShort((int) header);
+                out.writeShort((int) (header >>> 16));
+                out.writeInt(mask);
+                for (int r = 0; r < 16; r++) {
+                    if ((mask & (1 << r)) != 0) {
+                        out.writeByte(registers[slot * 16 + r]);
+                    }
+                }
+                if ((mask & I_CHANGED) != 0) {
+                    out.writeShort(indexes[slot]);
+                }
+            }
+        }
+    }
+
+    // dumpしたファイルを表示する
+    public static void print(Path path, PrintStream out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (magic[0] != 'C' || magic[1] != '8' || magic[2] != 'T') {
+                throw new IOException("Not a trace file: " + path);
+            }
+            if (magic[3] != VERSION) {
+                throw new IOException("Unsupported trace version: " + magic[3]);
+            }
+            int n = in.readInt();
+            long total = in.readLong();
+            out.printf("%d of %d instructions%n", n, total);
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                line.setLength(0);
+                appendEntry(line, in.readUnsignedShort(), in.readUnsignedShort());
+                int mask = in.readInt();
+                for (int r = 0; r < 16; r++) {
+                    if ((mask & (1 << r)) != 0) {
+                        appendRegister(line, r, in.readUnsignedByte());
+                    }
+                }
+                if ((mask & I_CHANGED) != 0) {
+                    line.append(String.format(" I=%03X", in.readUnsignedShort()));
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    private static void appendEntry(StringBuilder line, int pc, int opcode) {
+        line.append(String.format("%03X  %04X  %-10s", pc, opcode,
+                Instruction.name(Instruction.handler(Instruction.decode(opcode)))));
+    }
+
+    private static void appendRegister(StringBuilder line, int r, int value) {
+        line.append(String.format(" V%X=%02X", r, value));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: TraceBuffer <trace-file>");
+            System.exit(1);
+        }
+        print(Paths.get(args[0]), System.out);
+    }
+}
@@ -0,0 +1,137 @@
+package chip8;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Recompilerのブロックのディスクキャッシュ(ROMのハッシュと互換性の設定ごとに1ファイル)
+// 無ければRomAnalyzerで到達できるコードを求めて実行前に全てコンパイルし、ブロックの位置と命令を保存する
+// 次回からは解析せずにそのブロックを実行前にコンパイルするので、起動直後からコンパイル済みのブロックで実行できる
+// クラスファイルは保存せず、登録時にメモリの命令から生成し直す(ファイルの内容をコードとして読み込まない)
+// 登録時に命令がメモリの内容と一致するかを確かめ、一致しないもの・解析で見つからなかったコード・
+// 実行中に書き換えられたコードは、通常どおりインタプリタで実行して実行回数に応じてコンパイルする
+//
+// ファイル形式(ビッグエンディアン)
+//   'C' '8' 'X' version
+//   互換性の設定 1バイト(Quirks.flags)
+//   ブロック数 4バイト
+//   ブロック: 開始アドレス 2バイト + 命令数 1バイト + オペコード 2バイトずつ
+//   (バージョン1はクラスファイルも持っていた。読まずに作り直す)
+public class TranslationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TranslationCache.class);
+
+    public static final int VERSION = 2;
+    private static final String SUFFIX = ".c8x";
+
+    // 1ブロック分(startから始まるopcodesの命令列)
+    record Translation(int start, int[] opcodes) {
+    }
+
+    private final Path directory;
+
+    public TranslationCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // ROMと設定に対応するキャッシュファイル
+    public Path path(String romHash, Quirks quirks) {
+        return directory.resolve(romHash + "-" + Integer.toHexString(quirks.flags()) + SUFFIX);
+    }
+
+    // キャッシュのブロックをrecompilerに登録し、登録したブロック数を返す
+    // キャッシュが無い・読めない場合はmemoryを解析してコンパイルし、キャッシュに書く
+    // memoryにはROMを読み込み済みで、まだ実行していないこと
+    public int preload(Recompiler recompiler, Memory memory, String romHash, Quirks quirks) {
+        Path path = path(romHash, quirks);
+        if (Files.exists(path)) {
+            try {
+                List<Translation> translations = read(path, quirks);
+                int installed = 0;
+                for (Translation translation : translations) {
+                    if (recompiler.install(translation)) {
+                        installed++;
+                    }
+                }
+                logger.info("Loaded {} of {} translated blocks from {}", installed, translations.size(), path);
+                return installed;
+            } catch (IOException e) {
+                logger.warn("Ignoring translation cache {}: {}", path, e.getMessage());
+            }
+        }
+        RomAnalyzer.Graph graph = RomAnalyzer.analyze(memory, quirks);
+        int compiled = recompiler.precompile(graph.translationStarts());
+        try {
+            write(path, quirks, recompiler.translations());
+            logger.info("Translated {} blocks ({} reachable instructions) into {}", compiled, graph.instructions(), path);
+        } catch (IOException e) {
+            logger.warn("Failed to write translation cache {}", path, e);
+        }
+        return compiled;
+    }
+
+    static List<Translation> read(Path path, Quirks quirks) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(path)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (magic[0] != 'C' || magic[1] != '8' || magic[2] != 'X') {
+                throw new IOException("Not a translation cache");
+            }
+            if (magic[3] != VERSION) {
+                throw new IOException("Unsupported translation cache version: " + magic[3]);
+            }
+            if (in.readUnsignedByte() != quirks.flags()) {
+                throw new IOException("Translated with different quirks");
+            }
+            int count = in.readInt();
+            List<Translation> translations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int start = in.readUnsignedShort();
+                int[] opcodes = new int[in.readUnsignedByte()];
+                for (int j = 0; j < opcodes.length; j++) {
+                    opcodes[j] = in.readUnsignedShort();
+                }
+                translations.add(new Translation(start, opcodes));
+            }
+            return translations;
+        }
+    }
+
+    // 一時ファイルに書いてから置き換える(同じROMを並列に実行しても壊れたファイルは見えない)
+    static void write(Path path, Quirks quirks, List<Translation> translations) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.write(new byte[] {'C', '8', 'X', VERSION});
+                out.writeByte(quirks.flags());
+                out.writeInt(translations.size());
+                for (Translation translation : translations) {
+                    out.writeShort(translation.start());
+                    out.writeByte(translation.opcodes().length);
+                    for (int opcode : translation.opcodes()) {
+                        out.writeShort(opcode);
+                    }
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package chip8;
+
+// 基準データとのXORを取り、0の連続を詰める差分符号化
+// 形式: [0の個数(可変長整数)][そのまま続くバイト数(可変長整数)][バイト列] の繰り返し
+// referenceにnullを渡すと全て0の基準として扱う(キーフレーム用)
+final class XorRle {
+
+    private XorRle() {
+    }
+
+    // 最悪の場合の符号化後のサイズ
+    static int maxEncodedLength(int length) {
+        return length + length / 2 + 16;
+    }
+
+    // current[0, length)をreferenceとの差分として符号化し、outに書いたバイト数を返す
+    static int encode(byte[] current, byte[] reference, int length, byte[] out, int outOffset) {
+        int p = outOffset;
+        int i = 0;
+        while (i < length) {
+            int zeroStart = i;
+            while (i < length && diff(current, reference, i) == 0) {
+                i++;
+            }
+            int zeros = i - zeroStart;
+            if (i == length) {
+                // 末尾の0は書かない
+                break;
+            }
+            // 0が2個以上続くまでをそのままのバイト列とする
+            int literalStart = i;
+            while (i < length && (diff(current, reference, i) != 0
+                    || (i + 1 < length && diff(current, reference, i + 1) != 0))) {
+                i++;
+            }
+            p = putVarint(out, p, zeros);
+            p = putVarint(out, p, i - literalStart);
+            for (int j = literalStart; j < i; j++) {
+                out[p++] = diff(current, reference, j);
+            }
+        }
+        return p - outOffset;
+    }
+
+    // in[offset, offset + encodedLength)を復号し、reference(nullなら0)とのXORをoutに書く
+    static void decode(byte[] in, int offset, int encodedLength, byte[] reference, byte[] out, int length) {
+        int p = offset;
+        int end = offset + encodedLength;
+        int o = 0;
+        while (p < end) {
+            int zeros = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in[p++];
+                zeros |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int literals = 0;
+            shift = 0;
+            do {
+                b = in[p++];
+                literals |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            for (int i = 0; i < zeros; i++, o++) {
+                out[o] = reference == null ? 0 : reference[o];
+            }
+            for (int i = 0; i < literals; i++, o++) {
+                out[o] = (byte) (in[p++] ^ (reference == null ? 0 : reference[o]));
+            }
+        }
+        // 末尾の0は省略されることがある
+        for (; o < length; o++) {
+            out[o] = reference == null ? 0 : reference[o];
+        }
+    }
+
+    private static byte diff(byte[] current, byte[] reference, int i) {
+        return reference == null ? current[i] : (byte) (current[i] ^ reference[i]);
+    }
+
+    private static int putVarint(byte[] out, int p, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[p++] = (byte) value;
+        return p;
+    }
+}
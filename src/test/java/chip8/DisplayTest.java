@@ -0,0 +1,182 @@
+package chip8;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Displayの描画・スクロール・解像度の切り替えを、1ピクセル1要素の素朴なモデルと比べる
+class DisplayTest {
+
+    private static final int OPERATIONS = 20000;
+    private static final int SPRITE = 0x300;
+
+    // モデル(128x64 の大きさで持ち、64x32 では左上だけを使う)
+    private boolean[][] model = new boolean[Display.HIRES_HEIGHT][Display.HIRES_WIDTH];
+    private boolean hires;
+
+    @Test
+    void matchesReferenceModel() {
+        Random random = new Random(1);
+        Memory memory = new Memory();
+        byte[] sprite = new byte[32];
+        Display display = new Display();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int width = hires ? Display.HIRES_WIDTH : Display.WIDTH;
+            int height = hires ? Display.HIRES_HEIGHT : Display.HEIGHT;
+            int operation = random.nextInt(8);
+            switch (operation) {
+                case 0 -> {
+                    boolean mode = random.nextBoolean();
+                    if (mode != hires) {
+                        hires = mode;
+                        model = new boolean[Display.HIRES_HEIGHT][Display.HIRES_WIDTH];
+                    }
+                    display.setHires(mode);
+                }
+                case 1, 2, 3 -> {
+                    random.nextBytes(sprite);
+                    for (int b = 0; b < sprite.length; b++) {
+                        memory.setByte(SPRITE + b, sprite[b]);
+                    }
+                    int vx = random.nextInt(256);
+                    int vy = random.nextInt(256);
+                    boolean large = operation == 3;
+                    boolean clip = random.nextBoolean();
+                    int rows = large ? 16 : 1 + random.nextInt(15);
+                    boolean expected = draw(sprite, vx, vy, rows, large, clip, width, height);
+                    boolean collision = large
+                            ? clip ? display.drawLargeSpriteClipped(vx, vy, SPRITE, memory)
+                                    : display.drawLargeSprite(vx, vy, SPRITE, memory)
+                            : clip ? display.drawSpriteClipped(vx, vy, rows, SPRITE, memory)
+                                    : display.drawSprite(vx, vy, rows, SPRITE, memory);
+                    assertEquals(expected, collision, "collision at operation " + i);
+                }
+                case 4 -> {
+                    int n = random.nextInt(16);
+                    for (int y = height - 1; y >= 0; y--) {
+                        for (int x = 0; x < width; x++) {
+                            model[y][x] = y >= n && model[y - n][x];
+                        }
+                    }
+                    display.scrollDown(n);
+                }
+                case 5 -> {
+                    for (int y = 0; y < height; y++) {
+                        for (int x = width - 1; x >= 0; x--) {
+                            model[y][x] = x >= 4 && model[y][x - 4];
+                        }
+                    }
+                    display.scrollRight();
+                }
+                case 6 -> {
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            model[y][x] = x + 4 < width && model[y][x + 4];
+                        }
+                    }
+                    display.scrollLeft();
+                }
+                default -> {
+                    display.clear();
+                    model = new boolean[Display.HIRES_HEIGHT][Display.HIRES_WIDTH];
+                }
+            }
+            assertMatches(display, "operation " + i + " (" + operation + ")");
+        }
+    }
+
+    // モデルにスプライトをXORで描き、衝突したかを返す
+    private boolean draw(byte[] sprite, int vx, int vy, int rows, boolean large, boolean clip, int width,
+            int height) {
+        int columns = large ? 16 : 8;
+        int left = vx % width;
+        int top = vy % height;
+        boolean collision = false;
+        for (int row = 0; row < rows; row++) {
+            int y = top + row;
+            if (y >= height) {
+                if (clip) {
+                    break;
+                }
+                y %= height;
+            }
+            for (int column = 0; column < columns; column++) {
+                int x = left + column;
+                if (x >= width) {
+                    if (clip) {
+                        break;
+                    }
+                    x %= width;
+                }
+                int bits = large ? sprite[row * 2 + column / 8] : sprite[row];
+                if ((bits >> (7 - column % 8) & 1) != 0) {
+                    collision |= model[y][x];
+                    model[y][x] ^= true;
+                }
+            }
+        }
+        return collision;
+    }
+
+    // 全ピクセル、64x32 の縮小ビュー、FramePublisher経由のフレームがモデルと一致するか
+    private void assertMatches(Display display, String at) {
+        assertEquals(hires, display.isHires(), "mode after " + at);
+        for (int y = 0; y < display.getHeight(); y++) {
+            for (int x = 0; x < display.getWidth(); x++) {
+                assertEquals(model[y][x], display.isPixelOn(x, y), "pixel " + x + "," + y + " after " + at);
+            }
+        }
+        long[] lowRes = new long[Display.HEIGHT];
+        display.copyTo(lowRes);
+        for (int y = 0; y < Display.HEIGHT; y++) {
+            for (int x = 0; x < Display.WIDTH; x++) {
+                boolean expected = hires
+                        ? model[2 * y][2 * x] | model[2 * y][2 * x + 1] | model[2 * y + 1][2 * x]
+                                | model[2 * y + 1][2 * x + 1]
+                        : model[y][x];
+                assertEquals(expected, (lowRes[y] >>> (63 - x) & 1) != 0,
+                        "low-res pixel " + x + "," + y + " after " + at);
+            }
+        }
+        FramePublisher publisher = new FramePublisher();
+        publisher.publish(display);
+        long[] frame = new long[Display.FRAME_SIZE];
+        publisher.readIfNewer(0, frame);
+        Display copy = new Display();
+        copy.copyFrameFrom(frame);
+        assertTrue(copy.contentEquals(display), "published frame after " + at);
+        assertEquals(display.hash(), Display.hash(frame), "frame hash after " + at);
+    }
+
+    // Dxy0は128x64 かQuirks.largeSpritesの時だけ16x16、それ以外の64x32 ではCHIP-8と同じく0行の描画
+    @Test
+    void largeSpritesInLowResOnlyWithQuirk() {
+        // 200: I=font(0), Dxy0, JP 204
+        byte[] rom = {(byte) 0xF0, 0x29, (byte) 0xD0, 0x10, 0x12, 0x04};
+        long blank = new Display().hash();
+        for (Quirks quirks : new Quirks[] {Quirks.DEFAULT, Quirks.VIP, Quirks.SCHIP, Quirks.XOCHIP}) {
+            Chip8 chip8 = new Chip8();
+            chip8.setQuirks(quirks);
+            chip8.loadROM(rom);
+            chip8.runCycles(2);
+            boolean drawn = chip8.framebufferHash() != blank;
+            assertEquals(quirks.largeSprites(), drawn, "low-res Dxy0 under " + quirks);
+        }
+        // 00FF: 128x64 では設定によらず16x16
+        byte[] hiresRom = {0x00, (byte) 0xFF, (byte) 0xF0, 0x29, (byte) 0xD0, 0x10, 0x12, 0x06};
+        Chip8 chip8 = new Chip8();
+        chip8.loadROM(hiresRom);
+        chip8.runCycles(3);
+        Display display = chip8.getDisplay();
+        boolean drawn = false;
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                drawn |= display.isPixelOn(x, y);
+            }
+        }
+        assertTrue(display.isHires() && drawn, "hi-res Dxy0 under default quirks");
+    }
+}
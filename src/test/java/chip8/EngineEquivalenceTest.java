@@ -0,0 +1,86 @@
+package chip8;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.Test;
+
+// どの実行エンジンもフレームの境界ではインタプリタと同じ状態になることの確認
+// (入力ログの再生は記録時と違うエンジンでもよいことの前提)
+class EngineEquivalenceTest {
+
+    private static final int FRAMES = 300;
+    private static final int[] INSTRUCTIONS_PER_FRAME = {1, 7, 15, 100};
+
+    // ブロックが自分の2命令目を書き換える(Fx55でブロック内に書く)
+    // 200: V3=0, V4=0, V0+=1, I=203, [I]=V0(6400の下位バイトが書き換わる), JP 200
+    private static final byte[] SELF_MODIFYING = rom(
+            0x6300, 0x6400, 0x7001, 0xA203, 0xF055, 0x1200);
+
+    // 毎回、呼び出し先のブロックの命令(65xx)を書き直してから呼ぶ
+    // 200: V0=65, V1+=3, I=20C, [I]=V0..V1, CALL 20C, JP 200
+    // 20C: V5=xx(書き換えられる), RET
+    private static final byte[] PATCHES_CALLEE = rom(
+            0x6065, 0x7103, 0xA20C, 0xF155, 0x220C, 0x1200,
+            0x6500, 0x00EE);
+
+    // 乱数・描画・タイマー・サブルーチン(自己書き換えなし)
+    // 200: V0=rand&F, I=font(V0), V1=rand&3F, V2=rand&1F, 描画, V3=5, DT=V3, CALL 214, V4+=1, JP 200
+    // 214: V5=DT, V6+=V5, RET
+    private static final byte[] DRAWING = rom(
+            0xC00F, 0xF029, 0xC13F, 0xC21F, 0xD125, 0x6305, 0xF315, 0x2214, 0x7401, 0x1200,
+            0xF507, 0x8654, 0x00EE);
+
+    @Test
+    void selfModifyingBlock() {
+        assertSameAsInterpreter("self-modifying", SELF_MODIFYING, Quirks.DEFAULT);
+        assertSameAsInterpreter("self-modifying", SELF_MODIFYING, Quirks.VIP);
+    }
+
+    @Test
+    void patchedCallee() {
+        assertSameAsInterpreter("patched callee", PATCHES_CALLEE, Quirks.DEFAULT);
+        assertSameAsInterpreter("patched callee", PATCHES_CALLEE, Quirks.VIP);
+    }
+
+    @Test
+    void drawing() {
+        assertSameAsInterpreter("drawing", DRAWING, Quirks.DEFAULT);
+        assertSameAsInterpreter("drawing", DRAWING, Quirks.SCHIP);
+    }
+
+    // 各フレームの後のセーブステートがインタプリタと一致するか
+    private static void assertSameAsInterpreter(String name, byte[] rom, Quirks quirks) {
+        for (int instructionsPerFrame : INSTRUCTIONS_PER_FRAME) {
+            Chip8 expected = start(ExecutionEngine.Kind.INTERPRETER, rom, quirks, instructionsPerFrame);
+            Chip8 recompiler = start(ExecutionEngine.Kind.RECOMPILER, rom, quirks, instructionsPerFrame);
+            Chip8 lockstep = start(ExecutionEngine.Kind.LOCKSTEP, rom, quirks, instructionsPerFrame);
+            for (int frame = 0; frame < FRAMES; frame++) {
+                expected.runFrame();
+                recompiler.runFrame();
+                lockstep.runFrame();
+                byte[] state = expected.snapshot();
+                String at = name + " " + quirks + " ipf=" + instructionsPerFrame + " frame " + frame;
+                assertArrayEquals(state, recompiler.snapshot(), "recompiler differs: " + at);
+                assertArrayEquals(state, lockstep.snapshot(), "lockstep differs: " + at);
+            }
+        }
+    }
+
+    private static Chip8 start(ExecutionEngine.Kind kind, byte[] rom, Quirks quirks, int instructionsPerFrame) {
+        Chip8 chip8 = new Chip8(kind);
+        chip8.setSeed(1);
+        chip8.setQuirks(quirks);
+        chip8.setInstructionsPerFrame(instructionsPerFrame);
+        chip8.loadROM(rom);
+        return chip8;
+    }
+
+    private static byte[] rom(int... opcodes) {
+        byte[] data = new byte[opcodes.length * 2];
+        for (int i = 0; i < opcodes.length; i++) {
+            data[i * 2] = (byte) (opcodes[i] >>> 8);
+            data[i * 2 + 1] = (byte) opcodes[i];
+        }
+        return data;
+    }
+}